@@ -0,0 +1,108 @@
+/**
+ * ##library.name##
+ * ##library.sentence##
+ * ##library.url##
+ *
+ * Copyright ##copyright## ##author##
+ * SPDX-License-Identifier: LGPL-3.0-or-later
+ *
+ * @author      ##author##
+ * @version     ##library.prettyVersion## (##library.version##)
+ *              Last modified: ##date##
+ */
+
+package net.zeroisnan.oscscorep5;
+
+import java.nio.ByteOrder;
+
+/**
+ * Constants of the compact binary score format, used for scores whose name
+ * ends with {@link #EXTENSION}.
+ *
+ * <p>
+ * All values are little endian. The file starts with a header (magic, version,
+ * generator string) followed by a sequence of length-prefixed records:
+ *
+ * <pre>
+ * int  length        (bytes after this field)
+ * byte kind
+ * ...  payload
+ * </pre>
+ *
+ * An ADDRESS record (int id, string) adds an address to the dictionary, and is
+ * always written before the first packet using it. A PACKET record holds:
+ *
+ * <pre>
+ * int   framecount
+ * long  timestamp     (-1 if not recorded)
+ * int   number of messages (a short in version 1 scores)
+ * for each message:
+ *   int   address id
+ *   byte  typetag length, followed by the typetag characters
+ *   ...   arguments: int (i), float (f), double (d), long (h) and char (c,
+ *         2 bytes) in native encoding, strings (s) as an int length followed
+ *         by the UTF-8 bytes, blobs (b) as an int length followed by the
+ *         bytes; true (T) and false (F) have no payload
+ * </pre>
+ *
+ * A RAW record holds an OSC datagram captured in raw mode (see
+ * {@link ScoreRecorder#setRawCapture(boolean)}), exactly as received:
+ *
+ * <pre>
+ * int   framecount
+ * long  timestamp     (-1 if not recorded)
+ * ...   datagram bytes (OSC wire format, up to the end of the record)
+ * </pre>
+ *
+ * A HEADER record (see {@link ScoreHeader}) follows the file header. It is
+ * written with placeholder values when the score is opened and overwritten,
+ * with the same size, when the score is closed:
+ *
+ * <pre>
+ * int   header version
+ * float frame rate of the recording sketch (0 if unknown)
+ * long  number of packets (-1 until the score is closed)
+ * long  number of messages
+ * int   first frame
+ * int   last frame
+ * int   number of messages of the largest packet
+ * long  file offset of the DICTIONARY record (-1 until the score is closed)
+ * ...   file name of the frame index (see {@link ScoreIndex}), empty if none
+ * </pre>
+ *
+ * A DICTIONARY record (int number of addresses, then the addresses in id
+ * order) ends the score, so that readers can learn every address up front and
+ * start reading anywhere.
+ *
+ * <p>
+ * Strings in the header and ADDRESS records are encoded as in arguments.
+ * Unknown record kinds are skipped, so the format can be extended: scores
+ * without HEADER record are read as before.
+ */
+final class BinScoreFormat {
+  /** score file extension */
+  final static String EXTENSION = ".oscb";
+  /** magic number ("OSCB") */
+  final static int MAGIC = 0x4243534f;
+  /** format version (2: int message counts in PACKET records) */
+  final static int VERSION = 2;
+  /** byte order of all the values */
+  final static ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+  /** record kind: address dictionary entry */
+  final static byte ADDRESS = 'A';
+  /** record kind: OSC packet */
+  final static byte PACKET = 'P';
+  /** record kind: OSC datagram in wire format */
+  final static byte RAW = 'R';
+  /** record kind: score header */
+  final static byte HEADER = 'H';
+  /** record kind: address dictionary */
+  final static byte DICTIONARY = 'D';
+
+  /**
+   * prevent the class from being newed
+   */
+  private BinScoreFormat() {
+    throw new AssertionError();
+  }
+}
@@ -0,0 +1,634 @@
+/**
+ * ##library.name##
+ * ##library.sentence##
+ * ##library.url##
+ *
+ * Copyright ##copyright## ##author##
+ * SPDX-License-Identifier: LGPL-3.0-or-later
+ *
+ * @author      ##author##
+ * @version     ##library.prettyVersion## (##library.version##)
+ *              Last modified: ##date##
+ */
+
+package net.zeroisnan.oscscorep5;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import oscP5.OscBundle;
+import oscP5.OscMessage;
+import oscP5.OscPacket;
+
+/**
+ * Read scores in the compact binary format described in
+ * {@link BinScoreFormat}.
+ *
+ * <p>
+ * The score is accessed through a memory mapped window which slides along the
+ * file, so even huge scores are read without copies into intermediate buffers
+ * and without XML parsing. Seeking skips whole packets using their length
+ * prefix, reading just their frame number. Datagrams captured in raw mode
+ * are returned along with their decoded packet.
+ *
+ * <p>
+ * When the score has a complete header (see {@link ScoreHeader}), the address
+ * dictionary is loaded on open, so reading can start at any record: seeking
+ * then starts from the frame index stored next to the score (see
+ * {@link ScoreIndex}) instead of the first record.
+ *
+ * <p>
+ * Scores left unterminated by a crash of the recording sketch end with an
+ * incomplete record: they are played up to their last complete packet.
+ */
+class BinScoreReader implements ScoreReader {
+  /** size of the mapped window */
+  final static int WINDOW = 64 << 20;
+
+  /** path to the score */
+  protected final String path;
+  /** score file channel */
+  protected final FileChannel channel;
+  /** size of the score in bytes */
+  protected final long size;
+  /** mapped window */
+  protected MappedByteBuffer buf;
+  /** file offset of the beginning of the mapped window */
+  protected long base;
+  /** file offset of the first record */
+  protected long first;
+  /** address dictionary (id to address) */
+  protected final List<String> addresses;
+  /** format version of the score */
+  protected int version;
+  /** name of the application that generated the score */
+  protected String generator;
+  /** scratch buffer used to decode strings */
+  protected byte[] strbuf;
+  /** next event, already decoded by seek() */
+  protected ScoreEvent pending;
+  /** set when the incomplete last record of the score has been reached */
+  protected boolean recovered;
+  /** address filter (null to read every message) */
+  protected ScoreFilter filter;
+  /**
+   * filter decision for each address id: 0 not taken yet, 1 accepted, 2
+   * rejected
+   */
+  protected byte[] verdicts;
+  /** header of the score, null if it has none */
+  protected ScoreHeader header;
+  /** the address dictionary of the header has been loaded */
+  protected boolean dictionary;
+  /** frame index (loaded on the first seek, empty if missing or stale) */
+  protected ScoreIndex index;
+
+  /**
+   * constructor
+   *
+   * @param path path to the score
+   * @throws IOException if the score can not be opened or is invalid
+   */
+  BinScoreReader(String path) throws IOException {
+    this.path = path;
+    this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+    this.size = this.channel.size();
+    this.addresses = new ArrayList<String>();
+    this.strbuf = new byte[256];
+    this.verdicts = new byte[0];
+
+    try {
+      this.map(0, 8);
+      if (this.buf.getInt() != BinScoreFormat.MAGIC) {
+        throw new IOException("not a binary OSC score");
+      }
+      this.version = this.buf.getInt();
+      if (this.version < 1 || this.version > BinScoreFormat.VERSION) {
+        throw new IOException("unsupported binary OSC score version");
+      }
+      this.generator = this.getString();
+      this.first = this.position();
+      this.readHeader();
+      this.rewind();
+    } catch (IOException e) {
+      this.close();
+      throw e;
+    } catch (BufferUnderflowException | IndexOutOfBoundsException
+        | IllegalArgumentException e) {
+      this.close();
+      throw this.corrupt(e);
+    }
+  }
+
+  @Override
+  public String getPath() {
+    return this.path;
+  }
+
+  /**
+   * @return name of the application that generated the score
+   */
+  String getGenerator() {
+    return this.generator;
+  }
+
+  @Override
+  public ScoreEvent next() throws IOException {
+    if (this.pending != null) {
+      ScoreEvent ev = this.pending;
+      this.pending = null;
+      return ev;
+    }
+
+    try {
+      while (!this.recovered && this.position() < this.size) {
+        int len = this.startRecord();
+        if (len < 0) {
+          break;
+        }
+        byte kind = this.buf.get();
+        if (kind == BinScoreFormat.PACKET || kind == BinScoreFormat.RAW) {
+          ScoreEvent ev = this.getEvent(kind, len);
+          if (ev != null) {
+            return ev;
+          }
+        } else {
+          this.skipRecord(kind, len);
+        }
+      }
+    } catch (BufferUnderflowException | IndexOutOfBoundsException
+        | IllegalArgumentException e) {
+      throw this.corrupt(e);
+    }
+    return null;
+  }
+
+  @Override
+  public void rewind() throws IOException {
+    this.pending = null;
+    this.recovered = false;
+    this.addresses.clear();
+    if (this.dictionary) {
+      this.addresses.addAll(this.header.getAddresses());
+    }
+    this.map(this.first, 0);
+  }
+
+  @Override
+  public void seek(int frame) throws IOException {
+    this.rewind();
+    if (this.dictionary) {
+      if (this.index == null) {
+        ScoreIndex idx = ScoreIndex.load(this.path);
+        this.index = (idx != null) ? idx : new ScoreIndex();
+      }
+      long offset = this.index.lookup(frame);
+      if (offset > this.first) {
+        this.map(offset, 0);
+      }
+    }
+
+    try {
+      while (!this.recovered && this.position() < this.size) {
+        int len = this.startRecord();
+        if (len < 0) {
+          break;
+        }
+        byte kind = this.buf.get();
+        boolean event = kind == BinScoreFormat.PACKET
+            || kind == BinScoreFormat.RAW;
+        if (event && this.buf.getInt(this.buf.position()) >= frame) {
+          this.pending = this.getEvent(kind, len);
+          if (this.pending != null) {
+            return;
+          }
+        } else {
+          this.skipRecord(kind, len);
+        }
+      }
+    } catch (BufferUnderflowException | IndexOutOfBoundsException
+        | IllegalArgumentException e) {
+      throw this.corrupt(e);
+    }
+  }
+
+  @Override
+  public boolean isTruncated() {
+    return this.recovered;
+  }
+
+  @Override
+  public void setFilter(ScoreFilter filter) {
+    this.filter = filter;
+    this.verdicts = new byte[0];
+  }
+
+  @Override
+  public ScoreHeader getHeader() {
+    return this.header;
+  }
+
+  @Override
+  public void close() throws IOException {
+    // the mapping is released by the garbage collector
+    this.buf = null;
+    this.channel.close();
+  }
+
+  /**
+   * read the HEADER record, if the score starts with one, then the address
+   * dictionary it points to
+   *
+   * @throws IOException on unsupported headers
+   */
+  protected void readHeader() throws IOException {
+    if (this.first + 5 > this.size) {
+      return;
+    }
+    this.ensure(5);
+    int len = this.buf.getInt();
+    if (this.buf.get() != BinScoreFormat.HEADER
+        || this.first + 4 + len > this.size) {
+      return;
+    }
+    this.ensure(len - 1);
+    ScoreHeader h = new ScoreHeader();
+    h.version = this.buf.getInt();
+    if (h.version > ScoreHeader.VERSION) {
+      throw new IOException(
+          String.format("unsupported OSC score version %d", h.version));
+    }
+    h.frameRate = this.buf.getFloat();
+    h.packets = this.buf.getLong();
+    h.messages = this.buf.getLong();
+    h.firstFrame = this.buf.getInt();
+    h.lastFrame = this.buf.getInt();
+    h.maxMessages = this.buf.getInt();
+    h.dictionary = this.buf.getLong();
+    String idx = this.getString();
+    h.index = idx.isEmpty() ? null : idx;
+    this.header = h;
+    this.first += 4 + len;
+
+    if (h.isComplete() && h.dictionary > this.first
+        && h.dictionary + 9 <= this.size) {
+      this.map(h.dictionary, 9);
+      len = this.buf.getInt();
+      if (this.buf.get() != BinScoreFormat.DICTIONARY
+          || h.dictionary + 4 + len > this.size) {
+        return;
+      }
+      this.ensure(len - 1);
+      int count = this.buf.getInt();
+      for (int i = 0; i < count; i++) {
+        h.addresses.add(this.getString());
+      }
+      this.dictionary = true;
+    }
+  }
+
+  /**
+   * @param e exception raised by the buffer on content pointing out of its
+   *          record (underflow, index out of bounds, invalid position)
+   * @return the exception to throw instead
+   */
+  protected IOException corrupt(RuntimeException e) {
+    return new IOException("corrupt binary OSC score", e);
+  }
+
+  /**
+   * @return file offset of the next byte to read
+   */
+  protected long position() {
+    return this.base + this.buf.position();
+  }
+
+  /**
+   * map a new window
+   *
+   * @param offset file offset of the window
+   * @param min minimum size of the window
+   * @throws IOException if the file is shorter than requested
+   */
+  protected void map(long offset, int min) throws IOException {
+    if (offset + min > this.size) {
+      throw new EOFException("truncated binary OSC score");
+    }
+    long len = Math.min(Math.max(WINDOW, min), this.size - offset);
+    this.buf = this.channel.map(FileChannel.MapMode.READ_ONLY, offset, len);
+    this.buf.order(BinScoreFormat.ORDER);
+    this.base = offset;
+  }
+
+  /**
+   * make sure the next bytes are in the mapped window
+   *
+   * @param n number of bytes about to be read
+   * @throws IOException if the file is shorter than requested
+   */
+  protected void ensure(int n) throws IOException {
+    if (this.buf.remaining() < n) {
+      this.map(this.position(), n);
+    }
+  }
+
+  /**
+   * read a record length and make sure the whole record is mapped
+   *
+   * @return record length, -1 for the incomplete last record of a truncated
+   *         score
+   * @throws IOException on read errors
+   */
+  protected int startRecord() throws IOException {
+    long start = this.position();
+    if (start + 4 <= this.size) {
+      this.ensure(4);
+      int len = this.buf.getInt();
+      if (len >= 0 && start + 4 + len <= this.size) {
+        this.ensure(len);
+        return len;
+      }
+    }
+    this.recovered = true;
+    System.err.println(String.format("WARNING: OSC score at %s is truncated,"
+        + " playing it up to its last complete packet", this.path));
+    return -1;
+  }
+
+  /**
+   * skip the rest of a record, learning addresses along the way
+   *
+   * @param kind record kind (already read)
+   * @param len record length
+   * @throws IOException on invalid records
+   */
+  protected void skipRecord(byte kind, int len) throws IOException {
+    int end = this.buf.position() - 1 + len;
+    if (kind == BinScoreFormat.ADDRESS) {
+      int id = this.buf.getInt();
+      if (id >= this.addresses.size() || this.addresses.get(id) == null) {
+        // not known from the dictionary yet
+        String address = this.getString();
+        while (this.addresses.size() <= id) {
+          this.addresses.add(null);
+        }
+        this.addresses.set(id, address);
+      }
+    }
+    this.buf.position(end);
+  }
+
+  /**
+   * decode a PACKET or RAW record (kind already read), the buffer is left at
+   * the end of the record
+   *
+   * @param kind record kind
+   * @param len record length
+   * @return the event, null if all its messages are filtered out
+   * @throws IOException on invalid content
+   */
+  protected ScoreEvent getEvent(byte kind, int len) throws IOException {
+    int end = this.buf.position() - 1 + len;
+    ScoreEvent ev = (kind == BinScoreFormat.RAW) ? this.getRaw(len)
+        : this.getPacket();
+    this.buf.position(end);
+    return ev;
+  }
+
+  /**
+   * decode a PACKET record (kind already read)
+   *
+   * @return the event, null if all its messages are filtered out
+   * @throws IOException on invalid content
+   */
+  protected ScoreEvent getPacket() throws IOException {
+    int frame = this.buf.getInt();
+    long time = this.buf.getLong();
+    int count = (this.version < 2) ? this.buf.getShort() & 0xffff
+        : this.buf.getInt();
+    if (count < 1) {
+      throw new IOException("no messages found in binary OSC score packet");
+    }
+
+    OscMessage first = null;
+    OscBundle bundle = (count > 1) ? new OscBundle() : null;
+    for (int i = 0; i < count; i++) {
+      int id = this.buf.getInt();
+      if (this.filter != null && !this.accepts(id)) {
+        // rejected messages are skipped, not decoded
+        this.skipMessage();
+        continue;
+      }
+      OscMessage msg = this.getMessage(this.getAddress(id));
+      if (bundle != null) {
+        bundle.add(msg);
+      } else {
+        first = msg;
+      }
+    }
+
+    OscPacket pkt = (bundle != null) ? bundle : first;
+    if (pkt == null || (bundle != null && bundle.size() == 0)) {
+      return null;
+    }
+    return new ScoreEvent(frame, time, pkt);
+  }
+
+  /**
+   * decode a RAW record (kind already read). With a filter, datagrams whose
+   * messages are all rejected are skipped, and datagrams partly rejected are
+   * returned without their bytes, as they can not be re-injected unchanged.
+   *
+   * @param len record length
+   * @return the event, holding both the datagram and its decoded packet, null
+   *         if all its messages are filtered out
+   * @throws IOException on malformed datagrams
+   */
+  protected ScoreEvent getRaw(int len) throws IOException {
+    if (len < 13) {
+      throw new IOException("invalid raw datagram in binary OSC score");
+    }
+    int frame = this.buf.getInt();
+    long time = this.buf.getLong();
+    int verdict = OscCodec.ALL;
+    if (this.filter != null) {
+      ByteBuffer datagram = this.buf.slice();
+      datagram.limit(len - 13);
+      verdict = OscCodec.filter(datagram, this.filter);
+      if (verdict == OscCodec.NONE) {
+        return null;
+      }
+    }
+    byte[] raw = new byte[len - 13];
+    this.buf.get(raw);
+    if (verdict == OscCodec.SOME) {
+      return new ScoreEvent(frame, time,
+          OscCodec.decode(raw, 0, raw.length, this.filter));
+    }
+    return new ScoreEvent(frame, time, OscCodec.decode(raw, 0, raw.length),
+        raw);
+  }
+
+  /**
+   * @param id address id
+   * @return the address
+   * @throws IOException if the address is not in the dictionary
+   */
+  protected String getAddress(int id) throws IOException {
+    if (id < 0 || id >= this.addresses.size()
+        || this.addresses.get(id) == null) {
+      throw new IOException(
+          String.format("undefined address %d in binary OSC score", id));
+    }
+    return this.addresses.get(id);
+  }
+
+  /**
+   * @param id address id
+   * @return the filter accepts the messages sent to the address
+   * @throws IOException if the address is not in the dictionary
+   */
+  protected boolean accepts(int id) throws IOException {
+    if (id >= 0 && id < this.verdicts.length && this.verdicts[id] != 0) {
+      return this.verdicts[id] == 1;
+    }
+    boolean accepted = this.filter.accepts(this.getAddress(id));
+    if (id >= this.verdicts.length) {
+      this.verdicts = Arrays.copyOf(this.verdicts,
+          Math.max(id + 1, 2 * this.verdicts.length));
+    }
+    this.verdicts[id] = accepted ? (byte) 1 : (byte) 2;
+    return accepted;
+  }
+
+  /**
+   * skip the arguments of a message (address id already read)
+   *
+   * @throws IOException on invalid content
+   */
+  protected void skipMessage() throws IOException {
+    int types = this.buf.get();
+    int typepos = this.buf.position();
+    int argpos = typepos + types;
+    for (int i = 0; i < types; i++) {
+      switch (this.buf.get(typepos + i)) {
+        case 's':
+        case 'b':
+          int len = this.buf.getInt(argpos);
+          if (len < 0 || argpos + 4 + len > this.buf.limit()) {
+            throw new IOException("invalid argument in binary OSC score");
+          }
+          argpos += 4 + len;
+          break;
+        case 'i':
+        case 'f':
+          argpos += 4;
+          break;
+        case 'd':
+        case 'h':
+          argpos += 8;
+          break;
+        case 'c':
+          argpos += 2;
+          break;
+        case 'T':
+        case 'F':
+          break;
+        default:
+          throw new IOException(String.format(
+              "OSC message argument %c is invalid or not supported",
+              this.buf.get(typepos + i)));
+      }
+    }
+    this.buf.position(argpos);
+  }
+
+  /**
+   * decode a message (address id already read)
+   *
+   * @param address address of the message
+   * @return the message
+   * @throws IOException on invalid content
+   */
+  protected OscMessage getMessage(String address) throws IOException {
+    OscMessage msg = new OscMessage(address);
+
+    int types = this.buf.get();
+    int typepos = this.buf.position();
+    int argpos = typepos + types;
+    for (int i = 0; i < types; i++) {
+      byte c = this.buf.get(typepos + i);
+      this.buf.position(argpos);
+      switch (c) {
+        case 's':
+          msg.add(this.getString());
+          break;
+        case 'i':
+          msg.add(this.buf.getInt());
+          break;
+        case 'f':
+          msg.add(this.buf.getFloat());
+          break;
+        case 'd':
+          msg.add(this.buf.getDouble());
+          break;
+        case 'h':
+          msg.add(this.buf.getLong());
+          break;
+        case 'c':
+          msg.add(this.buf.getChar());
+          break;
+        case 'T':
+          msg.add(true);
+          break;
+        case 'F':
+          msg.add(false);
+          break;
+        case 'b':
+          int len = this.buf.getInt();
+          if (len < 0 || len > this.buf.remaining()) {
+            throw new IOException("invalid blob argument in binary OSC score");
+          }
+          byte[] blob = new byte[len];
+          this.buf.get(blob);
+          msg.add(blob);
+          break;
+        default:
+          throw new IOException(String.format(
+              "OSC message argument %c is invalid or not supported", c));
+      }
+      argpos = this.buf.position();
+    }
+    this.buf.position(argpos);
+    return msg;
+  }
+
+  /**
+   * decode a string (int length and UTF-8 bytes)
+   *
+   * @return the string
+   * @throws IOException if the length runs past the mapped record
+   */
+  protected String getString() throws IOException {
+    int len = this.buf.getInt();
+    if (len < 0 || len > this.buf.remaining()) {
+      throw new IOException(
+          String.format("invalid string length %d in binary OSC score", len));
+    }
+    if (this.strbuf.length < len) {
+      this.strbuf = new byte[Math.max(len, this.strbuf.length * 2)];
+    }
+    this.buf.get(this.strbuf, 0, len);
+    return new String(this.strbuf, 0, len, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,408 @@
+/**
+ * ##library.name##
+ * ##library.sentence##
+ * ##library.url##
+ *
+ * Copyright ##copyright## ##author##
+ * SPDX-License-Identifier: LGPL-3.0-or-later
+ *
+ * @author      ##author##
+ * @version     ##library.prettyVersion## (##library.version##)
+ *              Last modified: ##date##
+ */
+
+package net.zeroisnan.oscscorep5;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Write scores in the compact binary format described in
+ * {@link BinScoreFormat}.
+ *
+ * <p>
+ * Records are assembled in a reusable buffer, straight from the recorded
+ * {@link ScoreRecord}s, and written to the file in large blocks: writing a
+ * packet does not allocate any object. The HEADER record is patched and the
+ * frame index (see {@link ScoreIndex}) is stored next to the score on close.
+ */
+class BinScoreWriter implements ScoreWriter {
+  /** size of the output block */
+  final static int BLOCK = 1 << 16;
+
+  /** path to the score */
+  protected final String path;
+  /** score file stream */
+  protected final FileOutputStream filestream;
+  /** channel of the score file stream */
+  protected final FileChannel channel;
+  /** record being assembled */
+  protected ByteBuffer rec;
+  /** output block */
+  protected ByteBuffer out;
+  /** header of the score, holding the address dictionary */
+  protected final ScoreHeader header;
+  /** file offset of the HEADER record */
+  protected long headerpos;
+  /** frame index of the score */
+  protected final ScoreIndex index;
+  /** frame rate of the recording sketch */
+  protected volatile float frameRate;
+
+  /**
+   * constructor
+   *
+   * @param path path to the score
+   * @throws IOException if the score can not be created
+   */
+  BinScoreWriter(String path) throws IOException {
+    this.path = path;
+    this.filestream = new FileOutputStream(path);
+    this.channel = this.filestream.getChannel();
+    this.rec = ByteBuffer.allocate(1024).order(BinScoreFormat.ORDER);
+    this.out = ByteBuffer.allocateDirect(BLOCK).order(BinScoreFormat.ORDER);
+    this.header = new ScoreHeader();
+    this.header.index = new File(ScoreIndex.pathFor(path)).getName();
+    this.index = new ScoreIndex();
+  }
+
+  @Override
+  public String getPath() {
+    return this.path;
+  }
+
+  @Override
+  public void open(String generator) throws IOException {
+    this.rec.clear();
+    this.rec.putInt(BinScoreFormat.MAGIC);
+    this.rec.putInt(BinScoreFormat.VERSION);
+    this.putString(generator);
+    this.emit();
+    this.headerpos = this.size();
+    this.putHeader();
+    this.emit();
+  }
+
+  @Override
+  public void setFrameRate(float frameRate) {
+    this.frameRate = frameRate;
+  }
+
+  @Override
+  public void write(ScoreRecord[] msgs, int count) throws IOException {
+    this.header.count(msgs, count);
+    if (msgs[0].isRaw()) {
+      // raw capture: one record per datagram, as received
+      for (int i = 0; i < count; i++) {
+        this.indexPacket(msgs[i].getFrame());
+        this.putRaw(msgs[i]);
+      }
+      return;
+    }
+
+    // make sure all the addresses are in the dictionary
+    for (int i = 0; i < count; i++) {
+      this.define(msgs[i].getAddress());
+    }
+
+    this.indexPacket(msgs[0].getFrame());
+    this.startRecord(BinScoreFormat.PACKET);
+    this.rec.putInt(msgs[0].getFrame());
+    this.rec.putLong(msgs[0].getTime());
+    this.rec.putInt(count);
+    for (int i = 0; i < count; i++) {
+      this.putMessage(msgs[i]);
+    }
+    this.endRecord();
+  }
+
+  @Override
+  public void commit(boolean sync) throws IOException {
+    this.flush();
+    if (sync) {
+      this.channel.force(false);
+    }
+  }
+
+  @Override
+  public long size() {
+    try {
+      return this.channel.position() + this.out.position();
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (this.headerpos == 0) {
+      // never opened
+      this.filestream.close();
+      return;
+    }
+    try {
+      this.header.dictionary = this.size();
+      this.startRecord(BinScoreFormat.DICTIONARY);
+      this.rec.putInt(this.header.getAddresses().size());
+      for (String address : this.header.getAddresses()) {
+        this.putString(address);
+      }
+      this.endRecord();
+      this.flush();
+
+      // overwrite the placeholder header
+      this.header.frameRate = this.frameRate;
+      this.header.complete();
+      this.putHeader();
+      this.rec.flip();
+      long pos = this.headerpos;
+      while (this.rec.hasRemaining()) {
+        pos += this.channel.write(this.rec, pos);
+      }
+    } finally {
+      this.filestream.close();
+    }
+
+    // store the frame index next to the score, used to seek during playback
+    this.index.setScoreSize(new File(this.path).length());
+    this.index.save(ScoreIndex.pathFor(this.path));
+  }
+
+  /**
+   * assemble the HEADER record
+   */
+  protected void putHeader() {
+    ScoreHeader h = this.header;
+    this.startRecord(BinScoreFormat.HEADER);
+    this.rec.putInt(h.version);
+    this.rec.putFloat(h.frameRate);
+    this.rec.putLong(h.packets);
+    this.rec.putLong(h.messages);
+    this.rec.putInt(h.firstFrame);
+    this.rec.putInt(h.lastFrame);
+    this.rec.putInt(h.maxMessages);
+    this.rec.putLong(h.dictionary);
+    this.putString(h.index);
+    this.rec.putInt(0, this.rec.position() - 4);
+  }
+
+  /**
+   * add an entry to the frame index when due, for the packet about to be
+   * written
+   *
+   * @param frame frame of the packet
+   */
+  protected void indexPacket(int frame) {
+    if (this.index.isDue()) {
+      this.index.add(frame, this.size());
+    }
+    this.index.countPacket();
+  }
+
+  /**
+   * add an address to the dictionary, writing its ADDRESS record
+   *
+   * @param address address to define
+   * @throws IOException on write errors
+   */
+  protected void define(String address) throws IOException {
+    int n = this.header.getAddresses().size();
+    int id = this.header.define(address);
+    if (id < n) {
+      return;
+    }
+    this.startRecord(BinScoreFormat.ADDRESS);
+    this.rec.putInt(id);
+    this.putString(address);
+    this.endRecord();
+  }
+
+  /**
+   * write a RAW record
+   *
+   * @param rec datagram to write
+   * @throws IOException on write errors
+   */
+  protected void putRaw(ScoreRecord rec) throws IOException {
+    this.startRecord(BinScoreFormat.RAW);
+    this.ensure(12 + rec.rawLength());
+    this.rec.putInt(rec.getFrame());
+    this.rec.putLong(rec.getTime());
+    this.rec.put(rec.rawBytes(), 0, rec.rawLength());
+    this.endRecord();
+  }
+
+  /**
+   * append a message (address id, typetag and arguments) to the record
+   *
+   * @param msg message to append
+   */
+  protected void putMessage(ScoreRecord msg) {
+    int n = msg.size();
+    this.ensure(5 + n);
+    this.rec.putInt(this.header.ids.get(msg.getAddress()));
+
+    // the typetag length is patched once the supported arguments are known
+    int typepos = this.rec.position();
+    this.rec.put((byte) 0);
+    int types = 0;
+    for (int i = 0; i < n; i++) {
+      char c = msg.type(i);
+      if (ScoreRecord.TYPES.indexOf(c) < 0) {
+        System.err.println(String.format(
+            "OSC message argument %s is invalid or not supported", c));
+        continue;
+      }
+      this.rec.put((byte) c);
+      types++;
+    }
+    this.rec.put(typepos, (byte) types);
+
+    for (int i = 0; i < n; i++) {
+      switch (msg.type(i)) {
+        case 's':
+          this.putString(msg.stringValue(i));
+          break;
+        case 'i':
+          this.ensure(4);
+          this.rec.putInt(msg.intValue(i));
+          break;
+        case 'f':
+          this.ensure(4);
+          this.rec.putFloat(msg.floatValue(i));
+          break;
+        case 'd':
+          this.ensure(8);
+          this.rec.putDouble(msg.doubleValue(i));
+          break;
+        case 'h':
+          this.ensure(8);
+          this.rec.putLong(msg.longValue(i));
+          break;
+        case 'c':
+          this.ensure(2);
+          this.rec.putChar(msg.charValue(i));
+          break;
+        case 'b':
+          byte[] blob = msg.blobValue(i);
+          this.ensure(4 + blob.length);
+          this.rec.putInt(blob.length);
+          this.rec.put(blob);
+          break;
+        default:
+          break;
+      }
+    }
+  }
+
+  /**
+   * append a string (int length and UTF-8 bytes) to the record, encoding it
+   * in place
+   *
+   * @param str string to append
+   */
+  protected void putString(String str) {
+    int n = str.length();
+    // worst case: 3 bytes per char (surrogate pairs take 4 bytes for 2 chars)
+    this.ensure(4 + 3 * n);
+    int lenpos = this.rec.position();
+    this.rec.putInt(0);
+    for (int i = 0; i < n; i++) {
+      char c = str.charAt(i);
+      if (c < 0x80) {
+        this.rec.put((byte) c);
+      } else if (c < 0x800) {
+        this.rec.put((byte) (0xc0 | (c >> 6)));
+        this.rec.put((byte) (0x80 | (c & 0x3f)));
+      } else if (Character.isHighSurrogate(c) && i + 1 < n
+          && Character.isLowSurrogate(str.charAt(i + 1))) {
+        int cp = Character.toCodePoint(c, str.charAt(++i));
+        this.rec.put((byte) (0xf0 | (cp >> 18)));
+        this.rec.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+        this.rec.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+        this.rec.put((byte) (0x80 | (cp & 0x3f)));
+      } else if (Character.isSurrogate(c)) {
+        // unpaired surrogate, replaced like String.getBytes() does
+        this.rec.put((byte) '?');
+      } else {
+        this.rec.put((byte) (0xe0 | (c >> 12)));
+        this.rec.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+        this.rec.put((byte) (0x80 | (c & 0x3f)));
+      }
+    }
+    this.rec.putInt(lenpos, this.rec.position() - lenpos - 4);
+  }
+
+  /**
+   * make room in the record buffer
+   *
+   * @param n number of bytes about to be appended
+   */
+  protected void ensure(int n) {
+    if (this.rec.remaining() < n) {
+      ByteBuffer bigger = ByteBuffer
+          .allocate(Math.max(this.rec.capacity() * 2, this.rec.position() + n))
+          .order(BinScoreFormat.ORDER);
+      this.rec.flip();
+      bigger.put(this.rec);
+      this.rec = bigger;
+    }
+  }
+
+  /**
+   * start a new record, leaving room for its length
+   *
+   * @param kind record kind
+   */
+  protected void startRecord(byte kind) {
+    this.rec.clear();
+    this.rec.putInt(0);
+    this.rec.put(kind);
+  }
+
+  /**
+   * patch the record length and move the record to the output block
+   *
+   * @throws IOException on write errors
+   */
+  protected void endRecord() throws IOException {
+    this.rec.putInt(0, this.rec.position() - 4);
+    this.emit();
+  }
+
+  /**
+   * move the record buffer content to the output block
+   *
+   * @throws IOException on write errors
+   */
+  protected void emit() throws IOException {
+    this.rec.flip();
+    if (this.out.remaining() < this.rec.remaining()) {
+      this.flush();
+    }
+    if (this.rec.remaining() > this.out.capacity()) {
+      // huge record, skip the output block
+      while (this.rec.hasRemaining()) {
+        this.channel.write(this.rec);
+      }
+    } else {
+      this.out.put(this.rec);
+    }
+  }
+
+  /**
+   * write the output block to the file
+   *
+   * @throws IOException on write errors
+   */
+  protected void flush() throws IOException {
+    this.out.flip();
+    while (this.out.hasRemaining()) {
+      this.channel.write(this.out);
+    }
+    this.out.clear();
+  }
+}
@@ -0,0 +1,318 @@
+/**
+ * ##library.name##
+ * ##library.sentence##
+ * ##library.url##
+ *
+ * Copyright ##copyright## ##author##
+ * SPDX-License-Identifier: LGPL-3.0-or-later
+ *
+ * @author      ##author##
+ * @version     ##library.prettyVersion## (##library.version##)
+ *              Last modified: ##date##
+ */
+
+package net.zeroisnan.oscscorep5;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import oscP5.OscBundle;
+import oscP5.OscMessage;
+import oscP5.OscPacket;
+
+/**
+ * Keep the decoded events of a region of the score in memory, so that looping
+ * over that region parses the score only once.
+ *
+ * <p>
+ * The region starts at frame <code>start</code> and ends right before frame
+ * <code>end</code>. The cache is filled during the first pass over the region,
+ * i.e. after a rewind (region starting at frame 0) or a seek to the start of
+ * the region. From then on, seeking anywhere within the region replays the
+ * events from memory.
+ *
+ * <p>
+ * The cache never takes more than the memory budget (an estimate of the heap
+ * used by the decoded events). When the region does not fit, the cache keeps
+ * the beginning of the region, cut on a frame boundary, and the rest of the
+ * region is streamed from the score every time, by seeking the underlying
+ * reader at the first frame not in memory. Nothing is ever evicted once
+ * cached.
+ */
+class CachedScoreReader implements ScoreReader {
+  /** estimated heap size of a ScoreEvent, without its packet */
+  final static int EVENT_BYTES = 32;
+  /** estimated heap size of an OscMessage, without address and arguments */
+  final static int MESSAGE_BYTES = 96;
+  /** estimated heap size of an argument, without string payload */
+  final static int ARG_BYTES = 24;
+
+  /** the reader of the score */
+  protected final ScoreReader reader;
+  /** memory budget in bytes */
+  protected final long budget;
+  /** first frame of the cached region */
+  protected final int start;
+  /** first frame after the cached region */
+  protected final int end;
+
+  /** cached events, beginning of the region */
+  protected final List<ScoreEvent> cache;
+  /** estimated heap size of the cached events */
+  protected long usage;
+  /** set once the cache is complete (it will not grow any more) */
+  protected boolean sealed;
+  /** first frame not in the cache (once sealed), MAX_VALUE for end of score */
+  protected int cacheEnd;
+  /** set while the first pass over the region is being cached */
+  protected boolean filling;
+  /** the reader was rewound or seeked before the region start */
+  protected boolean armed;
+  /** next cached event to replay, -1 when streaming from the score */
+  protected int pos;
+  /** the reader must be seeked to cacheEnd before streaming */
+  protected boolean resync;
+  /** number of events replayed from memory */
+  protected long hits;
+
+  /**
+   * constructor, the cache is filled from the next rewind or seek at or before
+   * the region start
+   *
+   * @param reader the reader of the score
+   * @param budget memory budget in bytes
+   * @param start first frame of the cached region
+   * @param end first frame after the cached region (MAX_VALUE for the whole
+   *          score)
+   */
+  CachedScoreReader(ScoreReader reader, long budget, int start, int end) {
+    this.reader = reader;
+    this.budget = budget;
+    this.start = start;
+    this.end = end;
+    this.cache = new ArrayList<ScoreEvent>();
+    this.pos = -1;
+  }
+
+  /**
+   * @return the reader of the score
+   */
+  ScoreReader getReader() {
+    return this.reader;
+  }
+
+  /**
+   * @return estimated heap size of the cached events
+   */
+  long getUsage() {
+    return this.usage;
+  }
+
+  /**
+   * @return number of cached events
+   */
+  int size() {
+    return this.cache.size();
+  }
+
+  /**
+   * @return number of events replayed from memory
+   */
+  long getHits() {
+    return this.hits;
+  }
+
+  @Override
+  public String getPath() {
+    return this.reader.getPath();
+  }
+
+  @Override
+  public ScoreEvent next() throws IOException {
+    if (this.pos >= 0) {
+      if (this.pos < this.cache.size()) {
+        this.hits++;
+        return this.cache.get(this.pos++);
+      }
+      // past the cached events
+      this.pos = -1;
+      if (this.cacheEnd == Integer.MAX_VALUE) {
+        return null;
+      }
+      this.resync = true;
+    }
+    if (this.resync) {
+      this.resync = false;
+      this.reader.seek(this.cacheEnd);
+    }
+
+    ScoreEvent ev = this.reader.next();
+    if (this.armed && (ev == null || ev.getFrame() >= this.start)) {
+      // entering the region: start caching
+      this.armed = false;
+      this.filling = true;
+    }
+    if (this.filling) {
+      this.fill(ev);
+    }
+    return ev;
+  }
+
+  @Override
+  public void rewind() throws IOException {
+    this.stopFilling();
+    if (this.sealed && this.start == 0) {
+      this.pos = 0;
+      this.resync = false;
+    } else {
+      this.pos = -1;
+      this.resync = false;
+      this.reader.rewind();
+      this.armed = !this.sealed;
+    }
+  }
+
+  @Override
+  public void seek(int frame) throws IOException {
+    this.stopFilling();
+    this.resync = false;
+    if (this.sealed && frame >= this.start && frame < this.cacheEnd) {
+      // replay from memory, skipping the events before the frame
+      this.pos = 0;
+      while (this.pos < this.cache.size()
+          && this.cache.get(this.pos).getFrame() < frame) {
+        this.pos++;
+      }
+    } else {
+      this.pos = -1;
+      this.reader.seek(frame);
+      this.armed = !this.sealed && frame <= this.start;
+    }
+  }
+
+  @Override
+  public boolean isTruncated() {
+    return this.reader.isTruncated();
+  }
+
+  @Override
+  public ScoreHeader getHeader() {
+    return this.reader.getHeader();
+  }
+
+  /**
+   * the cached events were decoded with the former filter: the cache is
+   * emptied, and filled again by the next pass over the region
+   */
+  @Override
+  public void setFilter(ScoreFilter filter) {
+    this.reader.setFilter(filter);
+    this.cache.clear();
+    this.usage = 0;
+    this.sealed = false;
+    this.filling = false;
+    this.armed = false;
+    this.pos = -1;
+    this.resync = false;
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.cache.clear();
+    this.reader.close();
+  }
+
+  /**
+   * cache an event of the first pass over the region
+   *
+   * @param ev the event, null at the end of the score
+   */
+  protected void fill(ScoreEvent ev) {
+    if (ev == null) {
+      this.seal(Integer.MAX_VALUE);
+      return;
+    }
+    if (ev.getFrame() >= this.end) {
+      this.seal(ev.getFrame());
+      return;
+    }
+    long size = estimateSize(ev);
+    if (this.usage + size > this.budget) {
+      // over budget: the rest of the region will be streamed
+      this.seal(ev.getFrame());
+      return;
+    }
+    this.cache.add(ev);
+    this.usage += size;
+  }
+
+  /**
+   * stop caching when the first pass is interrupted: the cache is sealed on
+   * the frame of the last cached event (partially cached frames are dropped),
+   * or left empty to be filled by a later pass
+   */
+  protected void stopFilling() {
+    this.armed = false;
+    if (this.filling) {
+      this.filling = false;
+      if (!this.cache.isEmpty()) {
+        this.seal(this.cache.get(this.cache.size() - 1).getFrame());
+      }
+    }
+  }
+
+  /**
+   * complete the cache, dropping the cached events at or after a frame
+   *
+   * @param frame first frame not cached (MAX_VALUE for end of score)
+   */
+  protected void seal(int frame) {
+    this.filling = false;
+    this.sealed = true;
+    this.cacheEnd = frame;
+    int n = this.cache.size();
+    while (n > 0 && this.cache.get(n - 1).getFrame() >= frame) {
+      this.usage -= estimateSize(this.cache.remove(--n));
+    }
+  }
+
+  /**
+   * @param ev an event
+   * @return rough estimate of the heap used by the event
+   */
+  static long estimateSize(ScoreEvent ev) {
+    long size = EVENT_BYTES;
+    if (ev.hasRaw()) {
+      size += ev.getRaw().length;
+    }
+    OscPacket pkt = ev.getPkt();
+    if (pkt instanceof OscBundle) {
+      OscBundle bundle = (OscBundle) pkt;
+      for (int i = 0; i < bundle.size(); i++) {
+        size += estimateSize(bundle.getMessage(i));
+      }
+    } else {
+      size += estimateSize((OscMessage) pkt);
+    }
+    return size;
+  }
+
+  /**
+   * @param msg a message
+   * @return rough estimate of the heap used by the message
+   */
+  static long estimateSize(OscMessage msg) {
+    long size = MESSAGE_BYTES + 2 * msg.addrPattern().length();
+    Object[] args = msg.arguments();
+    for (Object arg : args) {
+      size += ARG_BYTES;
+      if (arg instanceof String) {
+        size += 2 * ((String) arg).length();
+      } else if (arg instanceof byte[]) {
+        size += ((byte[]) arg).length;
+      }
+    }
+    return size;
+  }
+}
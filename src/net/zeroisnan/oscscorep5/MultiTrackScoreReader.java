@@ -0,0 +1,176 @@
+/**
+ * ##library.name##
+ * ##library.sentence##
+ * ##library.url##
+ *
+ * Copyright ##copyright## ##author##
+ * SPDX-License-Identifier: LGPL-3.0-or-later
+ *
+ * @author      ##author##
+ * @version     ##library.prettyVersion## (##library.version##)
+ *              Last modified: ##date##
+ */
+
+package net.zeroisnan.oscscorep5;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Merge several scores into a single timeline.
+ *
+ * <p>
+ * The tracks are streamed at once and k-way merged by frame with a heap which
+ * holds the next event of each track, so memory usage does not depend on the
+ * length of the scores. Events of different tracks scheduled on the same frame
+ * come out in track order.
+ */
+class MultiTrackScoreReader implements ScoreReader {
+  /** the tracks */
+  protected final List<ScoreTrack> tracks;
+  /** tracks with a pending event, ordered by frame then track index */
+  protected final PriorityQueue<ScoreTrack> heap;
+
+  /**
+   * constructor
+   *
+   * @param paths paths to the scores
+   * @throws IOException if a score can not be opened or is invalid
+   */
+  MultiTrackScoreReader(String[] paths) throws IOException {
+    this.tracks = new ArrayList<ScoreTrack>(paths.length);
+    this.heap = new PriorityQueue<ScoreTrack>(Math.max(paths.length, 1),
+        (a, b) -> (a.headFrame() != b.headFrame())
+            ? Integer.compare(a.headFrame(), b.headFrame())
+            : Integer.compare(a.index, b.index));
+    try {
+      for (String path : paths) {
+        this.tracks.add(new ScoreTrack(ScoreReader.open(path),
+            this.tracks.size()));
+      }
+    } catch (IOException e) {
+      this.close();
+      throw e;
+    }
+    this.rewind();
+  }
+
+  /**
+   * @return the tracks
+   */
+  List<ScoreTrack> getTracks() {
+    return Collections.unmodifiableList(this.tracks);
+  }
+
+  @Override
+  public String getPath() {
+    StringBuilder sb = new StringBuilder();
+    for (ScoreTrack t : this.tracks) {
+      if (sb.length() > 0) {
+        sb.append(File.pathSeparator);
+      }
+      sb.append(t.getScorePath());
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public ScoreEvent next() throws IOException {
+    boolean anySolo = false;
+    for (ScoreTrack t : this.tracks) {
+      anySolo |= t.isSolo();
+    }
+
+    ScoreTrack t;
+    while ((t = this.heap.poll()) != null) {
+      ScoreEvent ev = t.head;
+      int frame = t.headFrame();
+      t.advance();
+      if (t.head != null) {
+        this.heap.add(t);
+      }
+      if (t.isAudible(anySolo)) {
+        return (t.activeOffset == 0) ? ev
+            : new ScoreEvent(frame, ScoreEvent.NO_TIME, ev.getPkt(),
+                ev.getRaw());
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public void rewind() throws IOException {
+    this.heap.clear();
+    for (ScoreTrack t : this.tracks) {
+      t.activeOffset = t.getOffset();
+      t.reader.rewind();
+      this.load(t);
+    }
+  }
+
+  @Override
+  public void seek(int frame) throws IOException {
+    this.heap.clear();
+    for (ScoreTrack t : this.tracks) {
+      t.activeOffset = t.getOffset();
+      t.reader.seek(Math.max(frame - t.activeOffset, 0));
+      t.advance();
+      // tracks shifted backwards may still have events before the frame
+      while (t.head != null && t.headFrame() < frame) {
+        t.advance();
+      }
+      if (t.head != null) {
+        this.heap.add(t);
+      }
+    }
+  }
+
+  @Override
+  public boolean isTruncated() {
+    for (ScoreTrack t : this.tracks) {
+      if (t.reader.isTruncated()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public void setFilter(ScoreFilter filter) {
+    for (ScoreTrack t : this.tracks) {
+      t.reader.setFilter(filter);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    IOException error = null;
+    for (ScoreTrack t : this.tracks) {
+      try {
+        t.reader.close();
+      } catch (IOException e) {
+        error = e;
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  /**
+   * decode the first event of a track and put the track in the heap
+   *
+   * @param t the track
+   * @throws IOException on invalid score content
+   */
+  protected void load(ScoreTrack t) throws IOException {
+    t.advance();
+    if (t.head != null) {
+      this.heap.add(t);
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/**
+ * ##library.name##
+ * ##library.sentence##
+ * ##library.url##
+ *
+ * Copyright ##copyright## ##author##
+ * SPDX-License-Identifier: LGPL-3.0-or-later
+ *
+ * @author      ##author##
+ * @version     ##library.prettyVersion## (##library.version##)
+ *              Last modified: ##date##
+ */
+
+package net.zeroisnan.oscscorep5;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * OSC messages (in wire format) grouped into a bundle to be sent as a single
+ * datagram, no larger than a given size.
+ *
+ * <p>
+ * The bundle is built in place, element after element, behind the bundle tag
+ * and an immediate timetag. A batch holding a single message is sent as that
+ * message alone, without the bundle around it.
+ */
+class OscBatch {
+  /** bundle tag and immediate timetag heading a batch */
+  final static byte[] BUNDLE_HEAD = "#bundle\0\0\0\0\0\0\0\0\1"
+      .getBytes(StandardCharsets.US_ASCII);
+
+  /** bundle being built */
+  protected final ByteBuffer buf;
+  /** number of elements in the bundle */
+  protected int count;
+
+  /**
+   * constructor
+   *
+   * @param maxBytes largest datagram to send
+   */
+  OscBatch(int maxBytes) {
+    this.buf = ByteBuffer.allocate(Math.max(maxBytes, BUNDLE_HEAD.length));
+    this.buf.put(BUNDLE_HEAD);
+  }
+
+  /**
+   * @return largest datagram sent
+   */
+  int capacity() {
+    return this.buf.capacity();
+  }
+
+  /**
+   * @return the batch holds no message
+   */
+  boolean isEmpty() {
+    return this.count == 0;
+  }
+
+  /**
+   * @param bytes message in wire format
+   * @return the message is too large to be batched at all, it should be sent
+   *         alone
+   */
+  boolean isOversized(byte[] bytes) {
+    return BUNDLE_HEAD.length + 4 + bytes.length > this.buf.capacity();
+  }
+
+  /**
+   * add a message to the bundle
+   *
+   * @param bytes message in wire format
+   * @return false if the message does not fit: the batch should be sent and
+   *         cleared first
+   */
+  boolean add(byte[] bytes) {
+    if (this.buf.position() + 4 + bytes.length > this.buf.capacity()) {
+      return false;
+    }
+    this.buf.putInt(bytes.length);
+    this.buf.put(bytes);
+    this.count++;
+    return true;
+  }
+
+  /**
+   * @return the datagram to send (the bundle, or its only message), valid
+   *         until the batch is cleared
+   */
+  ByteBuffer datagram() {
+    int off = (this.count == 1) ? BUNDLE_HEAD.length + 4 : 0;
+    return ByteBuffer.wrap(this.buf.array(), off, this.buf.position() - off);
+  }
+
+  /**
+   * empty the batch, once sent
+   */
+  void clear() {
+    this.buf.clear();
+    this.buf.put(BUNDLE_HEAD);
+    this.count = 0;
+  }
+}
@@ -0,0 +1,313 @@
+/**
+ * ##library.name##
+ * ##library.sentence##
+ * ##library.url##
+ *
+ * Copyright ##copyright## ##author##
+ * SPDX-License-Identifier: LGPL-3.0-or-later
+ *
+ * @author      ##author##
+ * @version     ##library.prettyVersion## (##library.version##)
+ *              Last modified: ##date##
+ */
+
+package net.zeroisnan.oscscorep5;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import oscP5.OscBundle;
+import oscP5.OscMessage;
+import oscP5.OscPacket;
+
+/**
+ * Decode OSC packets from their wire format (OSC 1.0: big endian, strings and
+ * blobs padded to 4 bytes), used to give a decoded view of the datagrams
+ * captured in raw mode (see {@link ScoreRecorder#setRawCapture(boolean)}).
+ *
+ * <p>
+ * Nested bundles are flattened into a single bundle holding all their
+ * messages, with the timetag of the outermost bundle, as the receive path of
+ * OscP5 does.
+ */
+final class OscCodec {
+  /** filter verdict: all the messages of the packet are rejected */
+  final static int NONE = 0;
+  /** filter verdict: some of the messages of the packet are accepted */
+  final static int SOME = 1;
+  /** filter verdict: all the messages of the packet are accepted */
+  final static int ALL = 2;
+
+  /**
+   * prevent the class from being newed
+   */
+  private OscCodec() {
+    throw new AssertionError();
+  }
+
+  /**
+   * @param data datagram bytes
+   * @param off offset of the datagram
+   * @param len length of the datagram
+   * @return decoded message or bundle
+   * @throws IOException on malformed datagrams
+   */
+  static OscPacket decode(byte[] data, int off, int len) throws IOException {
+    return decode(data, off, len, null);
+  }
+
+  /**
+   * decode the messages accepted by a filter, the others are skipped without
+   * decoding their arguments
+   *
+   * @param data datagram bytes
+   * @param off offset of the datagram
+   * @param len length of the datagram
+   * @param filter address filter, null to decode every message
+   * @return decoded message or bundle, null if no message is accepted
+   * @throws IOException on malformed datagrams
+   */
+  static OscPacket decode(byte[] data, int off, int len, ScoreFilter filter)
+      throws IOException {
+    ByteBuffer buf = ByteBuffer.wrap(data, off, len)
+        .order(ByteOrder.BIG_ENDIAN);
+    try {
+      if (isBundle(buf)) {
+        OscBundle bundle = new OscBundle();
+        getString(buf);
+        bundle.setTimetag(buf.getLong());
+        getElements(buf, bundle, filter);
+        return (filter != null && bundle.size() == 0) ? null : bundle;
+      }
+      if (filter != null && !filter.accepts(getAddress(buf, buf.position(),
+          buf.limit()))) {
+        return null;
+      }
+      return getMessage(buf);
+    } catch (RuntimeException e) {
+      // buffer underflow, bad padding, negative sizes...
+      throw new IOException("malformed OSC packet: " + e, e);
+    }
+  }
+
+  /**
+   * tell which messages of a packet a filter accepts, reading just their
+   * addresses
+   *
+   * @param buf packet, from its position to its limit (left unchanged)
+   * @param filter address filter
+   * @return {@link #NONE}, {@link #SOME} or {@link #ALL}
+   * @throws IOException on malformed datagrams
+   */
+  static int filter(ByteBuffer buf, ScoreFilter filter) throws IOException {
+    try {
+      return verdict(buf, buf.position(), buf.limit(), filter);
+    } catch (RuntimeException e) {
+      throw new IOException("malformed OSC packet: " + e, e);
+    }
+  }
+
+  /**
+   * @param buf packet buffer
+   * @param start offset of a packet or bundle element
+   * @param end offset of its end
+   * @param filter address filter
+   * @return {@link #NONE}, {@link #SOME} or {@link #ALL}
+   */
+  protected static int verdict(ByteBuffer buf, int start, int end,
+      ScoreFilter filter) {
+    if (end - start < 16 || buf.get(start) != '#') {
+      return filter.accepts(getAddress(buf, start, end)) ? ALL : NONE;
+    }
+    int verdict = -1;
+    for (int pos = start + 16; pos < end;) {
+      int size = buf.getInt(pos);
+      if (size < 0 || pos + 4 + size > end) {
+        throw new IllegalArgumentException("invalid element size " + size);
+      }
+      int v = verdict(buf, pos + 4, pos + 4 + size, filter);
+      verdict = (verdict < 0 || verdict == v) ? v : SOME;
+      pos += 4 + size;
+    }
+    // empty bundles carry nothing worth keeping
+    return (verdict < 0) ? NONE : verdict;
+  }
+
+  /**
+   * read the address of a message without moving the buffer position
+   *
+   * @param buf packet buffer
+   * @param start offset of the message
+   * @param end offset of its end
+   * @return the address
+   */
+  protected static String getAddress(ByteBuffer buf, int start, int end) {
+    int stop = start;
+    while (stop < end && buf.get(stop) != 0) {
+      stop++;
+    }
+    if (buf.hasArray()) {
+      return new String(buf.array(), buf.arrayOffset() + start, stop - start,
+          StandardCharsets.UTF_8);
+    }
+    byte[] bytes = new byte[stop - start];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = buf.get(start + i);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @param buf packet, positioned at its start
+   * @return the packet is a bundle (starts with "#bundle")
+   */
+  protected static boolean isBundle(ByteBuffer buf) {
+    return buf.remaining() >= 16 && buf.get(buf.position()) == '#';
+  }
+
+  /**
+   * decode the elements of a bundle (header already read)
+   *
+   * @param buf bundle elements
+   * @param bundle bundle receiving the messages
+   * @param filter address filter, null to decode every message
+   * @throws IOException on malformed elements
+   */
+  protected static void getElements(ByteBuffer buf, OscBundle bundle,
+      ScoreFilter filter) throws IOException {
+    while (buf.hasRemaining()) {
+      int size = buf.getInt();
+      ByteBuffer element = buf.slice();
+      element.limit(size);
+      buf.position(buf.position() + size);
+      if (isBundle(element)) {
+        // nested bundle: skip its header and flatten it
+        getString(element);
+        element.getLong();
+        getElements(element, bundle, filter);
+      } else if (filter == null || filter.accepts(getAddress(element,
+          element.position(), element.limit()))) {
+        bundle.add(getMessage(element));
+      }
+    }
+  }
+
+  /**
+   * decode a message
+   *
+   * @param buf message, positioned at its start
+   * @return the message
+   * @throws IOException on malformed or unsupported arguments
+   */
+  protected static OscMessage getMessage(ByteBuffer buf) throws IOException {
+    OscMessage msg = new OscMessage(getString(buf));
+    if (!buf.hasRemaining()) {
+      // no typetag string: message without arguments (OSC 1.0 compatible)
+      return msg;
+    }
+    String typetag = getString(buf);
+    if (typetag.isEmpty() || typetag.charAt(0) != ',') {
+      throw new IOException("missing OSC typetag string");
+    }
+
+    for (int i = 1; i < typetag.length(); i++) {
+      char c = typetag.charAt(i);
+      switch (c) {
+        case 's':
+          msg.add(getString(buf));
+          break;
+        case 'i':
+          msg.add(buf.getInt());
+          break;
+        case 'f':
+          msg.add(buf.getFloat());
+          break;
+        case 'd':
+          msg.add(buf.getDouble());
+          break;
+        case 'h':
+          msg.add(buf.getLong());
+          break;
+        case 'c':
+          msg.add((char) buf.getInt());
+          break;
+        case 'T':
+          msg.add(true);
+          break;
+        case 'F':
+          msg.add(false);
+          break;
+        case 'b':
+          byte[] blob = new byte[buf.getInt()];
+          buf.get(blob);
+          buf.position(buf.position() + padded(blob.length) - blob.length);
+          msg.add(blob);
+          break;
+        default:
+          skipArgument(buf, c);
+          break;
+      }
+    }
+    return msg;
+  }
+
+  /**
+   * skip an argument left out of the decoded message (the raw bytes still
+   * carry it)
+   *
+   * @param buf message, positioned at the argument
+   * @param c argument type
+   * @throws IOException for types of unknown size
+   */
+  protected static void skipArgument(ByteBuffer buf, char c)
+      throws IOException {
+    switch (c) {
+      case 'N':
+      case 'I':
+      case '[':
+      case ']':
+        break;
+      case 'r':
+      case 'm':
+        buf.getInt();
+        break;
+      case 't':
+        buf.getLong();
+        break;
+      case 'S':
+        getString(buf);
+        break;
+      default:
+        throw new IOException(String.format(
+            "OSC message argument %s is invalid or not supported", c));
+    }
+  }
+
+  /**
+   * decode a padded, null terminated string
+   *
+   * @param buf buffer positioned at the string
+   * @return the string
+   */
+  protected static String getString(ByteBuffer buf) {
+    int start = buf.position();
+    int end = start;
+    while (buf.get(end) != 0) {
+      end++;
+    }
+    String str = new String(buf.array(), buf.arrayOffset() + start,
+        end - start, StandardCharsets.UTF_8);
+    buf.position(start + padded(end - start + 1));
+    return str;
+  }
+
+  /**
+   * @param n a size in bytes
+   * @return the size rounded up to a multiple of 4
+   */
+  protected static int padded(int n) {
+    return (n + 3) & ~3;
+  }
+}
@@ -0,0 +1,129 @@
+/**
+ * ##library.name##
+ * ##library.sentence##
+ * ##library.url##
+ *
+ * Copyright ##copyright## ##author##
+ * SPDX-License-Identifier: LGPL-3.0-or-later
+ *
+ * @author      ##author##
+ * @version     ##library.prettyVersion## (##library.version##)
+ *              Last modified: ##date##
+ */
+
+package net.zeroisnan.oscscorep5;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A remote destination of the played back packets, see
+ * {@link OscScoreP5#addDestination(String, int)}.
+ *
+ * <p>
+ * Each destination receives the messages accepted by its own filter, batched
+ * into one bundle per frame. Sends never block: a datagram the network stack
+ * can not take right away, or can not route at all, is dropped for this
+ * destination only and counted (see {@link #getDroppedDatagrams()}).
+ */
+public class OscDestination {
+  /** address of the destination */
+  protected final InetSocketAddress address;
+  /** address patterns of the messages sent (all when empty) */
+  protected final ScorePatterns patterns;
+  /** address filter, null to send every message */
+  protected volatile ScoreFilter filter;
+  /** bundle being batched for the current frame */
+  protected final OscBatch batch;
+  /** number of datagrams sent (written under the lock of the fan-out) */
+  protected volatile long sent;
+  /** number of datagrams dropped (written under the lock of the fan-out) */
+  protected volatile long dropped;
+  /** the last send failed (warned once until a send succeeds) */
+  protected volatile boolean failing;
+
+  /**
+   * constructor
+   *
+   * @param host host name or IP address
+   * @param port UDP port
+   * @param maxBytes largest datagram to send
+   * @throws IllegalArgumentException if the host can not be resolved or the
+   *           port is out of range
+   */
+  OscDestination(String host, int port, int maxBytes) {
+    this.address = new InetSocketAddress(host, port);
+    if (this.address.isUnresolved()) {
+      throw new IllegalArgumentException(
+          String.format("unknown host %s", host));
+    }
+    this.patterns = new ScorePatterns();
+    this.batch = new OscBatch(maxBytes);
+  }
+
+  /**
+   * @return host name or IP address of the destination
+   */
+  public String getHost() {
+    return this.address.getHostString();
+  }
+
+  /**
+   * @return UDP port of the destination
+   */
+  public int getPort() {
+    return this.address.getPort();
+  }
+
+  /**
+   * Send only the messages whose address matches an OSC address pattern (e.g.
+   * /synth/* or /acc/{x,y,z}) to this destination; can be called several
+   * times to send several address families. Raw datagrams are sent unchanged
+   * to destinations without filter, as decoded messages otherwise.
+   *
+   * @param pattern OSC address pattern
+   * @throws IllegalArgumentException if the pattern does not start with '/'
+   */
+  public synchronized void include(String pattern) {
+    this.filter = this.patterns.include(pattern);
+  }
+
+  /**
+   * Do not send the messages whose address matches an OSC address pattern to
+   * this destination, even when they match an included pattern, see
+   * {@link #include(String)}
+   *
+   * @param pattern OSC address pattern
+   * @throws IllegalArgumentException if the pattern does not start with '/'
+   */
+  public synchronized void exclude(String pattern) {
+    this.filter = this.patterns.exclude(pattern);
+  }
+
+  /**
+   * send every message again, see {@link #include(String)}
+   */
+  public synchronized void noFilter() {
+    this.patterns.clear();
+    this.filter = null;
+  }
+
+  /**
+   * @return number of datagrams sent to this destination
+   */
+  public long getSentDatagrams() {
+    return this.sent;
+  }
+
+  /**
+   * @return number of datagrams dropped because the network stack could not
+   *         take or route them
+   */
+  public long getDroppedDatagrams() {
+    return this.dropped;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s:%d", this.getHost(), this.getPort());
+  }
+}
@@ -0,0 +1,174 @@
+/**
+ * ##library.name##
+ * ##library.sentence##
+ * ##library.url##
+ *
+ * Copyright ##copyright## ##author##
+ * SPDX-License-Identifier: LGPL-3.0-or-later
+ *
+ * @author      ##author##
+ * @version     ##library.prettyVersion## (##library.version##)
+ *              Last modified: ##date##
+ */
+
+package net.zeroisnan.oscscorep5;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import oscP5.OscBundle;
+import oscP5.OscMessage;
+import oscP5.OscPacket;
+
+/**
+ * Send the played back packets to a set of remote destinations, through a
+ * single non-blocking datagram channel.
+ *
+ * <p>
+ * The messages accepted by each destination are batched until the end of the
+ * frame, then sent as one datagram per destination (more if they do not fit,
+ * see {@link OscBatch}). Each message is encoded once, whatever the number of
+ * destinations accepting it. The channel never blocks: a destination whose
+ * datagrams can not be taken or routed loses them, the others are not
+ * delayed.
+ */
+class OscFanout implements Closeable {
+  /** channel shared by all the destinations */
+  protected final DatagramChannel channel;
+  /** destinations */
+  protected final List<OscDestination> destinations;
+  /** wire format of the messages of the packet being sent, when encoded */
+  protected byte[][] encoded;
+
+  /**
+   * constructor
+   *
+   * @throws IOException if the channel can not be opened
+   */
+  OscFanout() throws IOException {
+    this.channel = DatagramChannel.open();
+    this.channel.configureBlocking(false);
+    this.destinations = new CopyOnWriteArrayList<OscDestination>();
+    this.encoded = new byte[8][];
+  }
+
+  /**
+   * @return destinations, in order of addition
+   */
+  List<OscDestination> getDestinations() {
+    return this.destinations;
+  }
+
+  /**
+   * send a packet to every destination accepting some of its messages
+   *
+   * @param pkt decoded packet
+   * @param raw datagram bytes as captured in raw mode, null if none
+   */
+  synchronized void send(OscPacket pkt, byte[] raw) {
+    boolean bundle = pkt instanceof OscBundle;
+    int count = bundle ? ((OscBundle) pkt).size() : 1;
+    if (this.encoded.length < count) {
+      this.encoded = new byte[count][];
+    }
+    for (OscDestination d : this.destinations) {
+      ScoreFilter filter = d.filter;
+      if (raw != null && filter == null) {
+        if (bundle) {
+          // sent alone to keep its timetag, after what was batched
+          this.flush(d);
+          this.send(d, ByteBuffer.wrap(raw));
+        } else {
+          this.batch(d, raw);
+        }
+        continue;
+      }
+      for (int i = 0; i < count; i++) {
+        OscMessage msg = bundle ? ((OscBundle) pkt).getMessage(i)
+            : (OscMessage) pkt;
+        if (filter == null || filter.accepts(msg.addrPattern())) {
+          if (this.encoded[i] == null) {
+            this.encoded[i] = msg.getBytes();
+          }
+          this.batch(d, this.encoded[i]);
+        }
+      }
+    }
+    Arrays.fill(this.encoded, 0, count, null);
+  }
+
+  /**
+   * end of a frame: send what was batched for each destination
+   */
+  synchronized void flush() {
+    for (OscDestination d : this.destinations) {
+      this.flush(d);
+    }
+  }
+
+  /**
+   * add a message to the batch of a destination, sending the batch first if
+   * the message would not fit
+   *
+   * @param d destination
+   * @param bytes message in wire format
+   */
+  protected void batch(OscDestination d, byte[] bytes) {
+    if (d.batch.isOversized(bytes)) {
+      this.flush(d);
+      this.send(d, ByteBuffer.wrap(bytes));
+    } else if (!d.batch.add(bytes)) {
+      this.flush(d);
+      d.batch.add(bytes);
+    }
+  }
+
+  /**
+   * send the batch of a destination
+   *
+   * @param d destination
+   */
+  protected void flush(OscDestination d) {
+    if (!d.batch.isEmpty()) {
+      this.send(d, d.batch.datagram());
+      d.batch.clear();
+    }
+  }
+
+  /**
+   * send a datagram without blocking, dropping it if it can not be sent
+   *
+   * @param d destination
+   * @param datagram datagram to send
+   */
+  protected void send(OscDestination d, ByteBuffer datagram) {
+    try {
+      if (this.channel.send(datagram, d.address) == 0) {
+        // the socket buffer is full
+        d.dropped++;
+      } else {
+        d.sent++;
+        d.failing = false;
+      }
+    } catch (IOException e) {
+      d.dropped++;
+      if (!d.failing) {
+        d.failing = true;
+        System.err.println(String.format(
+            "WARNING: unable to send to %s, dropping its datagrams: %s", d,
+            e.getMessage()));
+      }
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    this.flush();
+    this.channel.close();
+  }
+}
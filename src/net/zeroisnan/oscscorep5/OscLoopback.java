@@ -27,4 +27,23 @@ public interface OscLoopback {
    */
   abstract public void loopback(OscPacket msg);
 
+  /**
+   * send a packet captured in wire format to itself; by default the decoded
+   * packet is sent, implementations able to inject datagrams should send the
+   * bytes unchanged (bundle structure and timetags included)
+   *
+   * @param msg decoded packet
+   * @param raw datagram bytes as received
+   */
+  default public void loopback(OscPacket msg, byte[] raw) {
+    this.loopback(msg);
+  }
+
+  /**
+   * end of a frame: implementations batching the looped back packets send
+   * what they have batched so far; by default nothing is batched
+   */
+  default public void flush() {
+  }
+
 }
@@ -0,0 +1,178 @@
+/**
+ * ##library.name##
+ * ##library.sentence##
+ * ##library.url##
+ *
+ * Copyright ##copyright## ##author##
+ * SPDX-License-Identifier: LGPL-3.0-or-later
+ *
+ * @author      ##author##
+ * @version     ##library.prettyVersion## (##library.version##)
+ *              Last modified: ##date##
+ */
+
+package net.zeroisnan.oscscorep5;
+
+/**
+ * OSC 1.0 address pattern matching, with the OSC 1.1 path traversal.
+ * <ul>
+ * <li>? : any single character
+ * <li>* : any sequence of zero or more characters
+ * <li>[abc], [a-z], [!a-z] : any character in (or not in) the list
+ * <li>{foo,bar} : any of the strings
+ * <li>// or a /** part : any sequence of zero or more address parts, e.g.
+ * /synth/** matches /synth/freq and /synth/voice/1, //freq matches /freq and
+ * /synth/voice/freq
+ * </ul>
+ * Apart from the path traversal, none of the wildcards matches the '/'
+ * separating the address parts.
+ */
+final class OscPattern {
+  /**
+   * prevent the class from being newed
+   */
+  private OscPattern() {
+    throw new AssertionError();
+  }
+
+  /**
+   * @param pattern OSC address pattern
+   * @param address OSC address
+   * @return the address matches the pattern
+   */
+  static boolean matches(String pattern, String address) {
+    if (!pattern.contains("//") && !pattern.contains("**")) {
+      return matches(pattern, 0, address, 0);
+    }
+    return matches(pattern.split("/", -1), 0, address.split("/", -1), 0);
+  }
+
+  /**
+   * @param parts parts of an address pattern, split at '/'
+   * @param i index of a part, after the leading one
+   * @return the part matches any sequence of zero or more address parts: a
+   *         part made of "**", or the empty part of a "//"
+   */
+  static boolean isTraversal(String[] parts, int i) {
+    return parts[i].equals("**")
+        || (parts[i].isEmpty() && i + 1 < parts.length);
+  }
+
+  /**
+   * @param p pattern parts
+   * @param pi index in the pattern parts
+   * @param a address parts
+   * @param ai index in the address parts
+   * @return the rest of the address parts match the rest of the pattern parts
+   */
+  protected static boolean matches(String[] p, int pi, String[] a, int ai) {
+    if (pi == p.length) {
+      return ai == a.length;
+    }
+    if (pi > 0 && isTraversal(p, pi)) {
+      for (int i = ai; i <= a.length; i++) {
+        if (matches(p, pi + 1, a, i)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    return ai < a.length && matches(p[pi], 0, a[ai], 0)
+        && matches(p, pi + 1, a, ai + 1);
+  }
+
+  /**
+   * @param p pattern
+   * @param pi index in the pattern
+   * @param a address
+   * @param ai index in the address
+   * @return the rest of the address matches the rest of the pattern
+   */
+  protected static boolean matches(String p, int pi, String a, int ai) {
+    while (pi < p.length()) {
+      char c = p.charAt(pi);
+      switch (c) {
+        case '*':
+          // collapse consecutive stars, then try every split within the part
+          while (pi < p.length() && p.charAt(pi) == '*') {
+            pi++;
+          }
+          for (int i = ai; i <= a.length(); i++) {
+            if (matches(p, pi, a, i)) {
+              return true;
+            }
+            if (i < a.length() && a.charAt(i) == '/') {
+              return false;
+            }
+          }
+          return false;
+        case '?':
+          if (ai >= a.length() || a.charAt(ai) == '/') {
+            return false;
+          }
+          pi++;
+          ai++;
+          break;
+        case '[': {
+          int end = p.indexOf(']', pi + 1);
+          if (end < 0 || ai >= a.length() || a.charAt(ai) == '/'
+              || !inList(p, pi + 1, end, a.charAt(ai))) {
+            return false;
+          }
+          pi = end + 1;
+          ai++;
+          break;
+        }
+        case '{': {
+          int end = p.indexOf('}', pi + 1);
+          if (end < 0) {
+            return false;
+          }
+          for (int start = pi + 1; start <= end;) {
+            int comma = p.indexOf(',', start);
+            int stop = (comma < 0 || comma > end) ? end : comma;
+            String alt = p.substring(start, stop);
+            if (a.startsWith(alt, ai)
+                && matches(p, end + 1, a, ai + alt.length())) {
+              return true;
+            }
+            start = stop + 1;
+          }
+          return false;
+        }
+        default:
+          if (ai >= a.length() || a.charAt(ai) != c) {
+            return false;
+          }
+          pi++;
+          ai++;
+          break;
+      }
+    }
+    return ai == a.length();
+  }
+
+  /**
+   * @param p pattern
+   * @param start index of the first character of the list (after '[')
+   * @param end index of the closing ']'
+   * @param c character to look up
+   * @return the character is in the list (or not in a '!' list)
+   */
+  protected static boolean inList(String p, int start, int end, char c) {
+    boolean negate = start < end && p.charAt(start) == '!';
+    if (negate) {
+      start++;
+    }
+    boolean found = false;
+    for (int i = start; i < end && !found; i++) {
+      if (i + 2 < end && p.charAt(i + 1) == '-') {
+        found = p.charAt(i) <= c && c <= p.charAt(i + 2);
+        i += 2;
+      } else {
+        found = p.charAt(i) == c;
+      }
+    }
+    return found != negate;
+  }
+}
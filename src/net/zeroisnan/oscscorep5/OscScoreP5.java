@@ -13,7 +13,21 @@
 
 package net.zeroisnan.oscscorep5;
 
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 import netP5.NetAddress;
+import oscP5.OscBundle;
+import oscP5.OscEventListener;
+import oscP5.OscMessage;
 import oscP5.OscP5;
 import oscP5.OscPacket;
 import processing.core.PApplet;
@@ -23,7 +37,9 @@ import processing.core.PApplet;
  *
  * <p>
  * Incoming OSC messages are recorded into a XML file (the score) and played
- * back by reading the XML file and generating OSC messages locally.
+ * back by reading the XML file and generating OSC messages locally. The
+ * capture() mode records the incoming datagrams in wire format instead, and
+ * plays them back unchanged.
  * <p>
  * A typical use case is a Processing sketch controlled via OSC messages from
  * external agents like SuperCollider, MAX, TouchOsc, OSSIA score, etc. By
@@ -37,12 +53,84 @@ import processing.core.PApplet;
  * attached to the {@link ScorePlayer} class. This is needed when implementing
  * lower level functionality bypassing the rec() and play() facilities offered
  * by this class.
+ * <p>
+ * By default looped back packets are dispatched in-process: they are handed
+ * straight to the plugs, to the oscEvent() method of the sketch and to the
+ * registered listeners, on the thread invoking loopback() (the animation
+ * thread for frame based playback). This skips serialization, the network
+ * stack and the OscP5 receive thread, so playback can not lose datagrams.
+ * Setting {@link LoopbackMode#UDP} restores the original behaviour, where
+ * packets are sent over UDP to 127.0.0.1 on the local port.
+ * <p>
+ * In UDP mode, {@link #setBatching(int)} groups the packets due on the same
+ * frame into a single bundle, sent as one datagram at the end of the frame
+ * rather than one datagram per packet. Bundles are split so that no datagram
+ * exceeds the given size (e.g. {@link #MTU_BATCH_BYTES} to avoid IP
+ * fragmentation).
+ * <p>
+ * Played back packets can also be sent to remote destinations, e.g. render
+ * nodes driven by this sketch, see {@link #addDestination(String, int)}: each
+ * one has its own address filter and gets one bundle per frame, through a
+ * single non-blocking channel, whatever the loopback mode.
  */
 public class OscScoreP5 extends OscP5 implements OscLoopback {
   /** package version string */
   public final static String VERSION = "##library.prettyVersion##";
+  /** target frame rate while rendering offline (as fast as possible) */
+  public final static float RENDER_FRAMERATE = 1000;
+  /** largest UDP payload fitting an Ethernet frame without fragmentation */
+  public final static int MTU_BATCH_BYTES = 1472;
+
+  /**
+   * how looped back packets are delivered
+   * <ul>
+   * <li>DIRECT : in-process, no serialization
+   * <li>UDP : through a UDP datagram sent to the local port
+   * </ul>
+   */
+  public enum LoopbackMode {
+    DIRECT, UDP
+  }
+
+  /**
+   * a method plugged to an address pattern, see
+   * {@link OscP5#plug(Object, String, String)}
+   */
+  protected static class Plug {
+    /** object owning the method */
+    final Object target;
+    /** plugged method(s), all overloads with the plugged name */
+    final List<Method> methods;
+    /** address pattern */
+    final String address;
+
+    Plug(Object target, String name, String address) {
+      this.target = target;
+      this.address = address;
+      this.methods = new CopyOnWriteArrayList<Method>();
+      for (Class<?> c = target.getClass(); c != null; c = c.getSuperclass()) {
+        for (Method m : c.getDeclaredMethods()) {
+          if (m.getName().equals(name)) {
+            m.setAccessible(true);
+            this.methods.add(m);
+          }
+        }
+      }
+    }
+  }
+
   /** local address */
   protected NetAddress loopback;
+  /** local port */
+  protected int localport;
+  /** socket used to loop back raw datagrams and batches in UDP mode */
+  protected DatagramSocket rawsocket;
+  /** bundle being batched (UDP mode), null when batching is disabled */
+  protected OscBatch batch;
+  /** number of datagrams looped back in UDP mode */
+  protected volatile long datagrams;
+  /** remote destinations of the looped back packets, null if none */
+  protected volatile OscFanout fanout;
   /** debug flag */
   protected boolean debug;
   /** handle to score player (when enabled) */
@@ -50,6 +138,15 @@ public class OscScoreP5 extends OscP5 implements OscLoopback {
   /** handle to score recorder (when enabled) */
   protected ScoreRecorder recorder;
 
+  /** how looped back packets are delivered */
+  protected LoopbackMode loopbackMode;
+  /** registered listeners (for in-process dispatch) */
+  protected List<OscEventListener> listeners;
+  /** registered plugs (for in-process dispatch) */
+  protected List<Plug> plugs;
+  /** oscEvent(OscMessage) method of the parent sketch, if any */
+  protected Method parentOscEvent;
+
   /**
    * constructor (full blown)
    *
@@ -61,6 +158,18 @@ public class OscScoreP5 extends OscP5 implements OscLoopback {
     // TODO check port number and throw exception if bas
     super(p, localport);
     this.loopback = new NetAddress("127.0.0.1", localport);
+    this.localport = localport;
+    this.loopbackMode = LoopbackMode.DIRECT;
+    this.listeners = new CopyOnWriteArrayList<OscEventListener>();
+    this.plugs = new CopyOnWriteArrayList<Plug>();
+    try {
+      this.parentOscEvent = p.getClass().getDeclaredMethod("oscEvent",
+          OscMessage.class);
+      this.parentOscEvent.setAccessible(true);
+    } catch (NoSuchMethodException | SecurityException e) {
+      // the sketch does not handle OSC messages
+      this.parentOscEvent = null;
+    }
     this.setDebug(debug);
   }
 
@@ -85,7 +194,340 @@ public class OscScoreP5 extends OscP5 implements OscLoopback {
 
   @Override
   public void loopback(OscPacket msg) {
-    super.send(msg, this.loopback);
+    OscFanout f = this.fanout;
+    if (f != null) {
+      f.send(msg, null);
+    }
+    if (this.loopbackMode == LoopbackMode.UDP) {
+      if (!this.batch(msg)) {
+        this.datagrams++;
+        super.send(msg, this.loopback);
+      }
+    } else if (msg instanceof OscBundle) {
+      // the receive path of OscP5 flattens bundles too
+      OscBundle bundle = (OscBundle) msg;
+      for (int i = 0; i < bundle.size(); i++) {
+        this.dispatch(bundle.getMessage(i));
+      }
+    } else {
+      this.dispatch((OscMessage) msg);
+    }
+  }
+
+  /**
+   * loop back a datagram captured in raw mode, unchanged: in DIRECT mode it
+   * goes through the receive path of OscP5 (which decodes it and honours its
+   * bundle structure), in UDP mode it is sent as is to the local port
+   *
+   * @param msg decoded packet
+   * @param raw datagram bytes as received
+   */
+  @Override
+  public void loopback(OscPacket msg, byte[] raw) {
+    OscFanout f = this.fanout;
+    if (f != null) {
+      f.send(msg, raw);
+    }
+    if (this.loopbackMode == LoopbackMode.UDP) {
+      // bundles are sent alone to keep their timetag
+      if (msg instanceof OscBundle || !this.batch(raw)) {
+        this.sendAlone(raw);
+      }
+    } else {
+      // not seen by the capture in process(): super is invoked directly
+      super.process(new DatagramPacket(raw, raw.length), this.localport);
+    }
+  }
+
+  /**
+   * add the messages of a packet to the bundle being batched
+   *
+   * @param msg packet to add
+   * @return false if batching is disabled (nothing was added)
+   */
+  protected synchronized boolean batch(OscPacket msg) {
+    if (this.batch == null) {
+      return false;
+    }
+    if (msg instanceof OscBundle) {
+      // the receive path of OscP5 flattens bundles anyway
+      OscBundle bundle = (OscBundle) msg;
+      for (int i = 0; i < bundle.size(); i++) {
+        this.batch(bundle.getMessage(i).getBytes());
+      }
+    } else {
+      this.batch(msg.getBytes());
+    }
+    return true;
+  }
+
+  /**
+   * add a message to the bundle being batched, sending the bundle first if the
+   * message would not fit
+   *
+   * @param bytes message in wire format
+   * @return false if batching is disabled (nothing was added)
+   */
+  protected synchronized boolean batch(byte[] bytes) {
+    if (this.batch == null) {
+      return false;
+    }
+    if (this.batch.isOversized(bytes)) {
+      this.sendAlone(bytes);
+    } else if (!this.batch.add(bytes)) {
+      this.flush();
+      this.batch.add(bytes);
+    }
+    return true;
+  }
+
+  /**
+   * send a datagram on its own, after what was batched
+   *
+   * @param bytes datagram to send
+   */
+  protected synchronized void sendAlone(byte[] bytes) {
+    this.flush();
+    this.sendDatagram(bytes, 0, bytes.length);
+  }
+
+  /**
+   * send the bundle being batched as a single datagram (a lone message is
+   * sent without the bundle around it), and the batches of the remote
+   * destinations
+   */
+  @Override
+  public synchronized void flush() {
+    OscFanout f = this.fanout;
+    if (f != null) {
+      f.flush();
+    }
+    if (this.batch == null || this.batch.isEmpty()) {
+      return;
+    }
+    ByteBuffer datagram = this.batch.datagram();
+    this.sendDatagram(datagram.array(), datagram.position(),
+        datagram.remaining());
+    this.batch.clear();
+  }
+
+  /**
+   * send a datagram to the local port
+   *
+   * @param bytes buffer holding the datagram
+   * @param off offset of the datagram in the buffer
+   * @param len length of the datagram
+   */
+  protected void sendDatagram(byte[] bytes, int off, int len) {
+    try {
+      if (this.rawsocket == null) {
+        this.rawsocket = new DatagramSocket();
+      }
+      this.rawsocket.send(new DatagramPacket(bytes, off, len,
+          InetAddress.getLoopbackAddress(), this.localport));
+      this.datagrams++;
+    } catch (IOException e) {
+      ScoreUtils.handleException(e, "loopback failed");
+    }
+  }
+
+  /**
+   * hand each received datagram to the recorder when capturing in raw mode,
+   * then process it as usual
+   *
+   * @param thePacket received datagram
+   * @param thePort local port
+   */
+  @Override
+  public void process(DatagramPacket thePacket, int thePort) {
+    ScoreRecorder r = this.recorder;
+    if (r != null && r.isRawCapture()) {
+      r.capture(thePacket);
+    }
+    super.process(thePacket, thePort);
+  }
+
+  /**
+   * deliver a message in-process to plugs, sketch and listeners
+   *
+   * @param msg message to deliver
+   */
+  protected void dispatch(OscMessage msg) {
+    for (Plug plug : this.plugs) {
+      if (plug.address.equals(msg.addrPattern())) {
+        this.invokePlug(plug, msg);
+      }
+    }
+
+    if (this.parentOscEvent != null) {
+      try {
+        this.parentOscEvent.invoke(this.parent, msg);
+      } catch (IllegalAccessException | InvocationTargetException e) {
+        ScoreUtils.handleException(e, "oscEvent() failed");
+      }
+    }
+
+    for (OscEventListener l : this.listeners) {
+      l.oscEvent(msg);
+    }
+  }
+
+  /**
+   * invoke the overload of a plugged method matching the message arguments
+   *
+   * @param plug plugged method(s)
+   * @param msg message to deliver
+   */
+  protected void invokePlug(Plug plug, OscMessage msg) {
+    Object[] args = msg.arguments();
+    for (Method m : plug.methods) {
+      Class<?>[] types = m.getParameterTypes();
+      try {
+        if (types.length == 1 && types[0] == OscMessage.class) {
+          m.invoke(plug.target, msg);
+          return;
+        } else if (types.length == args.length) {
+          m.invoke(plug.target, args);
+          return;
+        }
+      } catch (IllegalArgumentException e) {
+        // argument types do not match this overload, try the next one
+      } catch (IllegalAccessException | InvocationTargetException e) {
+        ScoreUtils.handleException(e,
+            String.format("plug %s failed", m.getName()));
+        return;
+      }
+    }
+  }
+
+  @Override
+  public void addListener(OscEventListener theListener) {
+    super.addListener(theListener);
+    this.listeners.add(theListener);
+  }
+
+  @Override
+  public void removeListener(OscEventListener theListener) {
+    super.removeListener(theListener);
+    this.listeners.remove(theListener);
+  }
+
+  @Override
+  public void plug(Object theObject, String theMethodName,
+      String theAddrPattern) {
+    super.plug(theObject, theMethodName, theAddrPattern);
+    this.plugs.add(new Plug(theObject, theMethodName, theAddrPattern));
+  }
+
+  /**
+   * @return how looped back packets are delivered
+   */
+  public LoopbackMode getLoopbackMode() {
+    return loopbackMode;
+  }
+
+  /**
+   * @param loopbackMode DIRECT (in-process, default) or UDP (through the
+   *          network stack, as in earlier versions)
+   */
+  public void setLoopbackMode(LoopbackMode loopbackMode) {
+    this.flush();
+    this.loopbackMode = loopbackMode;
+  }
+
+  /**
+   * @return largest datagram sent when batching, 0 if batching is disabled
+   */
+  public synchronized int getBatching() {
+    return (this.batch != null) ? this.batch.capacity() : 0;
+  }
+
+  /**
+   * Batch the packets looped back in UDP mode: the packets due on the same
+   * frame are grouped into bundles of at most maxBytes bytes, each sent as a
+   * single datagram at the end of the frame. Bundles captured in raw mode are
+   * still sent alone, to keep their timetag. No effect in DIRECT mode.
+   *
+   * @param maxBytes largest datagram to send, e.g. {@link #MTU_BATCH_BYTES};
+   *          0 disables batching (default)
+   */
+  public synchronized void setBatching(int maxBytes) {
+    this.flush();
+    if (maxBytes <= 0) {
+      this.batch = null;
+      return;
+    }
+    this.batch = new OscBatch(maxBytes);
+  }
+
+  /**
+   * @return number of datagrams looped back in UDP mode, batches included
+   */
+  public long getLoopbackDatagrams() {
+    return this.datagrams;
+  }
+
+  /**
+   * Send the played back packets to a remote destination too, e.g. another
+   * machine rendering the same score. Use the returned destination to filter
+   * the messages it receives, see {@link OscDestination#include(String)}.
+   *
+   * @param host host name or IP address
+   * @param port UDP port
+   * @return the new destination
+   * @throws IllegalArgumentException if the host can not be resolved or the
+   *           port is out of range
+   */
+  public synchronized OscDestination addDestination(String host, int port) {
+    OscDestination d = new OscDestination(host, port, MTU_BATCH_BYTES);
+    if (this.fanout == null) {
+      try {
+        this.fanout = new OscFanout();
+      } catch (IOException e) {
+        ScoreUtils.handleException(e, "unable to open the playback channel");
+        return null;
+      }
+    }
+    this.fanout.getDestinations().add(d);
+    return d;
+  }
+
+  /**
+   * stop sending the played back packets to a remote destination
+   *
+   * @param d destination returned by {@link #addDestination(String, int)}
+   */
+  public synchronized void removeDestination(OscDestination d) {
+    if (this.fanout != null) {
+      this.fanout.flush();
+      this.fanout.getDestinations().remove(d);
+    }
+  }
+
+  /**
+   * @return remote destinations of the played back packets
+   */
+  public List<OscDestination> getDestinations() {
+    return (this.fanout == null) ? Collections.<OscDestination> emptyList()
+        : Collections.unmodifiableList(this.fanout.getDestinations());
+  }
+
+  @Override
+  public void stop() {
+    this.flush();
+    if (this.fanout != null) {
+      try {
+        this.fanout.close();
+      } catch (IOException e) {
+        ScoreUtils.handleException(e, "unable to close the playback channel");
+      }
+      this.fanout = null;
+    }
+    if (this.rawsocket != null) {
+      this.rawsocket.close();
+      this.rawsocket = null;
+    }
+    super.stop();
   }
 
   /**
@@ -115,16 +557,60 @@ public class OscScoreP5 extends OscP5 implements OscLoopback {
     }
   }
 
+  /**
+   * @return the score player (null when no score is loaded for playback)
+   */
+  public ScorePlayer getPlayer() {
+    return this.player;
+  }
+
   /**
    * playback the OSC score
    *
-   * @param xmlpath path to XML OSC score file
+   * @param xmlpath path to OSC score file (binary if ending with .oscb, gzip
+   *          compressed XML if ending with .gz, XML otherwise)
    */
   public void play(String xmlpath) {
     this.player = new ScorePlayer((PApplet) this.parent, xmlpath, this,
         this.debug);
   }
 
+  /**
+   * playback several OSC scores at once, merged into a single timeline; use
+   * getPlayer().getTracks() to mute, solo or offset each track
+   *
+   * @param xmlpaths paths to OSC score files, one per track
+   */
+  public void playTracks(String... xmlpaths) {
+    this.player = new ScorePlayer((PApplet) this.parent, xmlpaths, this,
+        this.debug);
+  }
+
+  /**
+   * Render the OSC score offline: every frame receives exactly the events
+   * recorded for that frame, dispatched in-process, and the sketch frame rate
+   * is raised so that draw() runs as fast as it can. This is meant for non
+   * real time rendering, e.g. exporting frames with saveFrame(): the score
+   * takes as long as the sketch needs to draw it, not its recorded duration.
+   * Use {@link #isFinished()} to know when to stop.
+   *
+   * @param xmlpath path to OSC score file (binary if ending with .oscb, gzip
+   *          compressed XML if ending with .gz, XML otherwise)
+   */
+  public void render(String xmlpath) {
+    this.setLoopbackMode(LoopbackMode.DIRECT);
+    this.play(xmlpath);
+    this.player.setScheduleMode(ScorePlayer.ScheduleMode.LOCKSTEP);
+    ((PApplet) this.parent).frameRate(RENDER_FRAMERATE);
+  }
+
+  /**
+   * @return true when the score loaded for playback has been fully played
+   */
+  public boolean isFinished() {
+    return this.player == null || this.player.isFinished();
+  }
+
   /**
    * rewind the OSC score
    */
@@ -139,14 +625,55 @@ public class OscScoreP5 extends OscP5 implements OscLoopback {
     }
   }
 
+  /**
+   * move the OSC score to a frame
+   *
+   * @param frame frame to move to
+   */
+  public void seek(int frame) {
+    if (this.player != null) {
+      this.player.seek(frame);
+    } else {
+      System.err.println(
+          "OscScoreP5: seek requested, but no score loaded for playback...");
+    }
+  }
+
   /**
    * Record incoming OSC packets
    *
-   * @param xmlpath path to XML OSC score file
+   * @param xmlpath path to OSC score file (binary if ending with .oscb, gzip
+   *          compressed XML if ending with .gz, XML otherwise)
    */
   public void rec(String xmlpath) {
+    this.rec(xmlpath, false);
+  }
+
+  /**
+   * Record incoming OSC packets
+   *
+   * @param xmlpath path to OSC score file (binary if ending with .oscb, gzip
+   *          compressed XML if ending with .gz, XML otherwise)
+   * @param timestamps also store nanosecond timestamps, to allow playback in
+   *          {@link ScorePlayer.ScheduleMode#TIME} mode
+   */
+  public void rec(String xmlpath, boolean timestamps) {
     this.recorder = new ScoreRecorder((PApplet) this.parent, xmlpath);
+    this.recorder.setTimestamps(timestamps);
     this.addListener(this.recorder);
   }
 
+  /**
+   * Record incoming OSC datagrams exactly as received, with their frame and
+   * nanosecond timestamp, skipping the decoding of the messages: bundles keep
+   * their structure and timetags, and playback re-injects the very same bytes.
+   *
+   * @param path path to the binary OSC score file (ending with .oscb)
+   */
+  public void capture(String path) {
+    this.recorder = new ScoreRecorder((PApplet) this.parent, path);
+    this.recorder.setTimestamps(true);
+    this.recorder.setRawCapture(true);
+  }
+
 }
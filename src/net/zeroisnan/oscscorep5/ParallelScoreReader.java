@@ -0,0 +1,273 @@
+/**
+ * ##library.name##
+ * ##library.sentence##
+ * ##library.url##
+ *
+ * Copyright ##copyright## ##author##
+ * SPDX-License-Identifier: LGPL-3.0-or-later
+ *
+ * @author      ##author##
+ * @version     ##library.prettyVersion## (##library.version##)
+ *              Last modified: ##date##
+ */
+
+package net.zeroisnan.oscscorep5;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Read a large uncompressed XML score with several threads, for the jobs
+ * going through the whole score (conversion, statistics, validation...).
+ *
+ * <p>
+ * The score is cut into chunks of whole packets at the offsets of its frame
+ * index (see {@link ScoreIndex}), and the chunks are decoded in parallel on
+ * the fork/join common pool, each one by its own {@link XmlScoreReader}. The
+ * chunks are decoded a wave at a time: a wave is split in halves down to
+ * single chunks, whose events are concatenated back in score order when the
+ * halves are joined. The next wave is decoded while the events of the current
+ * one are consumed, so at most two waves are held in memory; the chunks are
+ * made smaller on machines with many threads, so that two waves span about
+ * {@link #MAX_INFLIGHT_BYTES} of the score at most.
+ *
+ * <p>
+ * A frame index built here is not stored next to the score: the passes over
+ * the score are read only.
+ */
+class ParallelScoreReader implements ScoreReader {
+  /** minimum size of a chunk in bytes */
+  final static long MIN_CHUNK_BYTES = 256 << 10;
+  /** maximum size of a chunk in bytes */
+  final static long MAX_CHUNK_BYTES = 8 << 20;
+  /** maximum size of the score bytes decoded in the two waves in memory */
+  final static long MAX_INFLIGHT_BYTES = 64 << 20;
+
+  /**
+   * decode a range of chunks, splitting it in halves
+   */
+  class ChunkTask extends RecursiveTask<List<ScoreEvent>> {
+    private static final long serialVersionUID = 1L;
+
+    /** first chunk of the range */
+    final int lo;
+    /** first chunk after the range */
+    final int hi;
+    /** filter of the chunk readers */
+    final ScoreFilter filter;
+
+    /**
+     * constructor
+     *
+     * @param lo first chunk of the range
+     * @param hi first chunk after the range
+     * @param filter address filter, null to read every message
+     */
+    ChunkTask(int lo, int hi, ScoreFilter filter) {
+      this.lo = lo;
+      this.hi = hi;
+      this.filter = filter;
+    }
+
+    @Override
+    protected List<ScoreEvent> compute() {
+      if (this.hi - this.lo == 1) {
+        try (XmlScoreReader reader = new XmlScoreReader(path)) {
+          reader.setFilter(this.filter);
+          return reader.readChunk(starts[this.lo], (this.lo + 1 < starts.length)
+              ? starts[this.lo + 1] : size);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+      int mid = (this.lo + this.hi) >>> 1;
+      ChunkTask left = new ChunkTask(this.lo, mid, this.filter);
+      left.fork();
+      List<ScoreEvent> right = new ChunkTask(mid, this.hi, this.filter)
+          .compute();
+      // back in score order
+      List<ScoreEvent> events = left.join();
+      events.addAll(right);
+      return events;
+    }
+  }
+
+  /** path to the XML score */
+  protected final String path;
+  /** size of the score in bytes */
+  protected final long size;
+  /** offset of the first packet of each chunk */
+  protected final long[] starts;
+  /** number of chunks decoded at once */
+  protected final int wave;
+  /** frame index of the score */
+  protected final ScoreIndex index;
+  /** header of the score, null if it has none */
+  protected final ScoreHeader header;
+  /** the score lacks its closing tag (unterminated recording) */
+  protected final boolean truncated;
+  /** address filter (null to read every message) */
+  protected ScoreFilter filter;
+
+  /** events of the wave being consumed */
+  protected List<ScoreEvent> block;
+  /** next event of the block */
+  protected int pos;
+  /** wave being decoded in background, null if none */
+  protected ForkJoinTask<List<ScoreEvent>> next;
+  /** first chunk of the wave decoded in background */
+  protected int nextChunk;
+  /** events before this frame are skipped (seek) */
+  protected int skipBefore;
+
+  /**
+   * constructor
+   *
+   * @param path path to an uncompressed XML score
+   * @throws IOException if the score can not be opened or is invalid
+   */
+  ParallelScoreReader(String path) throws IOException {
+    this.path = path;
+    this.size = new File(path).length();
+    try (XmlScoreReader reader = new XmlScoreReader(path)) {
+      this.header = reader.getHeader();
+    }
+    try (FileInputStream fis = new FileInputStream(path)) {
+      this.truncated = !XmlScoreReader.isTerminated(fis);
+    }
+    this.index = ScoreIndex.open(path, false);
+    int parallelism = ForkJoinPool.getCommonPoolParallelism();
+    this.wave = (int) Math.min(Math.max(parallelism, 2),
+        MAX_INFLIGHT_BYTES / (2 * MIN_CHUNK_BYTES));
+    long chunk = Math.min(this.size / (4 * parallelism),
+        MAX_INFLIGHT_BYTES / (2 * this.wave));
+    this.starts = this.index.split(Math.min(MAX_CHUNK_BYTES,
+        Math.max(MIN_CHUNK_BYTES, chunk)));
+    this.rewind();
+  }
+
+  /**
+   * @param path path to a score
+   * @return the score is worth decoding with several threads (large,
+   *         uncompressed XML score)
+   */
+  static boolean isEligible(String path) {
+    File f = new File(path);
+    return f.isFile() && !path.endsWith(BinScoreFormat.EXTENSION)
+        && !path.endsWith(XmlScoreReader.COMPRESSED_EXTENSION)
+        && f.length() >= 2 * MIN_CHUNK_BYTES;
+  }
+
+  @Override
+  public String getPath() {
+    return this.path;
+  }
+
+  @Override
+  public ScoreEvent next() throws IOException {
+    while (true) {
+      while (this.pos < this.block.size()) {
+        ScoreEvent ev = this.block.get(this.pos++);
+        if (ev.getFrame() >= this.skipBefore) {
+          return ev;
+        }
+      }
+      if (this.next == null) {
+        return null;
+      }
+      // wait for the next wave, and start decoding the one after
+      try {
+        this.block = this.next.join();
+      } catch (UncheckedIOException e) {
+        this.next = null;
+        throw e.getCause();
+      }
+      this.pos = 0;
+      this.submit(this.nextChunk + this.wave);
+    }
+  }
+
+  @Override
+  public void rewind() throws IOException {
+    this.restart(0, Integer.MIN_VALUE);
+  }
+
+  @Override
+  public void seek(int frame) throws IOException {
+    // start from the chunk holding the index entry before the frame
+    long offset = this.index.lookup(frame);
+    int chunk = 0;
+    while (chunk + 1 < this.starts.length
+        && this.starts[chunk + 1] <= offset) {
+      chunk++;
+    }
+    this.restart(chunk, frame);
+  }
+
+  @Override
+  public void setFilter(ScoreFilter filter) {
+    this.filter = filter;
+  }
+
+  @Override
+  public ScoreHeader getHeader() {
+    return this.header;
+  }
+
+  @Override
+  public boolean isTruncated() {
+    return this.truncated && this.next == null
+        && this.pos >= this.block.size();
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.cancel();
+  }
+
+  /**
+   * drop the decoded events and decode again from a chunk
+   *
+   * @param chunk first chunk to decode
+   * @param frame events before this frame are skipped
+   */
+  protected void restart(int chunk, int frame) {
+    this.cancel();
+    this.block = new ArrayList<ScoreEvent>();
+    this.pos = 0;
+    this.skipBefore = frame;
+    this.submit(chunk);
+  }
+
+  /**
+   * start decoding a wave in background
+   *
+   * @param chunk first chunk of the wave
+   */
+  protected void submit(int chunk) {
+    if (chunk >= this.starts.length) {
+      this.next = null;
+      return;
+    }
+    this.nextChunk = chunk;
+    this.next = ForkJoinPool.commonPool().submit(new ChunkTask(chunk,
+        Math.min(chunk + this.wave, this.starts.length), this.filter));
+  }
+
+  /**
+   * cancel the wave being decoded, if any
+   */
+  protected void cancel() {
+    if (this.next != null) {
+      this.next.cancel(false);
+      this.next = null;
+    }
+  }
+}
@@ -13,17 +13,11 @@
 
 package net.zeroisnan.oscscorep5;
 
-import javax.xml.bind.annotation.XmlAccessType;
-import javax.xml.bind.annotation.XmlAccessorType;
-import javax.xml.bind.annotation.XmlAttribute;
-import javax.xml.bind.annotation.XmlRootElement;
-
-@XmlAccessorType(XmlAccessType.FIELD)
-@XmlRootElement(name = "arg")
+//-----------------------------------------------
+//these bean classes model the XML schema of the score
+//-----------------------------------------------
 class ScoreDataArg {
-  @XmlAttribute
   private String type;
-  @XmlAttribute
   private String value;
 
   public ScoreDataArg() {
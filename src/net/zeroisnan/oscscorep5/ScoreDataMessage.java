@@ -14,23 +14,17 @@
 package net.zeroisnan.oscscorep5;
 
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
 
-import javax.xml.bind.annotation.*;
-
 import oscP5.OscMessage;
 
 //-----------------------------------------------
-//these bean classes are used to marshal/unmarshal XML
+//these bean classes model the XML schema of the score
 //-----------------------------------------------
-@XmlAccessorType(XmlAccessType.FIELD)
-@XmlRootElement(name = "message")
 class ScoreDataMessage {
-  @XmlAttribute
   private String address;
-  @XmlAttribute
   private String typetag;
-  @XmlElement(name = "arg", type = ScoreDataArg.class)
   private List<ScoreDataArg> args = new ArrayList<ScoreDataArg>();
 
   public ScoreDataMessage() {
@@ -64,6 +58,55 @@ class ScoreDataMessage {
     this.args = args;
   }
 
+  static ScoreDataMessage fromOscMessage(OscMessage msg) {
+    // extract all relevant information from the message
+    ScoreDataMessage mmm = new ScoreDataMessage();
+    mmm.setAddress(msg.addrPattern());
+    mmm.setTypetag(msg.typetag());
+
+    ArrayList<ScoreDataArg> args = new ArrayList<ScoreDataArg>();
+    for (int i = 0; i < msg.typetag().length(); i++) {
+      ScoreDataArg arg = new ScoreDataArg();
+      char c = msg.typetag().charAt(i);
+      arg.setType(String.valueOf(c));
+      switch (c) {
+        case 's':
+          arg.setValue(msg.get(i).stringValue());
+          break;
+        case 'i':
+          arg.setValue(Integer.toString(msg.get(i).intValue()));
+          break;
+        case 'f':
+          arg.setValue(Float.toString(msg.get(i).floatValue()));
+          break;
+        case 'd':
+          arg.setValue(Double.toString(msg.get(i).doubleValue()));
+          break;
+        case 'h':
+          arg.setValue(Long.toString(msg.get(i).longValue()));
+          break;
+        case 'c':
+          arg.setValue(Integer.toString(msg.get(i).charValue()));
+          break;
+        case 'T':
+        case 'F':
+          break;
+        case 'b':
+          arg.setValue(
+              Base64.getEncoder().encodeToString(msg.get(i).blobValue()));
+          break;
+        default:
+          System.err.println(String.format(
+              "OSC message argument %s is invalid or not supported", c));
+          break;
+      }
+      args.add(arg);
+    }
+
+    mmm.setArgs(args);
+    return mmm;
+  }
+
   OscMessage toOscMessage() {
     OscMessage msg = new OscMessage(address);
     for (ScoreDataArg a : args) {
@@ -84,6 +127,24 @@ class ScoreDataMessage {
           // <arg type="d">3.198698469846981</arg>
           msg.add(Double.parseDouble(a.getValue()));
           break;
+        case "h":
+          // <arg type="h">-8589934592</arg>
+          msg.add(Long.parseLong(a.getValue()));
+          break;
+        case "c":
+          // <arg type="c">65</arg>
+          msg.add((char) Integer.parseInt(a.getValue()));
+          break;
+        case "T":
+          msg.add(true);
+          break;
+        case "F":
+          msg.add(false);
+          break;
+        case "b":
+          // <arg type="b">AQID</arg>
+          msg.add(Base64.getDecoder().decode(a.getValue()));
+          break;
         default:
           throw new IllegalStateException(String.format(
               "OSC message argument %s is invalid or not supported",
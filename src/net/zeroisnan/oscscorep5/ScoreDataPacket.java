@@ -16,23 +16,16 @@ package net.zeroisnan.oscscorep5;
 import java.util.ArrayList;
 import java.util.List;
 
-import javax.xml.bind.annotation.XmlAccessType;
-import javax.xml.bind.annotation.XmlAccessorType;
-import javax.xml.bind.annotation.XmlElement;
-import javax.xml.bind.annotation.XmlRootElement;
-
 import oscP5.OscBundle;
+import oscP5.OscMessage;
 import oscP5.OscPacket;
 
 // -----------------------------------------------
-// these bean classes are used to marshal/unmarshal XML
+// these bean classes model the XML schema of the score
 //-----------------------------------------------
-@XmlAccessorType(XmlAccessType.FIELD)
-@XmlRootElement(name = "oscpacket")
 class ScoreDataPacket {
-  @XmlElement
   private int framecount;
-  @XmlElement(name = "message", type = ScoreDataMessage.class)
+  private Long timestamp;
   private List<ScoreDataMessage> messages = new ArrayList<ScoreDataMessage>();
 
   public ScoreDataPacket() {
@@ -46,6 +39,14 @@ class ScoreDataPacket {
     this.framecount = framecount;
   }
 
+  public Long getTimestamp() {
+    return timestamp;
+  }
+
+  public void setTimestamp(Long timestamp) {
+    this.timestamp = timestamp;
+  }
+
   public List<ScoreDataMessage> getMessages() {
     return messages;
   }
@@ -58,8 +59,27 @@ class ScoreDataPacket {
     this.messages.add(mmm);
   }
 
+  static ScoreDataPacket fromScoreEvent(ScoreEvent ev) {
+    ScoreDataPacket pkt = new ScoreDataPacket();
+    pkt.setFramecount(ev.getFrame());
+    if (ev.hasTime()) {
+      pkt.setTimestamp(ev.getTime());
+    }
+    if (ev.getPkt() instanceof OscBundle) {
+      OscBundle bundle = (OscBundle) ev.getPkt();
+      for (int i = 0; i < bundle.size(); i++) {
+        pkt.addMsg(ScoreDataMessage.fromOscMessage(bundle.getMessage(i)));
+      }
+    } else {
+      pkt.addMsg(ScoreDataMessage.fromOscMessage((OscMessage) ev.getPkt()));
+    }
+    return pkt;
+  }
+
   ScoreEvent toScoreEvent() {
-    return new ScoreEvent(this.framecount, this.toOscPacket());
+    return new ScoreEvent(this.framecount,
+        (this.timestamp == null) ? ScoreEvent.NO_TIME : this.timestamp,
+        this.toOscPacket());
   }
 
   OscPacket toOscPacket() {
@@ -19,18 +19,36 @@ import oscP5.OscPacket;
  * bean class to represent score events
  * <ul>
  * <li>frame : the frame number at which the event is scheduled/captured
+ * <li>time : nanoseconds since the start of the recording (when available)
  * <li>pkt : OSC packet (message/bundle) describing the event
+ * <li>raw : wire format of the packet, as received (only for raw captures)
  * </ul>
  */
 public class ScoreEvent {
+  /** time value of events recorded without timestamps */
+  public final static long NO_TIME = -1;
   /** frame number associated to the event */
   protected int frame;
+  /** nanoseconds since the start of the recording (NO_TIME if unknown) */
+  protected long time;
   /** osc packet (message/bundle) describing the event */
   protected OscPacket pkt;
+  /** datagram bytes as received (null unless captured in raw mode) */
+  protected byte[] raw;
 
   public ScoreEvent(int frame, OscPacket pkt) {
+    this(frame, NO_TIME, pkt);
+  }
+
+  public ScoreEvent(int frame, long time, OscPacket pkt) {
+    this(frame, time, pkt, null);
+  }
+
+  public ScoreEvent(int frame, long time, OscPacket pkt, byte[] raw) {
     this.frame = frame;
+    this.time = time;
     this.pkt = pkt;
+    this.raw = raw;
   }
 
   public int getFrame() {
@@ -41,6 +59,18 @@ public class ScoreEvent {
     this.frame = frame;
   }
 
+  public long getTime() {
+    return time;
+  }
+
+  public void setTime(long time) {
+    this.time = time;
+  }
+
+  public boolean hasTime() {
+    return this.time != NO_TIME;
+  }
+
   public OscPacket getPkt() {
     return this.pkt;
   }
@@ -49,6 +79,14 @@ public class ScoreEvent {
     this.pkt = pkt;
   }
 
+  public byte[] getRaw() {
+    return this.raw;
+  }
+
+  public boolean hasRaw() {
+    return this.raw != null;
+  }
+
   @Override
   public String toString() {
     String str = String.format("Frame: %d - Packet: %s", this.frame,
@@ -0,0 +1,93 @@
+/**
+ * ##library.name##
+ * ##library.sentence##
+ * ##library.url##
+ *
+ * Copyright ##copyright## ##author##
+ * SPDX-License-Identifier: LGPL-3.0-or-later
+ *
+ * @author      ##author##
+ * @version     ##library.prettyVersion## (##library.version##)
+ *              Last modified: ##date##
+ */
+
+package net.zeroisnan.oscscorep5;
+
+/**
+ * Bounded single-producer/single-consumer ring buffer of score events.
+ *
+ * <p>
+ * Exactly one thread may call {@link #offer(ScoreEvent)} and exactly one
+ * (other) thread may call {@link #poll()}: under this contract no locks are
+ * needed, the two volatile counters are enough to publish the slots.
+ */
+class ScoreEventRing {
+  /** event slots */
+  protected final ScoreEvent[] slots;
+  /** slots.length - 1, slots.length being a power of two */
+  protected final int mask;
+  /** number of events polled so far (written by the consumer only) */
+  protected volatile long head;
+  /** number of events offered so far (written by the producer only) */
+  protected volatile long tail;
+
+  /**
+   * constructor
+   *
+   * @param capacity minimum capacity, rounded up to a power of two
+   */
+  ScoreEventRing(int capacity) {
+    int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+    this.slots = new ScoreEvent[size];
+    this.mask = size - 1;
+  }
+
+  /**
+   * @return capacity of the ring
+   */
+  int capacity() {
+    return this.slots.length;
+  }
+
+  /**
+   * @return number of events in the ring
+   */
+  int size() {
+    return (int) (this.tail - this.head);
+  }
+
+  /**
+   * add an event (producer side)
+   *
+   * @param ev event to add
+   * @return false if the ring is full
+   */
+  boolean offer(ScoreEvent ev) {
+    long t = this.tail;
+    if (t - this.head == this.slots.length) {
+      return false;
+    }
+    this.slots[(int) t & this.mask] = ev;
+    // publish the slot
+    this.tail = t + 1;
+    return true;
+  }
+
+  /**
+   * remove the oldest event (consumer side)
+   *
+   * @return the event, null if the ring is empty
+   */
+  ScoreEvent poll() {
+    long h = this.head;
+    if (h == this.tail) {
+      return null;
+    }
+    int i = (int) h & this.mask;
+    ScoreEvent ev = this.slots[i];
+    this.slots[i] = null;
+    // release the slot
+    this.head = h + 1;
+    return ev;
+  }
+}
@@ -0,0 +1,228 @@
+/**
+ * ##library.name##
+ * ##library.sentence##
+ * ##library.url##
+ *
+ * Copyright ##copyright## ##author##
+ * SPDX-License-Identifier: LGPL-3.0-or-later
+ *
+ * @author      ##author##
+ * @version     ##library.prettyVersion## (##library.version##)
+ *              Last modified: ##date##
+ */
+
+package net.zeroisnan.oscscorep5;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Select OSC messages by address with include and exclude OSC address
+ * patterns (see {@link OscPattern} for the wildcard syntax).
+ *
+ * <p>
+ * A message is accepted when its address matches at least one include pattern
+ * (or no include pattern is given) and none of the exclude patterns. The
+ * patterns are compiled once into a trie of address parts: literal parts are
+ * looked up in a hash map, only the parts holding wildcards are matched one by
+ * one, and path traversals (// or **) try every number of parts. The decision
+ * taken for each address is then remembered, so filtering a message usually
+ * costs a single hash lookup. Filters are immutable and can be shared among
+ * threads.
+ */
+class ScoreFilter {
+  /** maximum number of decisions remembered */
+  final static int MAX_DECISIONS = 4096;
+
+  /**
+   * node of the trie, one per address part
+   */
+  static class Node {
+    /** children with a literal part */
+    final Map<String, Node> literals = new HashMap<String, Node>();
+    /** parts holding wildcards */
+    final List<String> patterns = new ArrayList<String>();
+    /** children with a wildcard part (same order as patterns) */
+    final List<Node> wildcards = new ArrayList<Node>();
+    /** child reached through any number of parts (// or **), if any */
+    Node traversal;
+    /** a pattern ends at this node */
+    boolean terminal;
+  }
+
+  /** include patterns */
+  protected final List<String> includes;
+  /** exclude patterns */
+  protected final List<String> excludes;
+  /** compiled include patterns */
+  protected final Node includeTrie;
+  /** compiled exclude patterns */
+  protected final Node excludeTrie;
+  /** decision taken for each address seen so far */
+  protected final Map<String, Boolean> decisions;
+
+  /**
+   * constructor
+   *
+   * @param includes include patterns, all addresses are included when empty
+   * @param excludes exclude patterns
+   * @throws IllegalArgumentException if a pattern does not start with '/'
+   */
+  ScoreFilter(List<String> includes, List<String> excludes) {
+    this.includes = new ArrayList<String>(includes);
+    this.excludes = new ArrayList<String>(excludes);
+    this.includeTrie = compile(this.includes);
+    this.excludeTrie = compile(this.excludes);
+    this.decisions = new ConcurrentHashMap<String, Boolean>();
+  }
+
+  /**
+   * @param includes include patterns
+   * @param excludes exclude patterns
+   * @return a filter, null when both lists are empty (nothing to filter)
+   */
+  static ScoreFilter of(List<String> includes, List<String> excludes) {
+    if (includes.isEmpty() && excludes.isEmpty()) {
+      return null;
+    }
+    return new ScoreFilter(includes, excludes);
+  }
+
+  /**
+   * @param address OSC address
+   * @return the messages sent to the address are accepted
+   */
+  boolean accepts(String address) {
+    Boolean decision = this.decisions.get(address);
+    if (decision == null) {
+      decision = (this.includes.isEmpty()
+          || matches(this.includeTrie, address, 0))
+          && !matches(this.excludeTrie, address, 0);
+      if (this.decisions.size() < MAX_DECISIONS) {
+        this.decisions.put(address, decision);
+      }
+    }
+    return decision;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("include %s exclude %s", this.includes,
+        this.excludes);
+  }
+
+  /**
+   * @param patterns OSC address patterns
+   * @return the root of the trie
+   * @throws IllegalArgumentException if a pattern does not start with '/'
+   */
+  protected static Node compile(List<String> patterns) {
+    Node root = new Node();
+    for (String pattern : patterns) {
+      if (!pattern.startsWith("/")) {
+        throw new IllegalArgumentException(
+            "invalid OSC address pattern " + pattern);
+      }
+      Node node = root;
+      String[] parts = pattern.split("/", -1);
+      for (int i = 1; i < parts.length; i++) {
+        String part = parts[i];
+        if (OscPattern.isTraversal(parts, i)) {
+          if (node.traversal == null) {
+            node.traversal = new Node();
+          }
+          node = node.traversal;
+        } else {
+          node = isWildcard(part) ? wildcardChild(node, part)
+              : node.literals.computeIfAbsent(part, k -> new Node());
+        }
+      }
+      node.terminal = true;
+    }
+    return root;
+  }
+
+  /**
+   * @param node a node
+   * @param part an address part holding wildcards
+   * @return the child of the node for that part, created if needed
+   */
+  protected static Node wildcardChild(Node node, String part) {
+    int i = node.patterns.indexOf(part);
+    if (i >= 0) {
+      return node.wildcards.get(i);
+    }
+    Node child = new Node();
+    node.patterns.add(part);
+    node.wildcards.add(child);
+    return child;
+  }
+
+  /**
+   * @param part an address pattern part
+   * @return the part holds OSC wildcards
+   */
+  protected static boolean isWildcard(String part) {
+    for (int i = 0; i < part.length(); i++) {
+      switch (part.charAt(i)) {
+        case '*':
+        case '?':
+        case '[':
+        case '{':
+          return true;
+        default:
+          break;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param node trie node matching the address up to start
+   * @param address OSC address
+   * @param start index of the '/' starting the next address part, or the
+   *          address length
+   * @return the rest of the address matches a pattern below the node
+   */
+  protected static boolean matches(Node node, String address, int start) {
+    if (node.traversal != null) {
+      // skip zero or more parts
+      int i = start;
+      while (true) {
+        if (matches(node.traversal, address, i)) {
+          return true;
+        }
+        if (i == address.length()) {
+          break;
+        }
+        int next = address.indexOf('/', i + 1);
+        i = (next < 0) ? address.length() : next;
+      }
+    }
+    if (start == address.length()) {
+      return node.terminal;
+    }
+    if (address.charAt(start) != '/') {
+      return false;
+    }
+    int end = address.indexOf('/', start + 1);
+    if (end < 0) {
+      end = address.length();
+    }
+    String part = address.substring(start + 1, end);
+    Node child = node.literals.get(part);
+    if (child != null && matches(child, address, end)) {
+      return true;
+    }
+    for (int i = 0; i < node.patterns.size(); i++) {
+      if (OscPattern.matches(node.patterns.get(i), part)
+          && matches(node.wildcards.get(i), address, end)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
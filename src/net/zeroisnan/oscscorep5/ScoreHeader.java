@@ -0,0 +1,179 @@
+/**
+ * ##library.name##
+ * ##library.sentence##
+ * ##library.url##
+ *
+ * Copyright ##copyright## ##author##
+ * SPDX-License-Identifier: LGPL-3.0-or-later
+ *
+ * @author      ##author##
+ * @version     ##library.prettyVersion## (##library.version##)
+ *              Last modified: ##date##
+ */
+
+package net.zeroisnan.oscscorep5;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Summary of a score, stored at its beginning so that players know what to
+ * expect before reading the first packet: frame rate of the recording sketch,
+ * number of packets and messages, frame range, size of the largest packet,
+ * where the address dictionary and the frame index are stored.
+ *
+ * <p>
+ * Most of these values are only known when the recording ends: writers
+ * reserve a fixed size header when the score is opened, patch it on close and
+ * append the address dictionary (every address, in order of first use) at the
+ * end of the score. Scores left unterminated by a crash keep the header
+ * written on open, which is not complete (see {@link #isComplete()}).
+ * Compressed XML scores, which can not be patched, and scores recorded before
+ * headers existed have none at all: both are read as before, without the
+ * shortcuts.
+ */
+class ScoreHeader {
+  /** header version */
+  final static int VERSION = 1;
+
+  /** header version of the score */
+  protected int version;
+  /** frame rate of the recording sketch, 0 if unknown */
+  protected float frameRate;
+  /** number of packets, -1 if unknown */
+  protected long packets;
+  /** number of messages (datagrams for raw captures) */
+  protected long messages;
+  /** frame of the first packet, -1 if there is none */
+  protected int firstFrame;
+  /** frame of the last packet, -1 if there is none */
+  protected int lastFrame;
+  /** number of messages of the largest packet */
+  protected int maxMessages;
+  /** byte offset of the address dictionary, -1 if there is none */
+  protected long dictionary;
+  /** file name of the frame index, next to the score; null if there is none */
+  protected String index;
+  /** addresses of the dictionary, in order of first use */
+  protected final List<String> addresses;
+  /** address to position in the dictionary (writer side) */
+  protected final Map<String, Integer> ids;
+
+  /**
+   * constructor (empty score)
+   */
+  ScoreHeader() {
+    this.version = VERSION;
+    this.packets = -1;
+    this.firstFrame = -1;
+    this.lastFrame = -1;
+    this.dictionary = -1;
+    this.addresses = new ArrayList<String>();
+    this.ids = new HashMap<String, Integer>();
+  }
+
+  /**
+   * @return the header has been patched when the score was closed, so the
+   *         counts are reliable
+   */
+  boolean isComplete() {
+    return this.packets >= 0;
+  }
+
+  /**
+   * @return frame rate of the recording sketch, 0 if unknown
+   */
+  float getFrameRate() {
+    return this.frameRate;
+  }
+
+  /**
+   * @return number of packets, -1 if unknown
+   */
+  long getPackets() {
+    return this.packets;
+  }
+
+  /**
+   * @return frame of the last packet, -1 if unknown
+   */
+  int getLastFrame() {
+    return this.isComplete() ? this.lastFrame : -1;
+  }
+
+  /**
+   * @return number of messages of the largest packet, 0 if unknown
+   */
+  int getMaxMessages() {
+    return this.isComplete() ? this.maxMessages : 0;
+  }
+
+  /**
+   * @return addresses of the dictionary (empty if unknown)
+   */
+  List<String> getAddresses() {
+    return this.addresses;
+  }
+
+  /**
+   * account for a packet being written (its addresses are added to the
+   * dictionary by the writer, see {@link #define(String)})
+   *
+   * @param msgs messages of the packet (or datagrams, in raw mode)
+   * @param count number of messages
+   */
+  void count(ScoreRecord[] msgs, int count) {
+    int frame = msgs[0].getFrame();
+    if (this.packets < 0) {
+      this.packets = 0;
+      this.firstFrame = frame;
+    }
+    if (msgs[0].isRaw()) {
+      // one packet per datagram, the addresses are not decoded
+      this.packets += count;
+      this.messages += count;
+      this.maxMessages = Math.max(this.maxMessages, 1);
+    } else {
+      this.packets++;
+      this.messages += count;
+      this.maxMessages = Math.max(this.maxMessages, count);
+    }
+    this.lastFrame = msgs[count - 1].getFrame();
+  }
+
+  /**
+   * add an address to the dictionary
+   *
+   * @param address address
+   * @return position of the address in the dictionary
+   */
+  int define(String address) {
+    Integer id = this.ids.get(address);
+    if (id == null) {
+      id = this.addresses.size();
+      this.ids.put(address, id);
+      this.addresses.add(address);
+    }
+    return id;
+  }
+
+  /**
+   * mark the header complete, when the score is closed
+   */
+  void complete() {
+    if (this.packets < 0) {
+      // no packet written
+      this.packets = 0;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "version %d, %.1f fps, %d packets, %d messages, frames %d-%d",
+        this.version, this.frameRate, this.packets, this.messages,
+        this.firstFrame, this.lastFrame);
+  }
+}
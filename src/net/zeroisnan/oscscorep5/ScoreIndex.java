@@ -0,0 +1,316 @@
+/**
+ * ##library.name##
+ * ##library.sentence##
+ * ##library.url##
+ *
+ * Copyright ##copyright## ##author##
+ * SPDX-License-Identifier: LGPL-3.0-or-later
+ *
+ * @author      ##author##
+ * @version     ##library.prettyVersion## (##library.version##)
+ *              Last modified: ##date##
+ */
+
+package net.zeroisnan.oscscorep5;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Sparse frame to byte offset index of a score, used by
+ * {@link ScorePlayer#seek(int)} to jump close to a frame without parsing
+ * everything before it.
+ *
+ * <p>
+ * One entry is kept every {@link #INTERVAL} packets, so seeking costs a binary
+ * search plus the parsing of at most INTERVAL packets. The index is built while
+ * recording by {@link ScoreRecorder}, or by scanning the raw bytes of a XML
+ * score the first time a seek is requested, and it is stored next to the
+ * score with the {@link #EXTENSION} suffix. The size of the score is saved in
+ * the index, so stale indexes are detected and rebuilt. Its entries also cut
+ * XML scores into chunks decoded in parallel (see
+ * {@link ParallelScoreReader}), which only keeps the indexes it builds in
+ * memory: reading a score through the command line tools leaves no file
+ * behind.
+ *
+ * <p>
+ * Index file layout (big endian): magic, version, score size in bytes, number
+ * of packets, number of entries, then (frame, offset) pairs.
+ */
+class ScoreIndex {
+  /** suffix appended to the score path to get the index path */
+  final static String EXTENSION = ".idx";
+  /** one entry every INTERVAL packets */
+  final static int INTERVAL = 64;
+  /** index file magic number ("OSCI") */
+  final static int MAGIC = 0x4f534349;
+  /** index file version */
+  final static int VERSION = 1;
+
+  /** frame of each entry */
+  protected int[] frames;
+  /** byte offset of each entry (at or right before the packet start tag) */
+  protected long[] offsets;
+  /** number of valid entries */
+  protected int size;
+  /** number of packets seen so far */
+  protected long packets;
+  /** size of the indexed score in bytes */
+  protected long scoresize;
+
+  /**
+   * constructor (empty index)
+   */
+  ScoreIndex() {
+    this.frames = new int[256];
+    this.offsets = new long[256];
+  }
+
+  /**
+   * @param scorepath path to a score
+   * @return path to the index of the score
+   */
+  static String pathFor(String scorepath) {
+    return scorepath + EXTENSION;
+  }
+
+  /**
+   * @return true if the next packet shall be added to the index
+   */
+  boolean isDue() {
+    return this.packets % INTERVAL == 0;
+  }
+
+  /**
+   * count one more packet in the score
+   */
+  void countPacket() {
+    this.packets++;
+  }
+
+  /**
+   * add an entry to the index
+   *
+   * @param frame frame of the packet
+   * @param offset byte offset of the packet
+   */
+  void add(int frame, long offset) {
+    if (this.size == this.frames.length) {
+      this.frames = Arrays.copyOf(this.frames, this.size * 2);
+      this.offsets = Arrays.copyOf(this.offsets, this.size * 2);
+    }
+    this.frames[this.size] = frame;
+    this.offsets[this.size] = offset;
+    this.size++;
+  }
+
+  /**
+   * @param scoresize size of the indexed score in bytes
+   */
+  void setScoreSize(long scoresize) {
+    this.scoresize = scoresize;
+  }
+
+  /**
+   * @return number of packets in the indexed score
+   */
+  long getPackets() {
+    return this.packets;
+  }
+
+  /**
+   * find where to start parsing to reach a frame
+   *
+   * @param frame frame to reach
+   * @return offset of the last entry before the frame, offset of the first
+   *         entry if the frame comes before it, -1 if the index is empty
+   */
+  long lookup(int frame) {
+    if (this.size == 0) {
+      return -1;
+    }
+
+    // binary search of the last entry with frames[i] < frame
+    int lo = 0;
+    int hi = this.size - 1;
+    int found = 0;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (this.frames[mid] < frame) {
+        found = mid;
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return this.offsets[found];
+  }
+
+  /**
+   * cut the indexed score into chunks of whole packets, starting on entries
+   *
+   * @param bytes minimum size of a chunk
+   * @return offset of the first packet of each chunk
+   */
+  long[] split(long bytes) {
+    long[] starts = new long[this.size];
+    int n = 0;
+    for (int i = 0; i < this.size; i++) {
+      if (n == 0 || this.offsets[i] - starts[n - 1] >= bytes) {
+        starts[n++] = this.offsets[i];
+      }
+    }
+    return Arrays.copyOf(starts, n);
+  }
+
+  /**
+   * store the index
+   *
+   * @param path path to the index file
+   * @throws IOException on write errors
+   */
+  void save(String path) throws IOException {
+    try (DataOutputStream dos = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(path)))) {
+      dos.writeInt(MAGIC);
+      dos.writeInt(VERSION);
+      dos.writeLong(this.scoresize);
+      dos.writeLong(this.packets);
+      dos.writeInt(this.size);
+      for (int i = 0; i < this.size; i++) {
+        dos.writeInt(this.frames[i]);
+        dos.writeLong(this.offsets[i]);
+      }
+    }
+  }
+
+  /**
+   * load the index stored next to a score
+   *
+   * @param scorepath path to the score
+   * @return the index, or null if missing, invalid or stale
+   */
+  static ScoreIndex load(String scorepath) {
+    File f = new File(pathFor(scorepath));
+    if (!f.isFile()) {
+      return null;
+    }
+
+    try (DataInputStream dis = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(f)))) {
+      if (dis.readInt() != MAGIC || dis.readInt() != VERSION) {
+        return null;
+      }
+      ScoreIndex idx = new ScoreIndex();
+      idx.scoresize = dis.readLong();
+      if (idx.scoresize != new File(scorepath).length()) {
+        // the score changed after the index was written
+        return null;
+      }
+      idx.packets = dis.readLong();
+      int entries = dis.readInt();
+      for (int i = 0; i < entries; i++) {
+        idx.add(dis.readInt(), dis.readLong());
+      }
+      return idx;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * build the index of a score by scanning its bytes for packet and framecount
+   * tags, without any XML parsing
+   *
+   * @param scorepath path to the score
+   * @return the index
+   * @throws IOException on read errors
+   */
+  static ScoreIndex build(String scorepath) throws IOException {
+    final byte[] pkttag = "<oscpacket".getBytes(StandardCharsets.UTF_8);
+    final byte[] frametag = "<framecount>".getBytes(StandardCharsets.UTF_8);
+
+    ScoreIndex idx = new ScoreIndex();
+    byte[] buf = new byte[1 << 16];
+    long pos = 0;
+    // packet start offset, -1 while looking for the next packet
+    long pktstart = -1;
+    // number of tag bytes matched so far
+    int matched = 0;
+    // frame being parsed, -1 when not parsing the framecount value
+    long frame = -1;
+
+    try (InputStream is = new FileInputStream(scorepath)) {
+      int len;
+      while ((len = is.read(buf)) > 0) {
+        for (int i = 0; i < len; i++, pos++) {
+          byte c = buf[i];
+          if (frame >= 0) {
+            // parsing the framecount value
+            if (c >= '0' && c <= '9') {
+              frame = frame * 10 + (c - '0');
+              continue;
+            }
+            if (idx.isDue()) {
+              idx.add((int) frame, pktstart);
+            }
+            idx.countPacket();
+            frame = -1;
+            pktstart = -1;
+          }
+
+          byte[] tag = (pktstart < 0) ? pkttag : frametag;
+          if (c == tag[matched]) {
+            matched++;
+          } else {
+            matched = (c == tag[0]) ? 1 : 0;
+          }
+
+          if (matched == tag.length) {
+            matched = 0;
+            if (pktstart < 0) {
+              pktstart = pos + 1 - tag.length;
+            } else {
+              frame = 0;
+            }
+          }
+        }
+      }
+    }
+
+    idx.setScoreSize(pos);
+    return idx;
+  }
+
+  /**
+   * load the index of a score, building it when needed
+   *
+   * @param scorepath path to the score
+   * @param store store the index next to the score when built
+   * @return the index
+   * @throws IOException on read errors
+   */
+  static ScoreIndex open(String scorepath, boolean store) throws IOException {
+    ScoreIndex idx = load(scorepath);
+    if (idx == null) {
+      idx = build(scorepath);
+      try {
+        if (store) {
+          idx.save(pathFor(scorepath));
+        }
+      } catch (IOException e) {
+        // read only location, keep the index in memory only
+      }
+    }
+    return idx;
+  }
+}
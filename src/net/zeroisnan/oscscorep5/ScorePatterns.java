@@ -0,0 +1,83 @@
+/**
+ * ##library.name##
+ * ##library.sentence##
+ * ##library.url##
+ *
+ * Copyright ##copyright## ##author##
+ * SPDX-License-Identifier: LGPL-3.0-or-later
+ *
+ * @author      ##author##
+ * @version     ##library.prettyVersion## (##library.version##)
+ *              Last modified: ##date##
+ */
+
+package net.zeroisnan.oscscorep5;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Include and exclude OSC address patterns, added one at a time (recorder,
+ * player and playback destinations); every change compiles a new
+ * {@link ScoreFilter}. Not thread safe, callers synchronize as needed.
+ */
+class ScorePatterns {
+  /** address patterns of the messages accepted (all when empty) */
+  protected final List<String> includes;
+  /** address patterns of the messages rejected */
+  protected final List<String> excludes;
+
+  /**
+   * constructor (no pattern, every message is accepted)
+   */
+  ScorePatterns() {
+    this.includes = new ArrayList<String>();
+    this.excludes = new ArrayList<String>();
+  }
+
+  /**
+   * @param pattern OSC address pattern to add to the include list
+   * @return the new filter
+   * @throws IllegalArgumentException if the pattern does not start with '/'
+   *           (the pattern is not added)
+   */
+  ScoreFilter include(String pattern) {
+    return this.add(this.includes, pattern);
+  }
+
+  /**
+   * @param pattern OSC address pattern to add to the exclude list
+   * @return the new filter
+   * @throws IllegalArgumentException if the pattern does not start with '/'
+   *           (the pattern is not added)
+   */
+  ScoreFilter exclude(String pattern) {
+    return this.add(this.excludes, pattern);
+  }
+
+  /**
+   * remove every pattern, so that every message is accepted
+   */
+  void clear() {
+    this.includes.clear();
+    this.excludes.clear();
+  }
+
+  /**
+   * add a pattern to the include or exclude list and compile the filter again
+   *
+   * @param patterns include or exclude list
+   * @param pattern OSC address pattern
+   * @return the new filter, null when both lists are empty
+   * @throws IllegalArgumentException if the pattern does not start with '/'
+   */
+  protected ScoreFilter add(List<String> patterns, String pattern) {
+    patterns.add(pattern);
+    try {
+      return ScoreFilter.of(this.includes, this.excludes);
+    } catch (IllegalArgumentException e) {
+      patterns.remove(patterns.size() - 1);
+      throw e;
+    }
+  }
+}
@@ -13,21 +13,22 @@
 
 package net.zeroisnan.oscscorep5;
 
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Paths;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBElement;
-import javax.xml.bind.JAXBException;
-import javax.xml.bind.Unmarshaller;
-import javax.xml.stream.XMLEventReader;
-import javax.xml.stream.XMLInputFactory;
-import javax.xml.stream.XMLStreamException;
-
+import oscP5.OscBundle;
+import oscP5.OscMessage;
+import oscP5.OscPacket;
 import processing.core.PApplet;
 
 /**
@@ -51,30 +52,119 @@ import processing.core.PApplet;
  * // create an ScorePlayer instance to replay the content of a XML score
  * ScorePlayer oscplay = new ScorePlayer(this, &quot;mydump.xml&quot;, sca);
  * </pre>
+ *
+ * <p>
+ * A score recorded into segments (see
+ * {@link ScoreRecorder#setSegmentation(long, int, int)}) is played as one
+ * continuous score by giving the path it was recorded at: the next segment is
+ * opened in background before playback reaches its first packet.
+ *
+ * <p>
+ * Scores recorded with a header (see {@link ScoreHeader}) are checked on
+ * open, their addresses are known before the first packet is decoded, the
+ * read-ahead buffer is sized to the score when it is short, and a warning is
+ * printed when the sketch does not run at the frame rate the score was
+ * recorded at. Scores without header are played as before.
  */
 public class ScorePlayer {
+  /** seconds of playback before the frame rate of the sketch is checked */
+  final static int RATE_CHECK_SECONDS = 2;
+  /** relative frame rate difference tolerated */
+  final static float RATE_TOLERANCE = 0.1f;
+
+  /**
+   * what to do with events whose frame has already gone by when they are
+   * dispatched (dense scores, stalls, ...)
+   * <ul>
+   * <li>SEND : send them anyway, in score order
+   * <li>DROP : discard them
+   * <li>COLLAPSE : only send the last message received for each address; a
+   * message sent on time for an address supersedes the late ones
+   * </ul>
+   */
+  public enum LatePolicy {
+    SEND, DROP, COLLAPSE
+  }
+
+  /**
+   * how events are scheduled
+   * <ul>
+   * <li>FRAME : at their recorded frame, from the sketch pre() method
+   * <li>TIME : at their recorded time, from a dedicated scheduler thread
+   * <li>LOCKSTEP : at their recorded frame, for offline rendering; each pre()
+   * decodes exactly the events of the frame, no matter the sketch frame rate
+   * </ul>
+   */
+  public enum ScheduleMode {
+    FRAME, TIME, LOCKSTEP
+  }
+
   /** reference to the parent PApplet */
   protected PApplet pp;
   /** local frame count */
   protected int framecount;
 
-  /** path to the XML score */
+  /** path to the score */
   protected String xmlfilepath;
-  /** XML file stream object (used by the reader) */
-  protected FileInputStream xmlfilestream;
-  /** XML event reader */
-  protected XMLEventReader xer;
-
-  /** used for unmarshalling */
-  protected Unmarshaller unmarshaller;
+  /** score reader (XML or binary, according to the file extension) */
+  protected ScoreReader reader;
 
-  /** hold a list of events currently scheduled */
+  /**
+   * hold a list of events currently scheduled (shared with the scheduler
+   * thread in TIME mode, peeked by the sketch thread for debug information)
+   */
   protected Queue<ScoreEvent> events;
   /** used to send OSC messages */
   protected OscLoopback sca;
   /** debug attribute */
   protected boolean debug;
 
+  /** policy applied to late events */
+  protected LatePolicy latePolicy;
+  /** last message per address of the late events being collapsed */
+  protected Map<String, OscMessage> collapsed;
+  /** events on time for the frame being dispatched, when collapsing */
+  protected List<ScoreEvent> onTime;
+  /** number of events dispatched after their frame */
+  protected long lateEvents;
+  /** number of late events dropped (messages when collapsing) */
+  protected long droppedEvents;
+  /** sum of the lateness (in frames) of all late events */
+  protected long totalLateness;
+  /** worst lateness (in frames) seen so far */
+  protected int maxLateness;
+
+  /** how events are scheduled */
+  protected ScheduleMode scheduleMode;
+  /** scheduler thread (TIME mode only, null until playback starts) */
+  protected ScoreScheduler scheduler;
+
+  /** background decoder (null when read-ahead is disabled) */
+  protected volatile ScoreReadAhead readahead;
+  /** read-ahead low watermark */
+  protected int lowWatermark;
+  /** read-ahead high watermark (0 when read-ahead is disabled) */
+  protected int highWatermark;
+  /** number of times playback found the read-ahead buffer empty */
+  protected long underruns;
+  /** set when the whole score has been fetched */
+  protected volatile boolean exhausted;
+  /** tracks of a multi-track player (empty when playing a single score) */
+  protected List<ScoreTrack> tracks;
+
+  /** first frame of the loop region */
+  protected int loopStart;
+  /** first frame after the loop region (0 when not looping) */
+  protected int loopEnd;
+  /** memory budget of the decoded event cache (0 when disabled) */
+  protected long cacheBudget;
+  /** decoded event cache (null when disabled) */
+  protected CachedScoreReader cache;
+  /** address patterns of the messages played (all when empty) */
+  protected ScorePatterns patterns;
+  /** the frame rate of the sketch has been compared to the score one */
+  protected boolean rateChecked;
+
   /**
    * constructor (complete)
    *
@@ -85,19 +175,52 @@ public class ScorePlayer {
    */
   public ScorePlayer(PApplet p, String xmlpath, OscLoopback sca,
       boolean debug) {
+    this(p, new String[] { xmlpath }, sca, debug);
+  }
+
+  /**
+   * constructor (multi-track): the scores are played at once, merged into a
+   * single timeline, see {@link #getTracks()} to mute, solo or offset them
+   *
+   * @param p reference to the parent applet
+   * @param xmlpaths paths to OSC score files, one per track
+   * @param sca {@link OscLoopback} instance used to send OSC messages
+   * @param debug enable/disable debug while drawing
+   */
+  public ScorePlayer(PApplet p, String[] xmlpaths, OscLoopback sca,
+      boolean debug) {
     this.pp = p;
-    this.xmlfilepath = Paths.get(xmlpath).toAbsolutePath().toString();
+    String[] abspaths = new String[xmlpaths.length];
+    for (int i = 0; i < xmlpaths.length; i++) {
+      abspaths[i] = Paths.get(xmlpaths[i]).toAbsolutePath().toString();
+    }
+    this.xmlfilepath = String.join(File.pathSeparator, abspaths);
+    this.tracks = Collections.emptyList();
+    this.patterns = new ScorePatterns();
+    this.events = new ConcurrentLinkedQueue<ScoreEvent>();
+    this.collapsed = new LinkedHashMap<String, OscMessage>();
+    this.onTime = new ArrayList<ScoreEvent>();
+    this.latePolicy = LatePolicy.SEND;
+    this.scheduleMode = ScheduleMode.FRAME;
+    this.sca = sca;
+    this.setDebug(debug);
     try {
-      this.xmlfilestream = new FileInputStream(this.xmlfilepath);
-    } catch (FileNotFoundException e) {
+      if (abspaths.length == 1) {
+        this.reader = ScoreReader.open(abspaths[0]);
+      } else {
+        MultiTrackScoreReader mtr = new MultiTrackScoreReader(abspaths);
+        this.tracks = mtr.getTracks();
+        this.reader = mtr;
+      }
+    } catch (FileNotFoundException | NoSuchFileException e) {
       System.err
           .println(String.format("ERROR: unable to open OSC score at %s - %s",
               this.xmlfilepath, e.getMessage()));
       return;
+    } catch (IOException e) {
+      ScoreUtils.handleException(e, "Invalid OSC score content");
+      return;
     }
-    this.events = new LinkedList<ScoreEvent>();
-    this.sca = sca;
-    this.setDebug(debug);
 
     // rewind (initialize in this case) the player
     this.rewind();
@@ -106,6 +229,7 @@ public class ScorePlayer {
     // frame is reached (and to draw debugging information when enabled)
     pp.registerMethod("pre", this);
     pp.registerMethod("draw", this);
+    pp.registerMethod("dispose", this);
   }
 
   /**
@@ -134,12 +258,396 @@ public class ScorePlayer {
   }
 
   /**
-   * @return path to Osc score
+   * @return policy applied to late events
+   */
+  public LatePolicy getLatePolicy() {
+    return latePolicy;
+  }
+
+  /**
+   * @param latePolicy policy applied to events dispatched after their frame
+   */
+  public void setLatePolicy(LatePolicy latePolicy) {
+    this.latePolicy = latePolicy;
+  }
+
+  /**
+   * @return how events are scheduled
+   */
+  public ScheduleMode getScheduleMode() {
+    return scheduleMode;
+  }
+
+  /**
+   * Select how events are scheduled. In FRAME mode, the default, each pre()
+   * call moves the playback one frame forward and sends the events recorded
+   * for it, reading ahead according to the sketch frame rate. In TIME mode the
+   * score is played back from a dedicated thread according to the timestamps
+   * stored by a {@link ScoreRecorder} with timestamps enabled, so frame drops
+   * in draw() do not stretch the score. The playback clock starts at the first
+   * pre() call after this method or after rewind(). LOCKSTEP mode moves one
+   * frame forward per pre() call as FRAME mode, but only decodes the events
+   * of that frame whatever the sketch frame rate, for offline rendering.
+   *
+   * @param scheduleMode FRAME, TIME or LOCKSTEP, see {@link ScheduleMode}
+   */
+  public void setScheduleMode(ScheduleMode scheduleMode) {
+    this.stopScheduler();
+    this.scheduleMode = scheduleMode;
+  }
+
+  /**
+   * @return true when every event of the score has been dispatched
+   */
+  public boolean isFinished() {
+    return this.reader == null || (this.exhausted && this.events.isEmpty());
+  }
+
+  /**
+   * Loop over a region of the score: when the end of the region is reached,
+   * the player seeks back to its start. Only FRAME and LOCKSTEP schedule modes
+   * loop, TIME mode plays the score once.
+   *
+   * @param start first frame of the region
+   * @param end first frame after the region
+   */
+  public void setLoop(int start, int end) {
+    if (start < 0 || end <= start) {
+      throw new IllegalArgumentException(
+          String.format("invalid loop region: start %d end %d", start, end));
+    }
+    this.loopStart = start;
+    this.loopEnd = end;
+    this.installCache();
+  }
+
+  /**
+   * stop looping, the score is played up to its end
+   */
+  public void noLoop() {
+    this.loopStart = 0;
+    this.loopEnd = 0;
+    this.installCache();
+  }
+
+  /**
+   * @return a loop region is set
+   */
+  public boolean isLooping() {
+    return this.loopEnd > 0;
+  }
+
+  /**
+   * @return first frame of the loop region
+   */
+  public int getLoopStart() {
+    return loopStart;
+  }
+
+  /**
+   * @return first frame after the loop region (0 when not looping)
+   */
+  public int getLoopEnd() {
+    return loopEnd;
+  }
+
+  /**
+   * Keep the decoded events in memory, so that the score is parsed only once
+   * when it is played over and over. The loop region is cached when set (see
+   * {@link #setLoop(int, int)}), the whole score otherwise.
+   *
+   * <p>
+   * The cache is filled during the first pass, replayed from memory by the
+   * following rewinds or loops, and never grows past the memory budget. When
+   * the region does not fit, its beginning is kept in memory and the rest is
+   * parsed from the score on every pass.
+   *
+   * @param budget memory budget in bytes (estimated heap usage of the decoded
+   *          events), 0 to disable the cache
+   */
+  public void setCache(long budget) {
+    if (budget < 0) {
+      throw new IllegalArgumentException(
+          String.format("invalid cache budget %d", budget));
+    }
+    this.cacheBudget = budget;
+    this.installCache();
+  }
+
+  /**
+   * @return memory budget of the decoded event cache (0 when disabled)
+   */
+  public long getCacheBudget() {
+    return cacheBudget;
+  }
+
+  /**
+   * @return estimated heap usage of the cached events
+   */
+  public long getCacheUsage() {
+    return (this.cache == null) ? 0 : this.cache.getUsage();
+  }
+
+  /**
+   * @return number of events replayed from the cache rather than parsed
+   */
+  public long getCacheHits() {
+    return (this.cache == null) ? 0 : this.cache.getHits();
+  }
+
+  /**
+   * Play only the messages whose address matches an OSC address pattern (e.g.
+   * /synth/*, /synth/** for all the levels below /synth, or /acc/{x,y,z});
+   * can be called several times to play several address families. The
+   * patterns are compiled once and handed to the score reader, which skips
+   * the rejected messages before decoding their arguments, and packets left
+   * empty altogether. Raw datagrams partly
+   * rejected are sent as decoded packets holding the accepted messages.
+   *
+   * <p>
+   * Changing the filter during playback re-reads the score from the current
+   * frame, and empties the decoded event cache.
+   *
+   * @param pattern OSC address pattern
+   * @throws IllegalArgumentException if the pattern does not start with '/'
+   */
+  public void include(String pattern) {
+    this.installFilter(this.patterns.include(pattern));
+  }
+
+  /**
+   * Do not play the messages whose address matches an OSC address pattern,
+   * even when they match an included pattern, see {@link #include(String)}
+   *
+   * @param pattern OSC address pattern
+   * @throws IllegalArgumentException if the pattern does not start with '/'
+   */
+  public void exclude(String pattern) {
+    this.installFilter(this.patterns.exclude(pattern));
+  }
+
+  /**
+   * play every message again, see {@link #include(String)}
+   */
+  public void noFilter() {
+    this.patterns.clear();
+    this.installFilter(null);
+  }
+
+  /**
+   * hand a filter to the score reader, then read the score again from the
+   * current frame
+   *
+   * @param filter address filter, null to play every message
+   */
+  protected void installFilter(ScoreFilter filter) {
+    if (this.reader == null) {
+      return;
+    }
+    // the scheduler thread must not read while the filter changes; the seek
+    // below restarts playback anyway
+    this.stopScheduler();
+    this.stopReadAhead();
+    this.reader.setFilter(filter);
+    if (this.framecount < 0) {
+      this.rewind();
+    } else {
+      // drop the events decoded with the former filter
+      this.seek(this.framecount + 1);
+    }
+  }
+
+  /**
+   * (re)create the decoded event cache for the current region and budget; the
+   * cache starts filling at the next rewind or loop
+   */
+  protected void installCache() {
+    if (this.reader == null) {
+      return;
+    }
+    // the scheduler thread must not read while the reader is swapped
+    long start = this.pauseScheduler();
+    this.stopReadAhead();
+    if (this.cache != null) {
+      this.reader = this.cache.getReader();
+      this.cache = null;
+    }
+    if (this.cacheBudget > 0) {
+      this.cache = new CachedScoreReader(this.reader, this.cacheBudget,
+          this.loopStart, this.isLooping() ? this.loopEnd : Integer.MAX_VALUE);
+      this.reader = this.cache;
+    }
+
+    if (this.framecount < 0) {
+      // playback has not started yet, let the first pass fill the cache
+      this.rewind();
+    } else {
+      this.startReadAhead();
+      this.resumeScheduler(start);
+    }
+  }
+
+  /**
+   * Decode the score on a background thread rather than in pre(). The decoded
+   * events are buffered in a ring: decoding stops when the ring holds high
+   * events and resumes when it is drained down to low events.
+   *
+   * @param low low watermark
+   * @param high high watermark, 0 to disable read-ahead
+   */
+  public void setReadAhead(int low, int high) {
+    if (high < 0 || low < 0 || (high > 0 && low >= high)) {
+      throw new IllegalArgumentException(String.format(
+          "invalid read-ahead watermarks: low %d high %d", low, high));
+    }
+    // the scheduler thread must not fetch while the ring is drained
+    long start = this.pauseScheduler();
+    this.stopReadAhead();
+    this.lowWatermark = low;
+    this.highWatermark = high;
+    this.startReadAhead();
+    this.resumeScheduler(start);
+  }
+
+  /**
+   * @return read-ahead low watermark
+   */
+  public int getLowWatermark() {
+    return lowWatermark;
+  }
+
+  /**
+   * @return read-ahead high watermark (0 when read-ahead is disabled)
+   */
+  public int getHighWatermark() {
+    return highWatermark;
+  }
+
+  /**
+   * @return number of times playback found the read-ahead buffer empty before
+   *         the end of the score
+   */
+  public long getUnderruns() {
+    return underruns;
+  }
+
+  /**
+   * @return number of decoded events waiting in the read-ahead buffer
+   */
+  public int getReadAheadLevel() {
+    return (this.readahead == null) ? 0 : this.readahead.level();
+  }
+
+  /**
+   * @return number of events dispatched after their frame
+   */
+  public long getLateEvents() {
+    return lateEvents;
+  }
+
+  /**
+   * @return number of late events discarded by the DROP policy, or of late
+   *         messages overwritten by the COLLAPSE policy
+   */
+  public long getDroppedEvents() {
+    return droppedEvents;
+  }
+
+  /**
+   * @return sum of the lateness (in frames) of all late events
+   */
+  public long getTotalLateness() {
+    return totalLateness;
+  }
+
+  /**
+   * @return worst lateness (in frames) seen so far
+   */
+  public int getMaxLateness() {
+    return maxLateness;
+  }
+
+  /**
+   * reset the late event counters
+   */
+  public void resetLateStats() {
+    this.lateEvents = 0;
+    this.droppedEvents = 0;
+    this.totalLateness = 0;
+    this.maxLateness = 0;
+  }
+
+  /**
+   * @return path to Osc score (paths separated by File.pathSeparator for a
+   *         multi-track player)
    */
   public String getScorePath() {
     return this.xmlfilepath;
   }
 
+  /**
+   * @return tracks of a multi-track player (empty when playing a single score)
+   */
+  public List<ScoreTrack> getTracks() {
+    return this.tracks;
+  }
+
+  /**
+   * @return frame rate of the sketch that recorded the score, 0 if unknown
+   *         (scores recorded by former versions, multi-track players)
+   */
+  public float getScoreFrameRate() {
+    ScoreHeader h = this.getHeader();
+    return (h == null) ? 0 : h.getFrameRate();
+  }
+
+  /**
+   * @return number of packets of the score, -1 if unknown
+   */
+  public long getScorePackets() {
+    ScoreHeader h = this.getHeader();
+    return (h == null) ? -1 : h.getPackets();
+  }
+
+  /**
+   * @return frame of the last packet of the score, -1 if unknown
+   */
+  public int getScoreLastFrame() {
+    ScoreHeader h = this.getHeader();
+    return (h == null) ? -1 : h.getLastFrame();
+  }
+
+  /**
+   * @return complete header of the score, null if unknown
+   */
+  protected ScoreHeader getHeader() {
+    ScoreHeader h = (this.reader == null) ? null : this.reader.getHeader();
+    return (h != null && h.isComplete()) ? h : null;
+  }
+
+  /**
+   * warn once when the sketch does not run at the frame rate the score was
+   * recorded at, since frame based playback would then be faster or slower
+   * than the recording. Processing measures the frame rate over the last
+   * frames, so the check waits for the measure to settle.
+   */
+  protected void checkFrameRate() {
+    float recorded = this.getScoreFrameRate();
+    if (recorded <= 0) {
+      this.rateChecked = true;
+      return;
+    }
+    if (this.framecount < RATE_CHECK_SECONDS * recorded) {
+      return;
+    }
+    this.rateChecked = true;
+    if (Math.abs(this.pp.frameRate - recorded) > RATE_TOLERANCE * recorded) {
+      System.err.println(String.format("WARNING: OSC score at %s was recorded"
+          + " at %.1f fps, the sketch runs at %.1f fps", this.xmlfilepath,
+          recorded, this.pp.frameRate));
+    }
+  }
+
   /**
    * parse the score looking for the next event and push that in the event queue
    *
@@ -148,20 +656,44 @@ public class ScorePlayer {
    */
   protected int fetch(int num) {
     int retvalue = 0;
+    if (this.reader == null) {
+      // the score could not be opened
+      return retvalue;
+    }
+
+    if (this.readahead != null) {
+      for (int cnt = 0; cnt < num; cnt++) {
+        boolean finished = this.readahead.isFinished();
+        ScoreEvent ev = this.readahead.poll();
+        if (ev == null) {
+          if (finished) {
+            this.exhausted = true;
+          } else {
+            // the decoder is lagging behind
+            this.underruns++;
+          }
+          break;
+        }
+        this.events.add(ev);
+        retvalue++;
+      }
+      return retvalue;
+    }
 
     for (int cnt = 0; cnt < num; cnt++) {
       try {
-        if (xer.peek().isStartElement()) {
-          JAXBElement<ScoreDataPacket> jb = this.unmarshaller.unmarshal(xer,
-              ScoreDataPacket.class);
-          this.events.add(jb.getValue().toScoreEvent());
-          retvalue++;
-        } else {
+        ScoreEvent ev = this.reader.next();
+        if (ev == null) {
           // nothing left to fetch
+          this.exhausted = true;
           break;
         }
-      } catch (JAXBException | XMLStreamException e) {
+        this.events.add(ev);
+        retvalue++;
+      } catch (IOException e) {
         ScoreUtils.handleException(e, "Invalid OSC score content");
+        this.exhausted = true;
+        break;
       }
     }
 
@@ -174,6 +706,31 @@ public class ScorePlayer {
   public void pre() {
     this.framecount++;
 
+    if (this.scheduleMode == ScheduleMode.TIME) {
+      // events are sent by the scheduler thread, just make sure it is running
+      if (this.scheduler == null) {
+        this.resumeScheduler(System.nanoTime());
+      }
+      return;
+    }
+
+    if (this.isLooping() && this.framecount >= this.loopEnd) {
+      // back to the start of the loop region
+      this.seek(this.loopStart);
+      this.framecount++;
+    }
+
+    if (this.scheduleMode == ScheduleMode.LOCKSTEP) {
+      // the frame rate is meaningless when rendering offline: only decode what
+      // is needed for this frame
+      this.dispatch(this.framecount);
+      return;
+    }
+
+    if (!this.rateChecked) {
+      this.checkFrameRate();
+    }
+
     // we want the event queue to underrun as little as possible
     // worst case scenario is one event per frame, so we try to
     // have always frameRate events in queue
@@ -184,21 +741,127 @@ public class ScorePlayer {
         (int) this.pp.frameRate);
     this.fetch(eventsToFetch);
 
-    if (this.events.isEmpty()) {
-      // when we land here these is nothing left to fetch and nothing left to
-      // schedule
-      return;
+    this.dispatch(this.framecount);
+  }
+
+  /**
+   * send every event scheduled at or before the given frame, applying the late
+   * event policy to the ones whose frame has already gone by
+   *
+   * @param frame current frame
+   */
+  protected void dispatch(int frame) {
+    while (true) {
+      if (this.events.isEmpty() && this.fetch(1) == 0) {
+        // nothing left to fetch and nothing left to schedule
+        break;
+      }
+
+      // at what frame should we schedule the next event? look at the head of
+      // the event queue
+      if (this.events.peek().getFrame() > frame) {
+        // not its moment yet
+        break;
+      }
+
+      ScoreEvent ev = this.events.remove();
+      int lateness = frame - ev.getFrame();
+      if (lateness == 0) {
+        if (this.latePolicy == LatePolicy.COLLAPSE) {
+          // held back until the late messages of the frame are known
+          this.onTime.add(ev);
+        } else {
+          // hey, it's your moment: send it over loopback
+          this.send(ev);
+        }
+        continue;
+      }
+
+      // late event: update the statistics and apply the policy
+      this.lateEvents++;
+      this.totalLateness += lateness;
+      this.maxLateness = Math.max(this.maxLateness, lateness);
+      switch (this.latePolicy) {
+        case SEND:
+          this.send(ev);
+          break;
+        case DROP:
+          this.droppedEvents++;
+          break;
+        case COLLAPSE:
+          this.collapse(ev.getPkt());
+          break;
+      }
+    }
+
+    // the on time events supersede the late messages of their addresses, so
+    // that the latest value of each address is the last one delivered
+    for (ScoreEvent ev : this.onTime) {
+      if (!this.collapsed.isEmpty()) {
+        this.supersede(ev.getPkt());
+      }
+      this.send(ev);
+    }
+    this.onTime.clear();
+
+    // send whatever survived the collapsing
+    for (OscMessage msg : this.collapsed.values()) {
+      sca.loopback(msg);
+    }
+    this.collapsed.clear();
+
+    // everything due on this frame has been looped back
+    sca.flush();
+  }
+
+  /**
+   * send an event over loopback, as received when it was captured in raw mode
+   *
+   * @param ev event to send
+   */
+  protected void send(ScoreEvent ev) {
+    if (ev.hasRaw()) {
+      sca.loopback(ev.getPkt(), ev.getRaw());
+    } else {
+      sca.loopback(ev.getPkt());
+    }
+  }
+
+  /**
+   * keep only the last message for each address of a late packet
+   *
+   * @param pkt late packet
+   */
+  protected void collapse(OscPacket pkt) {
+    if (pkt instanceof OscBundle) {
+      OscBundle bundle = (OscBundle) pkt;
+      for (int i = 0; i < bundle.size(); i++) {
+        this.collapse(bundle.getMessage(i));
+      }
+    } else {
+      OscMessage msg = (OscMessage) pkt;
+      // remove before put, so that the iteration order follows the last update
+      if (this.collapsed.remove(msg.addrPattern()) != null) {
+        this.droppedEvents++;
+      }
+      this.collapsed.put(msg.addrPattern(), msg);
     }
+  }
 
-    // if we get here there is something in the event list: at what frame should
-    // we schedule the next event? look at the head of the event queue
-    int execFrame = this.events.peek().getFrame();
-    if (execFrame == this.framecount) {
-      // hey, it's your moment:
-      // - pop the element from the queue
-      // - get the packet in it
-      // - send it over loopback
-      sca.loopback(this.events.remove().getPkt());
+  /**
+   * drop the collapsed late messages for the addresses of an on time packet
+   *
+   * @param pkt on time packet
+   */
+  protected void supersede(OscPacket pkt) {
+    if (pkt instanceof OscBundle) {
+      OscBundle bundle = (OscBundle) pkt;
+      for (int i = 0; i < bundle.size(); i++) {
+        this.supersede(bundle.getMessage(i));
+      }
+    } else if (this.collapsed
+        .remove(((OscMessage) pkt).addrPattern()) != null) {
+      this.droppedEvents++;
     }
   }
 
@@ -206,27 +869,140 @@ public class ScorePlayer {
    * rewind the score and restart the player
    */
   public void rewind() {
+    this.stopScheduler();
+    this.stopReadAhead();
     this.framecount = -1;
     this.events.clear();
+    this.exhausted = false;
 
+    if (this.reader == null) {
+      return;
+    }
     try {
-      // rewind the filestream
-      this.xmlfilestream.getChannel().position(0);
-      // create the XML event reader
-      XMLInputFactory xif = XMLInputFactory.newInstance();
-      this.xer = xif.createXMLEventReader(this.xmlfilestream);
-      // initialize the unmarshaller
-      JAXBContext jc = JAXBContext.newInstance(ScoreDataPacket.class);
-      this.unmarshaller = jc.createUnmarshaller();
-      // advance the reader, pointer right before the first packet
-      do {
-        xer.nextEvent();
-      } while (!xer.peek().asStartElement().getName().getLocalPart()
-          .equals("oscpacket"));
-    } catch (XMLStreamException | JAXBException | IOException
-        | ClassCastException e) {
+      this.reader.rewind();
+    } catch (IOException e) {
       ScoreUtils.handleException(e, "Invalid OSC score content");
     }
+    this.startReadAhead();
+  }
+
+  /**
+   * Move the player right before a frame: the events scheduled at that frame
+   * will be sent by the next pre() call, the ones before it are skipped.
+   *
+   * <p>
+   * For XML scores the first seek loads the frame index stored next to the
+   * score, or builds it with a quick scan of the file. Every seek then costs a
+   * binary search in the index plus the parsing of a few packets. Binary
+   * scores are seeked by skipping whole packets, without decoding them.
+   * Compressed XML scores have no index: they are decompressed and parsed from
+   * the beginning up to the frame.
+   *
+   * @param frame frame to move to
+   */
+  public void seek(int frame) {
+    this.stopScheduler();
+    this.stopReadAhead();
+    this.events.clear();
+    this.exhausted = false;
+
+    this.framecount = frame - 1;
+    if (this.reader == null) {
+      return;
+    }
+    try {
+      this.reader.seek(frame);
+    } catch (IOException e) {
+      ScoreUtils.handleException(e, "Invalid OSC score content");
+    }
+    this.startReadAhead();
+  }
+
+  /**
+   * stop the scheduler thread, if running
+   */
+  protected void stopScheduler() {
+    if (this.scheduler != null) {
+      this.scheduler.shutdown();
+      this.scheduler = null;
+    }
+  }
+
+  /**
+   * stop the scheduler thread while the event queue or the reader are changed
+   * without moving in the score, see {@link #resumeScheduler(long)}
+   *
+   * @return clock origin of the stopped scheduler, 0 if none was running
+   */
+  protected long pauseScheduler() {
+    long start = (this.scheduler != null) ? this.scheduler.start : 0;
+    this.stopScheduler();
+    return start;
+  }
+
+  /**
+   * start the scheduler thread, keeping the clock of the score
+   *
+   * @param start clock origin of the score, 0 to leave the scheduler stopped
+   */
+  protected void resumeScheduler(long start) {
+    if (start == 0) {
+      return;
+    }
+    float fps = (this.pp.frameRate > 0) ? this.pp.frameRate : 60;
+    this.scheduler = new ScoreScheduler(this, (long) (1e9 / fps), start);
+    this.scheduler.start();
+  }
+
+  /**
+   * start the background decoder, if enabled
+   */
+  protected void startReadAhead() {
+    if (this.highWatermark > 0 && this.reader != null) {
+      int low = this.lowWatermark;
+      int high = this.highWatermark;
+      ScoreHeader h = this.getHeader();
+      if (h != null && h.getPackets() < high) {
+        // the whole score fits in a smaller ring
+        high = (int) h.getPackets() + 1;
+        low = Math.min(low, high - 1);
+      }
+      this.readahead = new ScoreReadAhead(this.reader, low, high);
+      this.readahead.start();
+    }
+  }
+
+  /**
+   * stop the background decoder, if running. Events still in its buffer are
+   * moved to the event queue, so that they are not lost.
+   */
+  protected void stopReadAhead() {
+    if (this.readahead != null) {
+      this.readahead.shutdown();
+      ScoreEvent ev;
+      while ((ev = this.readahead.poll()) != null) {
+        this.events.add(ev);
+      }
+      this.readahead = null;
+    }
+  }
+
+  /**
+   * end of sketch method that stops the background threads and closes the
+   * score. This method is automatically registered as a callback in the
+   * Processing sketch and should not be invoked directly.
+   */
+  public void dispose() {
+    this.stopScheduler();
+    if (this.reader == null) {
+      return;
+    }
+    this.stopReadAhead();
+    try {
+      this.reader.close();
+    } catch (IOException e) {
+      ScoreUtils.handleException(e, "Unable to close OSC score");
+    }
   }
 
   /**
@@ -242,9 +1018,9 @@ public class ScorePlayer {
           "current frame: %d (%d) - frame rate: %.1f", this.framecount,
           pp.frameCount, pp.frameRate);
 
+      ScoreEvent next = this.events.peek();
       String eventInfo = String.format("Next scheduled event: %s\n",
-          (this.events.size() > 0) ? this.events.peek().getFrame()
-              : "event queue empty");
+          (next != null) ? next.getFrame() : "event queue empty");
 
       pp.textSize(12);
       pp.fill(255, 255, 0);
@@ -264,8 +1040,9 @@ public class ScorePlayer {
     str += "ScorePlayer: ";
     str += String.format("Debug mode: %b ", this.isDebug());
     str += String.format("Current frame: %d ", this.pp.frameCount);
-    str += (this.events.isEmpty()) ? "Scheduled event: NO EVENT"
-        : String.format("Scheduled event: %s", this.events.peek().toString());
+    ScoreEvent next = this.events.peek();
+    str += (next == null) ? "Scheduled event: NO EVENT"
+        : String.format("Scheduled event: %s", next.toString());
     return str;
   }
 
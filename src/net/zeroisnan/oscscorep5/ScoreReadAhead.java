@@ -0,0 +1,140 @@
+/**
+ * ##library.name##
+ * ##library.sentence##
+ * ##library.url##
+ *
+ * Copyright ##copyright## ##author##
+ * SPDX-License-Identifier: LGPL-3.0-or-later
+ *
+ * @author      ##author##
+ * @version     ##library.prettyVersion## (##library.version##)
+ *              Last modified: ##date##
+ */
+
+package net.zeroisnan.oscscorep5;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Decode score events on a background thread, ahead of playback.
+ *
+ * <p>
+ * The producer thread fills a {@link ScoreEventRing} up to the high watermark,
+ * then sleeps until the consumer drains it down to the low watermark, so that
+ * decoding happens in bursts rather than once per event. The ring is prefilled
+ * synchronously when the read-ahead is created, so playback does not start
+ * with an underrun.
+ */
+class ScoreReadAhead extends Thread {
+  /** how long the producer sleeps before checking the ring level again */
+  final static long PARK_NANOS = 1000000L;
+
+  /** reader owned by the producer thread while running */
+  protected final ScoreReader reader;
+  /** decoded events */
+  protected final ScoreEventRing ring;
+  /** the producer resumes when the ring level drops to this value */
+  protected final int low;
+  /** the producer stops when the ring level reaches this value */
+  protected final int high;
+  /** cleared to stop the thread */
+  protected volatile boolean running;
+  /** set when the producer reached the end of the score */
+  protected volatile boolean finished;
+
+  /**
+   * constructor, prefills the ring up to the high watermark
+   *
+   * @param reader reader positioned where playback shall continue
+   * @param low low watermark
+   * @param high high watermark
+   */
+  ScoreReadAhead(ScoreReader reader, int low, int high) {
+    super("OscScoreP5-readahead");
+    this.reader = reader;
+    this.ring = new ScoreEventRing(high);
+    this.low = low;
+    this.high = high;
+    this.running = true;
+    this.setDaemon(true);
+
+    while (!this.finished && this.ring.size() < high) {
+      this.produce();
+    }
+  }
+
+  @Override
+  public void run() {
+    while (this.running && !this.finished) {
+      if (this.ring.size() >= this.high) {
+        // wait for the consumer to drain the ring down to the low watermark
+        while (this.running && this.ring.size() > this.low) {
+          LockSupport.parkNanos(this, PARK_NANOS);
+        }
+        continue;
+      }
+      this.produce();
+    }
+  }
+
+  /**
+   * decode one event and push it in the ring
+   */
+  protected void produce() {
+    try {
+      ScoreEvent ev = this.reader.next();
+      if (ev == null) {
+        this.finished = true;
+        return;
+      }
+      while (!this.ring.offer(ev) && this.running) {
+        LockSupport.parkNanos(this, PARK_NANOS);
+      }
+    } catch (IOException e) {
+      ScoreUtils.handleException(e, "Invalid OSC score content");
+      this.finished = true;
+    }
+  }
+
+  /**
+   * get the next decoded event (consumer side)
+   *
+   * @return the event, null if none is ready
+   */
+  ScoreEvent poll() {
+    ScoreEvent ev = this.ring.poll();
+    if (this.ring.size() == this.low) {
+      LockSupport.unpark(this);
+    }
+    return ev;
+  }
+
+  /**
+   * @return true when all the events of the score have been decoded
+   */
+  boolean isFinished() {
+    return this.finished;
+  }
+
+  /**
+   * @return number of decoded events ready for playback
+   */
+  int level() {
+    return this.ring.size();
+  }
+
+  /**
+   * stop the producer and wait for the thread to terminate; the reader is
+   * positioned after the last decoded event
+   */
+  void shutdown() {
+    this.running = false;
+    LockSupport.unpark(this);
+    try {
+      this.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
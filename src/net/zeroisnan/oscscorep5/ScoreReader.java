@@ -0,0 +1,114 @@
+/**
+ * ##library.name##
+ * ##library.sentence##
+ * ##library.url##
+ *
+ * Copyright ##copyright## ##author##
+ * SPDX-License-Identifier: LGPL-3.0-or-later
+ *
+ * @author      ##author##
+ * @version     ##library.prettyVersion## (##library.version##)
+ *              Last modified: ##date##
+ */
+
+package net.zeroisnan.oscscorep5;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Objects implementing this interface stream the events of a score, in score
+ * order. The on-disk format is chosen by {@link #open(String)} according to
+ * the extension of the score; a score recorded into segments (see
+ * {@link ScoreSegments}) is read as a whole through the path it was recorded
+ * at.
+ */
+interface ScoreReader extends Closeable {
+  /**
+   * open a score for reading, picking the format from its extension
+   *
+   * @param path path to the score
+   * @return a reader positioned before the first event
+   * @throws IOException if the score can not be opened or is invalid
+   */
+  static ScoreReader open(String path) throws IOException {
+    if (!new File(path).exists()) {
+      List<String> segments = ScoreSegments.list(path);
+      if (!segments.isEmpty()) {
+        return new SegmentedScoreReader(path, segments);
+      }
+    }
+    if (path.endsWith(BinScoreFormat.EXTENSION)) {
+      return new BinScoreReader(path);
+    }
+    return new XmlScoreReader(path);
+  }
+
+  /**
+   * open a score for a pass over all its events: large XML scores are decoded
+   * with several threads (see {@link ParallelScoreReader}), other scores as by
+   * {@link #open(String)}
+   *
+   * @param path path to the score
+   * @return a reader positioned before the first event
+   * @throws IOException if the score can not be opened or is invalid
+   */
+  static ScoreReader openParallel(String path) throws IOException {
+    if (ParallelScoreReader.isEligible(path)) {
+      return new ParallelScoreReader(path);
+    }
+    return open(path);
+  }
+
+  /**
+   * @return path to the score
+   */
+  String getPath();
+
+  /**
+   * @return the next event, null at the end of the score
+   * @throws IOException on invalid score content
+   */
+  ScoreEvent next() throws IOException;
+
+  /**
+   * move back before the first event
+   *
+   * @throws IOException on invalid score content
+   */
+  void rewind() throws IOException;
+
+  /**
+   * move before the first event scheduled at or after a frame
+   *
+   * @param frame frame to move to
+   * @throws IOException on invalid score content
+   */
+  void seek(int frame) throws IOException;
+
+  /**
+   * skip the messages rejected by a filter, before decoding their arguments;
+   * packets left without messages are skipped altogether. Takes effect from
+   * the next rewind or seek.
+   *
+   * @param filter address filter, null to read every message
+   */
+  void setFilter(ScoreFilter filter);
+
+  /**
+   * @return header of the score (see {@link ScoreHeader}), null if it has none
+   */
+  default ScoreHeader getHeader() {
+    return null;
+  }
+
+  /**
+   * @return the end of a truncated score has been reached: the score was read
+   *         up to its last complete packet
+   */
+  default boolean isTruncated() {
+    return false;
+  }
+}
@@ -0,0 +1,269 @@
+/**
+ * ##library.name##
+ * ##library.sentence##
+ * ##library.url##
+ *
+ * Copyright ##copyright## ##author##
+ * SPDX-License-Identifier: LGPL-3.0-or-later
+ *
+ * @author      ##author##
+ * @version     ##library.prettyVersion## (##library.version##)
+ *              Last modified: ##date##
+ */
+
+package net.zeroisnan.oscscorep5;
+
+import oscP5.OscMessage;
+
+/**
+ * Reusable copy of a recorded OSC message, or of a datagram captured in raw
+ * mode, with its frame and time.
+ *
+ * <p>
+ * Arguments are stored by type in arrays owned by the record: numbers and
+ * chars as their raw bits in a long array, strings and blobs by reference,
+ * booleans in the type itself. Raw datagrams are copied in
+ * a byte array owned by the record. Records are allocated once and refilled
+ * for each message, so recording does not generate garbage per message; the
+ * arrays only grow when a message is larger than any message seen before by
+ * the record.
+ */
+class ScoreRecord {
+  /** initial capacity of the argument arrays */
+  final static int INITIAL_ARGS = 8;
+  /**
+   * argument types stored in the scores: string, int, float, double, long,
+   * char, blob, true and false
+   */
+  final static String TYPES = "sifdhcbTF";
+
+  /** frame of the message */
+  protected int frame;
+  /** timestamp of the message (ScoreEvent.NO_TIME if not recorded) */
+  protected long time;
+  /** address pattern of the message */
+  protected String address;
+  /** number of arguments */
+  protected int count;
+  /** type of each argument */
+  protected byte[] types;
+  /** raw bits of each numeric argument */
+  protected long[] numbers;
+  /** value of each string or blob argument */
+  protected Object[] refs;
+  /** datagram bytes (raw mode) */
+  protected byte[] raw;
+  /** length of the datagram, -1 for a decoded message */
+  protected int rawLength;
+
+  /**
+   * constructor
+   */
+  ScoreRecord() {
+    this.types = new byte[INITIAL_ARGS];
+    this.numbers = new long[INITIAL_ARGS];
+    this.refs = new Object[INITIAL_ARGS];
+    this.raw = new byte[0];
+    this.rawLength = -1;
+  }
+
+  /**
+   * copy a message into the record
+   *
+   * @param frame frame of the message
+   * @param time timestamp of the message (ScoreEvent.NO_TIME if not recorded)
+   * @param msg message to copy
+   */
+  void set(int frame, long time, OscMessage msg) {
+    byte[] typetag = msg.getTypetagAsBytes();
+    Object[] args = msg.arguments();
+    this.ensure(typetag.length);
+    this.frame = frame;
+    this.time = time;
+    this.address = msg.addrPattern();
+    this.count = typetag.length;
+    this.rawLength = -1;
+
+    for (int i = 0; i < this.count; i++) {
+      byte c = typetag[i];
+      this.types[i] = c;
+      this.refs[i] = null;
+      switch (c) {
+        case 's':
+        case 'b':
+          this.refs[i] = args[i];
+          break;
+        case 'i':
+          this.numbers[i] = ((Integer) args[i]).intValue();
+          break;
+        case 'f':
+          this.numbers[i] = Float.floatToRawIntBits((Float) args[i]);
+          break;
+        case 'd':
+          this.numbers[i] = Double.doubleToRawLongBits((Double) args[i]);
+          break;
+        case 'h':
+          this.numbers[i] = ((Long) args[i]).longValue();
+          break;
+        case 'c':
+          this.numbers[i] = ((Character) args[i]).charValue();
+          break;
+        case 'T':
+        case 'F':
+          // the value is the type
+          break;
+        default:
+          // not supported, reported by the score writers
+          break;
+      }
+    }
+  }
+
+  /**
+   * copy a datagram into the record (raw mode)
+   *
+   * @param frame frame of the datagram
+   * @param time timestamp of the datagram (ScoreEvent.NO_TIME if not recorded)
+   * @param data datagram buffer
+   * @param off offset of the datagram
+   * @param len length of the datagram
+   */
+  void setRaw(int frame, long time, byte[] data, int off, int len) {
+    if (this.raw.length < len) {
+      this.raw = new byte[Math.max(len, 2 * this.raw.length)];
+    }
+    System.arraycopy(data, off, this.raw, 0, len);
+    this.frame = frame;
+    this.time = time;
+    this.address = null;
+    this.count = 0;
+    this.rawLength = len;
+  }
+
+  /**
+   * @return the record holds a datagram captured in raw mode
+   */
+  boolean isRaw() {
+    return this.rawLength >= 0;
+  }
+
+  /**
+   * @return datagram buffer (raw mode), holding {@link #rawLength()} bytes
+   */
+  byte[] rawBytes() {
+    return this.raw;
+  }
+
+  /**
+   * @return length of the datagram (raw mode)
+   */
+  int rawLength() {
+    return this.rawLength;
+  }
+
+  /**
+   * @return frame of the message
+   */
+  int getFrame() {
+    return this.frame;
+  }
+
+  /**
+   * @return timestamp of the message (ScoreEvent.NO_TIME if not recorded)
+   */
+  long getTime() {
+    return this.time;
+  }
+
+  /**
+   * @return address pattern of the message
+   */
+  String getAddress() {
+    return this.address;
+  }
+
+  /**
+   * @return number of arguments
+   */
+  int size() {
+    return this.count;
+  }
+
+  /**
+   * @param i argument index
+   * @return type of the argument
+   */
+  char type(int i) {
+    return (char) this.types[i];
+  }
+
+  /**
+   * @param i argument index
+   * @return value of an 'i' argument
+   */
+  int intValue(int i) {
+    return (int) this.numbers[i];
+  }
+
+  /**
+   * @param i argument index
+   * @return value of a 'f' argument
+   */
+  float floatValue(int i) {
+    return Float.intBitsToFloat((int) this.numbers[i]);
+  }
+
+  /**
+   * @param i argument index
+   * @return value of a 'd' argument
+   */
+  double doubleValue(int i) {
+    return Double.longBitsToDouble(this.numbers[i]);
+  }
+
+  /**
+   * @param i argument index
+   * @return value of a 's' argument
+   */
+  String stringValue(int i) {
+    return (String) this.refs[i];
+  }
+
+  /**
+   * @param i argument index
+   * @return value of a 'h' argument
+   */
+  long longValue(int i) {
+    return this.numbers[i];
+  }
+
+  /**
+   * @param i argument index
+   * @return value of a 'c' argument
+   */
+  char charValue(int i) {
+    return (char) this.numbers[i];
+  }
+
+  /**
+   * @param i argument index
+   * @return value of a 'b' argument
+   */
+  byte[] blobValue(int i) {
+    return (byte[]) this.refs[i];
+  }
+
+  /**
+   * make room for the arguments of a message
+   *
+   * @param n number of arguments
+   */
+  protected void ensure(int n) {
+    if (n > this.types.length) {
+      int size = Math.max(n, this.types.length * 2);
+      this.types = new byte[size];
+      this.numbers = new long[size];
+      this.refs = new Object[size];
+    }
+  }
+}
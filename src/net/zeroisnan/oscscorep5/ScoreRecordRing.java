@@ -0,0 +1,105 @@
+/**
+ * ##library.name##
+ * ##library.sentence##
+ * ##library.url##
+ *
+ * Copyright ##copyright## ##author##
+ * SPDX-License-Identifier: LGPL-3.0-or-later
+ *
+ * @author      ##author##
+ * @version     ##library.prettyVersion## (##library.version##)
+ *              Last modified: ##date##
+ */
+
+package net.zeroisnan.oscscorep5;
+
+/**
+ * Bounded single-producer/single-consumer ring buffer of preallocated
+ * {@link ScoreRecord} slots.
+ *
+ * <p>
+ * The producer fills the slot returned by {@link #claim()} in place and makes
+ * it visible with {@link #publish()}. The consumer takes the record out of the
+ * oldest slot with {@link #poll(ScoreRecord)}, leaving a spare record of its
+ * own in exchange, so records are recycled and never allocated after
+ * construction. As with {@link ScoreEventRing}, exactly one thread may produce
+ * and exactly one (other) thread may consume.
+ */
+class ScoreRecordRing {
+  /** record slots */
+  protected final ScoreRecord[] slots;
+  /** slots.length - 1, slots.length being a power of two */
+  protected final int mask;
+  /** number of records polled so far (written by the consumer only) */
+  protected volatile long head;
+  /** number of records published so far (written by the producer only) */
+  protected volatile long tail;
+
+  /**
+   * constructor
+   *
+   * @param capacity minimum capacity, rounded up to a power of two
+   */
+  ScoreRecordRing(int capacity) {
+    int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+    this.slots = new ScoreRecord[size];
+    for (int i = 0; i < size; i++) {
+      this.slots[i] = new ScoreRecord();
+    }
+    this.mask = size - 1;
+  }
+
+  /**
+   * @return capacity of the ring
+   */
+  int capacity() {
+    return this.slots.length;
+  }
+
+  /**
+   * @return number of records in the ring
+   */
+  int size() {
+    return (int) (this.tail - this.head);
+  }
+
+  /**
+   * get the next free slot (producer side); the slot must be published before
+   * claiming another one
+   *
+   * @return record to fill, null if the ring is full
+   */
+  ScoreRecord claim() {
+    long t = this.tail;
+    if (t - this.head == this.slots.length) {
+      return null;
+    }
+    return this.slots[(int) t & this.mask];
+  }
+
+  /**
+   * make the claimed slot visible to the consumer (producer side)
+   */
+  void publish() {
+    this.tail = this.tail + 1;
+  }
+
+  /**
+   * remove the oldest record (consumer side)
+   *
+   * @param spare record left in the slot in exchange
+   * @return the record, null if the ring is empty (spare is kept then)
+   */
+  ScoreRecord poll(ScoreRecord spare) {
+    long h = this.head;
+    if (h == this.tail) {
+      return null;
+    }
+    int i = (int) h & this.mask;
+    ScoreRecord rec = this.slots[i];
+    this.slots[i] = spare;
+    // release the slot
+    this.head = h + 1;
+    return rec;
+  }
+}
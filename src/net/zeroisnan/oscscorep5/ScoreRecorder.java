@@ -13,19 +13,12 @@
 
 package net.zeroisnan.oscscorep5;
 
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBElement;
-import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
-import javax.xml.namespace.QName;
-import javax.xml.stream.XMLOutputFactory;
-import javax.xml.stream.XMLStreamException;
-import javax.xml.stream.XMLStreamWriter;
+import java.util.concurrent.locks.LockSupport;
 
 import oscP5.OscEventListener;
 import oscP5.OscMessage;
@@ -58,7 +51,10 @@ import processing.core.PApplet;
  * The XML schema used to represent OSC messages is inspired by
  * <a href="http://opensoundcontrol.org/publication/bidirectional-xml-mapping">
  * this work</a> by Ben Chun. The frameCount variable from the Processing applet
- * is used as a timestamp.
+ * is used as a timestamp. When timestamps are enabled, each packet also stores
+ * the nanoseconds elapsed since the start of the recording in a timestamp
+ * element right after the framecount, which allows {@link ScorePlayer} to
+ * replay the score according to wall-clock time.
  *
  * <pre>
  * &lt;oscscore generator="processing sketch name"&gt;
@@ -91,43 +87,143 @@ import processing.core.PApplet;
  * &lt;/oscscore&gt;
  * </pre>
  *
+ * <p>
+ * The score also starts with a header element summarizing it (frame rate of
+ * the sketch, number of packets and messages, frame range, where the frame
+ * index is stored), completed when the recording ends, and ends with the
+ * dictionary of the addresses it holds (see {@link ScoreHeader}):
+ * {@link ScorePlayer} uses them to prepare playback before the first frame.
+ *
+ * <p>
+ * Besides s, i, f and d, arguments of type h (long), c (char, stored as its
+ * code), T and F (no value) and b (blob) are recorded. Blobs are stored as
+ * base64 text with their size, e.g.
+ * <code>&lt;arg type="b" size="3"&gt;AQID&lt;/arg&gt;</code>, and are
+ * streamed in chunks both ways. Other OSC types (MIDI, timetags, nil,
+ * infinitum) can not be sent again through OscP5: they are reported and left
+ * out, unless the datagrams are captured in raw mode.
+ *
+ * <p>
+ * Scores whose name ends with .oscb are written in a compact binary format
+ * instead (see {@link BinScoreFormat}), which is much smaller and faster to
+ * play back. Scores whose name ends with .gz (e.g. mydump.xml.gz) are XML
+ * scores compressed on the fly, on the writer thread. {@link ScorePlayer}
+ * picks the format from the extension too.
+ *
+ * <p>
+ * oscEvent() runs on the thread receiving the OSC messages, so it only copies
+ * each message, stamped with its frame (and time), in a preallocated slot of a
+ * bounded lock-free queue read by a writer thread: serialization and disk I/O
+ * never delay the reception of the next message, and recording does not
+ * allocate any object per message. When the writer falls behind and the
+ * queue fills up, the {@link Backpressure} policy decides whether incoming
+ * messages are dropped (and counted) or whether the receiving thread waits.
+ * oscEvent() must not be called by several threads at once.
  */
 public class ScoreRecorder implements OscEventListener {
+  /** default capacity of the queue feeding the writer thread */
+  public final static int DEFAULT_QUEUE_CAPACITY = 4096;
+  /** default number of packets between two commits */
+  public final static int DEFAULT_COMMIT_PACKETS = 256;
+  /** default number of milliseconds between two commits */
+  public final static int DEFAULT_COMMIT_MILLIS = 1000;
+  /** how long a blocked oscEvent() waits before checking the queue again */
+  final static long PARK_NANOS = 100000L;
+
+  /**
+   * what to do with incoming messages when the writer thread falls behind and
+   * its queue is full
+   * <ul>
+   * <li>DROP : discard the message, see {@link #getDroppedMessages()}
+   * <li>BLOCK : wait for the writer thread, see {@link #getStalls()}; until
+   * pre() starts the writer thread, the message is discarded instead
+   * </ul>
+   */
+  public enum Backpressure {
+    DROP, BLOCK
+  }
+
   /** reference to Processing parent applet */
   protected PApplet parent;
   /** used to implement some pre-draw actions only once */
   protected boolean pre_done;
-  /** next event (OscPacket) to stream to XML */
-  protected ScoreDataPacket pkt2write;
+  /** messages captured by oscEvent(), waiting for the writer thread */
+  protected ScoreRecordRing queue;
+  /** writer thread (null until pre() is called) */
+  protected ScoreWriterThread writerThread;
+  /** set by pre() once the recording start time is set and the writer runs */
+  protected volatile boolean started;
+  /** set by dispose(), later messages are ignored */
+  protected volatile boolean closed;
+  /** backpressure policy */
+  protected volatile Backpressure backpressure;
+  /** messages dropped because the queue was full */
+  protected volatile long dropped;
+  /** number of times oscEvent() had to wait for room in the queue */
+  protected volatile long stalls;
 
-  /** path to the output XML file */
+  /** path to the output score */
   protected String xmlfilepath;
-  /** XML file stream object (used by the writer) */
-  protected FileOutputStream xmlfilestream;
-  /** XML writer */
-  protected XMLStreamWriter xtw;
-  /** used for marshalling */
-  protected Marshaller marshaller;
+  /** score writer (XML or binary, according to the file extension) */
+  protected ScoreWriter writer;
+
+  /** store nanosecond timestamps along with the frame count */
+  protected boolean timestamps;
+  /** System.nanoTime() at the start of the recording */
+  protected long starttime;
+
+  /** commit after this many packets */
+  protected int commitPackets;
+  /** commit after this many milliseconds */
+  protected int commitMillis;
+  /** fsync on commit */
+  protected boolean sync;
+  /** closes the score when the JVM exits without calling dispose() */
+  protected Thread shutdownHook;
+
+  /** record datagrams as received instead of decoded messages */
+  protected boolean rawCapture;
+  /** address patterns of the messages coalesced per frame */
+  protected final ScorePatterns coalesce;
+  /** compiled coalesce patterns (null to coalesce nothing) */
+  protected ScoreFilter coalescing;
+  /** address patterns of the messages recorded (all when empty) */
+  protected final ScorePatterns patterns;
+  /** compiled address filter (null to record every message) */
+  protected volatile ScoreFilter filter;
+  /** number of messages (datagrams in raw mode) rejected by the filter */
+  protected volatile long filtered;
+  /** frame of the message being queued */
+  protected int stampFrame;
+  /** timestamp of the message being queued */
+  protected long stampTime;
 
   /**
-   * constructor
+   * constructor (complete)
    *
    * @param p reference to the parent sketch applet
    * @param xmlfilepath path to the XML output
+   * @param capacity capacity of the queue feeding the writer thread (rounded
+   *          up to a power of two)
    */
-  public ScoreRecorder(PApplet p, String xmlfilepath) {
+  public ScoreRecorder(PApplet p, String xmlfilepath, int capacity) {
     this.parent = p;
     this.pre_done = false;
+    this.backpressure = Backpressure.DROP;
+    this.commitPackets = DEFAULT_COMMIT_PACKETS;
+    this.commitMillis = DEFAULT_COMMIT_MILLIS;
+    this.coalesce = new ScorePatterns();
+    this.patterns = new ScorePatterns();
     this.xmlfilepath = Paths.get(xmlfilepath).toAbsolutePath().toString();
     try {
-      this.xmlfilestream = new FileOutputStream(this.xmlfilepath);
-    } catch (FileNotFoundException e) {
+      this.writer = ScoreWriter.create(this.xmlfilepath);
+    } catch (IOException e) {
       System.err.println(
           String.format("ERROR: unable to open OSC score for write at %s - %s",
               this.xmlfilepath, e.getMessage()));
       return;
     }
-    this.pkt2write = null;
+    this.queue = new ScoreRecordRing(capacity);
 
     // register pre method which will initialize the XML file
     this.parent.registerMethod("pre", this);
@@ -136,41 +232,315 @@ public class ScoreRecorder implements OscEventListener {
   }
 
   /**
-   * @return path to Osc score
+   * constructor (default queue capacity)
+   *
+   * @param p reference to the parent sketch applet
+   * @param xmlfilepath path to the XML output
    */
-  public String getScorePath() {
-    return this.xmlfilepath;
+  public ScoreRecorder(PApplet p, String xmlfilepath) {
+    this(p, xmlfilepath, DEFAULT_QUEUE_CAPACITY);
   }
 
   /**
-   * pre-draw method that creates the XML output stream. This method is
-   * automatically registered as a callback in the Processing sketch and should
-   * not be invoked directly.
+   * Set how often the recorded packets are committed, i.e. pushed to the
+   * operating system: after a crash of the sketch the score can be played
+   * back up to the last commit. Packets are committed in groups, every
+   * <code>packets</code> packets or every <code>millis</code> milliseconds,
+   * whichever comes first.
+   *
+   * @param packets commit after this many packets
+   * @param millis commit after this many milliseconds
+   * @param sync also wait for the data to reach the disk (fsync), which
+   *          survives power losses too but costs a lot more
    */
-  public void pre() {
-    if (!pre_done) {
+  public void setCommitPolicy(int packets, int millis, boolean sync) {
+    if (packets <= 0 || millis <= 0) {
+      throw new IllegalArgumentException(String.format(
+          "invalid commit policy: packets %d millis %d", packets, millis));
+    }
+    this.commitPackets = packets;
+    this.commitMillis = millis;
+    this.sync = sync;
+    if (this.writerThread != null) {
+      this.writerThread.setCommitPolicy(packets, millis, sync);
+    }
+  }
 
-      XMLOutputFactory xof = XMLOutputFactory.newInstance();
+  /**
+   * @return number of packets between two commits
+   */
+  public int getCommitPackets() {
+    return commitPackets;
+  }
 
-      try {
-        // create the marshaller
-        JAXBContext jc = JAXBContext.newInstance(ScoreDataPacket.class);
-        marshaller = jc.createMarshaller();
-        marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
-
-        // create the XML stream writer
-        xtw = xof.createXMLStreamWriter(this.xmlfilestream, "utf-8");
-        System.out.println(String.format("ScoreRecorder: dumping XML at %s",
-            this.xmlfilepath));
-        // write initial XML content
-        xtw.writeStartDocument("utf-8", "1.0");
-        xtw.writeStartElement("oscscore");
-        xtw.writeAttribute("generator", parent.getClass().getSimpleName());
-      } catch (JAXBException | XMLStreamException e) {
-        System.err
-            .println(String.format("ERROR: while creating OSC score at %s - %s",
-                this.xmlfilepath, e.getMessage()));
+  /**
+   * @return number of milliseconds between two commits
+   */
+  public int getCommitMillis() {
+    return commitMillis;
+  }
+
+  /**
+   * @return commits wait for the data to reach the disk
+   */
+  public boolean isSync() {
+    return sync;
+  }
+
+  /**
+   * Record into a sequence of segments instead of a single score, for
+   * installations running for days. A new segment is started when the
+   * current one reaches <code>maxBytes</code> bytes, spans
+   * <code>maxFrames</code> frames or has been recorded for
+   * <code>maxMillis</code> milliseconds, whichever comes first (0 disables a
+   * limit). The segments of mydump.xml are named mydump.000.xml,
+   * mydump.001.xml, ... and each one is a valid score on its own;
+   * {@link ScorePlayer} plays them back as one score when given mydump.xml.
+   * Segments left over by a previous recording at the same path are deleted.
+   *
+   * @param maxBytes maximum segment size in bytes
+   * @param maxFrames maximum number of frames in a segment
+   * @param maxMillis maximum segment duration in milliseconds
+   * @throws IllegalStateException if the recording has already started
+   */
+  public void setSegmentation(long maxBytes, int maxFrames, int maxMillis) {
+    if (maxBytes < 0 || maxFrames < 0 || maxMillis < 0
+        || (maxBytes == 0 && maxFrames == 0 && maxMillis == 0)) {
+      throw new IllegalArgumentException(String.format(
+          "invalid segmentation: bytes %d frames %d millis %d", maxBytes,
+          maxFrames, maxMillis));
+    }
+    if (this.pre_done) {
+      throw new IllegalStateException(
+          "segmentation must be set before the recording starts");
+    }
+    if (this.writer == null) {
+      return;
+    }
+    try {
+      // the score is replaced by its segments
+      this.writer.close();
+      Files.deleteIfExists(Paths.get(this.xmlfilepath));
+      for (String segment : ScoreSegments.list(this.xmlfilepath)) {
+        Files.delete(Paths.get(segment));
       }
+      this.writer = new SegmentedScoreWriter(this.xmlfilepath, maxBytes,
+          maxFrames, maxMillis);
+    } catch (IOException e) {
+      System.err.println(
+          String.format("ERROR: unable to open OSC score for write at %s - %s",
+              this.xmlfilepath, e.getMessage()));
+      this.writer = null;
+    }
+  }
+
+  /**
+   * Record the OSC datagrams exactly as received, with their frame and time,
+   * instead of the decoded messages: no decoding nor re-encoding takes place,
+   * and bundles keep their structure and timetags. The datagrams are handed
+   * over by {@link OscScoreP5} (see {@link #capture(DatagramPacket)}) and
+   * stored in a binary score (.oscb), whose playback re-injects them
+   * unchanged.
+   *
+   * @param rawCapture enable/disable raw capture
+   * @throws IllegalArgumentException if the score is not a binary score
+   * @throws IllegalStateException if the recording has already started
+   */
+  public void setRawCapture(boolean rawCapture) {
+    if (rawCapture && !this.xmlfilepath.endsWith(BinScoreFormat.EXTENSION)) {
+      throw new IllegalArgumentException(
+          "raw capture needs a binary score (" + BinScoreFormat.EXTENSION
+              + "): " + this.xmlfilepath);
+    }
+    if (this.pre_done) {
+      throw new IllegalStateException(
+          "raw capture must be set before the recording starts");
+    }
+    this.rawCapture = rawCapture;
+  }
+
+  /**
+   * @return datagrams are recorded as received
+   */
+  public boolean isRawCapture() {
+    return this.rawCapture;
+  }
+
+  /**
+   * @return the score is recorded into segments
+   */
+  public boolean isSegmented() {
+    return this.writer instanceof SegmentedScoreWriter;
+  }
+
+  /**
+   * Coalesce the messages whose address matches an OSC address pattern (e.g.
+   * /fader/* or /acc/{x,y,z}): only the last message received in each frame
+   * for a given address is recorded, in place of the first one. Meant for
+   * high rate controller streams (faders, sensors...) where only the latest
+   * value matters to a frame based sketch. Not applied in raw capture mode.
+   *
+   * @param pattern OSC address pattern
+   * @throws IllegalArgumentException if the pattern does not start with '/'
+   */
+  public synchronized void coalesce(String pattern) {
+    this.coalescing = this.coalesce.include(pattern);
+    if (this.writerThread != null) {
+      this.writerThread.setCoalesce(this.coalescing);
+    }
+  }
+
+  /**
+   * stop coalescing messages, see {@link #coalesce(String)}
+   */
+  public synchronized void noCoalesce() {
+    this.coalesce.clear();
+    this.coalescing = null;
+    if (this.writerThread != null) {
+      this.writerThread.setCoalesce(null);
+    }
+  }
+
+  /**
+   * @return number of messages replaced by a later message of the same frame
+   *         for the same address, see {@link #coalesce(String)}
+   */
+  public long getCoalescedMessages() {
+    return (this.writerThread == null) ? 0
+        : this.writerThread.coalescedMessages;
+  }
+
+  /**
+   * Record only the messages whose address matches an OSC address pattern
+   * (e.g. /synth/*, /synth/** for all the levels below /synth, or
+   * /acc/{x,y,z}); can be called several times to record several address
+   * families. The patterns are compiled once, and rejected messages are
+   * dropped before being copied to the writer thread. In raw capture mode, a
+   * datagram is recorded whole when any of its messages is accepted.
+   *
+   * @param pattern OSC address pattern
+   * @throws IllegalArgumentException if the pattern does not start with '/'
+   */
+  public synchronized void include(String pattern) {
+    this.filter = this.patterns.include(pattern);
+  }
+
+  /**
+   * Do not record the messages whose address matches an OSC address pattern,
+   * even when they match an included pattern, see {@link #include(String)}
+   *
+   * @param pattern OSC address pattern
+   * @throws IllegalArgumentException if the pattern does not start with '/'
+   */
+  public synchronized void exclude(String pattern) {
+    this.filter = this.patterns.exclude(pattern);
+  }
+
+  /**
+   * record every message again, see {@link #include(String)}
+   */
+  public synchronized void noFilter() {
+    this.patterns.clear();
+    this.filter = null;
+  }
+
+  /**
+   * @return number of messages (datagrams in raw capture mode) not recorded
+   *         because of the address filter, see {@link #include(String)}
+   */
+  public long getFilteredMessages() {
+    return filtered;
+  }
+
+  /**
+   * @return backpressure policy
+   */
+  public Backpressure getBackpressure() {
+    return backpressure;
+  }
+
+  /**
+   * @param backpressure what to do with incoming messages when the queue
+   *          feeding the writer thread is full
+   */
+  public void setBackpressure(Backpressure backpressure) {
+    this.backpressure = backpressure;
+  }
+
+  /**
+   * @return number of messages dropped because the queue feeding the writer
+   *         thread was full (DROP policy)
+   */
+  public long getDroppedMessages() {
+    return dropped;
+  }
+
+  /**
+   * @return number of times oscEvent() had to wait for the writer thread
+   *         (BLOCK policy)
+   */
+  public long getStalls() {
+    return stalls;
+  }
+
+  /**
+   * @return number of messages waiting for the writer thread
+   */
+  public int getQueueLevel() {
+    return (this.queue == null) ? 0 : this.queue.size();
+  }
+
+  /**
+   * @return capacity of the queue feeding the writer thread
+   */
+  public int getQueueCapacity() {
+    return (this.queue == null) ? 0 : this.queue.capacity();
+  }
+
+  /**
+   * @return timestamps are stored in the score
+   */
+  public boolean isTimestamps() {
+    return timestamps;
+  }
+
+  /**
+   * @param timestamps enable/disable storing nanosecond timestamps along with
+   *          the frame count (needed by the TIME schedule mode of
+   *          {@link ScorePlayer})
+   */
+  public void setTimestamps(boolean timestamps) {
+    this.timestamps = timestamps;
+  }
+
+  /**
+   * @return path to Osc score
+   */
+  public String getScorePath() {
+    return this.xmlfilepath;
+  }
+
+  /**
+   * pre-draw method that starts the writer thread, which creates the score
+   * output stream. This method is automatically registered as a callback in
+   * the Processing sketch and should not be invoked directly.
+   */
+  public synchronized void pre() {
+    if (!pre_done && this.writer != null) {
+      System.out.println(String.format("ScoreRecorder: dumping score at %s",
+          this.xmlfilepath));
+      // the recording starts now
+      this.starttime = System.nanoTime();
+      this.writer.setFrameRate(parent.frameRate);
+      this.writerThread = new ScoreWriterThread(this.writer,
+          parent.getClass().getSimpleName(), this.queue, this.commitPackets,
+          this.commitMillis, this.sync);
+      this.writerThread.setCoalesce(this.coalescing);
+      this.writerThread.start();
+      this.started = true;
+      // terminate the score even when the sketch is killed (e.g. Stop button)
+      this.shutdownHook = new Thread(this::dispose, "OscScoreP5-shutdown");
+      Runtime.getRuntime().addShutdownHook(this.shutdownHook);
     }
 
     // do this only once
@@ -178,23 +548,26 @@ public class ScoreRecorder implements OscEventListener {
   }
 
   /**
-   * end of sketch method that flushes and closes the XML output stream. This
-   * method is automatically registered as a callback in the Processing sketch
-   * and should not be invoked directly.
+   * end of sketch method that waits for the writer thread to flush and close
+   * the score output stream. This method is automatically registered as a
+   * callback in the Processing sketch and should not be invoked directly.
    */
-  public void dispose() {
-    try {
-      // write out anything still pending
-      this.writeXMLElement();
-
-      xtw.writeEndElement();
-      xtw.writeEndDocument();
-      xtw.flush();
-      xtw.close();
-    } catch (XMLStreamException e) {
-      System.err
-          .println(String.format("ERROR: while closing OSC score at %s - %s",
-              this.xmlfilepath, e.getMessage()));
+  public synchronized void dispose() {
+    if (this.closed || this.writer == null) {
+      return;
+    }
+    // write whatever was captured, even if the sketch never drew a frame
+    this.pre();
+    this.closed = true;
+    // measured by Processing over the last frames
+    this.writer.setFrameRate(parent.frameRate);
+    this.writerThread.shutdown();
+    if (Thread.currentThread() != this.shutdownHook) {
+      try {
+        Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
+      } catch (IllegalStateException e) {
+        // the JVM is already shutting down
+      }
     }
   }
 
@@ -208,76 +581,109 @@ public class ScoreRecorder implements OscEventListener {
   }
 
   /**
-   * invoked whenever an OSC message is received, it translates the message into
-   * a XML node
+   * invoked whenever an OSC message is received, it stamps the message with
+   * the current frame and queues it for the writer thread (ignored in raw
+   * capture mode)
    *
    * @param msg the message
    */
   @Override
   public void oscEvent(OscMessage msg) {
-    if (this.pkt2write != null) {
-      if (this.pkt2write.getFramecount() < parent.frameCount) {
-        // this message does not belong to the last created bundle
-        // so write out the bundle and start a new one
-        this.writeXMLElement();
-      }
+    if (this.rawCapture) {
+      return;
     }
-
-    // extract all relevant information from the message
-    ScoreDataMessage mmm = new ScoreDataMessage();
-    mmm.setAddress(msg.addrPattern());
-    mmm.setTypetag(msg.typetag());
-
-    ArrayList<ScoreDataArg> args = new ArrayList<ScoreDataArg>();
-    for (int i = 0; i < msg.typetag().length(); i++) {
-      ScoreDataArg arg = new ScoreDataArg();
-      char c = msg.typetag().charAt(i);
-      arg.setType(String.valueOf(c));
-      switch (c) {
-        case 's':
-          arg.setValue(msg.get(i).stringValue());
-          break;
-        case 'i':
-          arg.setValue(Integer.toString(msg.get(i).intValue()));
-          break;
-        case 'f':
-          arg.setValue(Float.toString(msg.get(i).floatValue()));
-          break;
-        case 'd':
-          arg.setValue(Double.toString(msg.get(i).doubleValue()));
-          break;
-        default:
-          System.err.println(String.format(
-              "OSC message argument %s is invalid or not supported", c));
-          break;
-      }
-      args.add(arg);
+    ScoreFilter f = this.filter;
+    if (f != null && !f.accepts(msg.addrPattern())) {
+      this.filtered++;
+      return;
     }
+    ScoreRecord rec = this.claim();
+    if (rec != null) {
+      rec.set(this.stampFrame, this.stampTime, msg);
+      this.queue.publish();
+    }
+  }
 
-    mmm.setArgs(args);
-
-    if (this.pkt2write == null) {
-      this.pkt2write = new ScoreDataPacket();
-      this.pkt2write.setFramecount(parent.frameCount);
+  /**
+   * In raw capture mode, stamp a received datagram with the current frame and
+   * time and queue its bytes, unchanged, for the writer thread. Invoked by
+   * {@link OscScoreP5} for every datagram it receives, before decoding.
+   *
+   * @param pkt the datagram
+   */
+  public void capture(DatagramPacket pkt) {
+    if (!this.rawCapture) {
+      return;
+    }
+    ScoreFilter f = this.filter;
+    if (f != null && !this.accepts(f, pkt)) {
+      this.filtered++;
+      return;
     }
+    ScoreRecord rec = this.claim();
+    if (rec != null) {
+      rec.setRaw(this.stampFrame, this.stampTime, pkt.getData(),
+          pkt.getOffset(), pkt.getLength());
+      this.queue.publish();
+    }
+  }
 
-    this.pkt2write.addMsg(mmm);
+  /**
+   * @param f address filter
+   * @param pkt a datagram
+   * @return the filter accepts at least one message of the datagram
+   *         (malformed datagrams are recorded anyway)
+   */
+  protected boolean accepts(ScoreFilter f, DatagramPacket pkt) {
+    try {
+      return OscCodec.filter(ByteBuffer.wrap(pkt.getData(), pkt.getOffset(),
+          pkt.getLength()), f) != OscCodec.NONE;
+    } catch (IOException e) {
+      return true;
+    }
   }
 
   /**
-   * write the content of pkt2write into the XML stream
+   * stamp an incoming message and claim a queue slot for it, applying the
+   * backpressure policy when the queue is full
+   *
+   * @return the slot to fill (then publish), null if the message is dropped
    */
-  protected void writeXMLElement() {
-    JAXBElement<ScoreDataPacket> je = new JAXBElement<ScoreDataPacket>(
-        new QName("oscpacket"), ScoreDataPacket.class, this.pkt2write);
+  protected ScoreRecord claim() {
+    if (this.closed || this.queue == null) {
+      return null;
+    }
 
-    try {
-      marshaller.marshal(je, this.xtw);
-    } catch (JAXBException e) {
-      e.printStackTrace();
-      System.err.println("ERROR: While writing XML event: " + e.getMessage());
-    } finally {
-      this.pkt2write = null;
+    // stamped on reception, even if the queue is full; messages received
+    // before pre() are stamped at the start of the recording
+    boolean running = this.started;
+    this.stampFrame = parent.frameCount;
+    if (!this.timestamps) {
+      this.stampTime = ScoreEvent.NO_TIME;
+    } else {
+      this.stampTime = running ? System.nanoTime() - this.starttime : 0;
+    }
+    ScoreRecord rec = this.queue.claim();
+    if (rec != null) {
+      return rec;
     }
+
+    // the writer thread is falling behind, or not running yet: waiting for
+    // pre() would stall the receiving thread for an unknown time
+    if (this.backpressure == Backpressure.DROP || !running) {
+      this.dropped++;
+      return null;
+    }
+    this.stalls++;
+    do {
+      LockSupport.parkNanos(this, PARK_NANOS);
+      if (this.closed || (this.writerThread != null
+          && !this.writerThread.isAlive())) {
+        // nobody will ever drain the queue
+        this.dropped++;
+        return null;
+      }
+    } while ((rec = this.queue.claim()) == null);
+    return rec;
   }
 }
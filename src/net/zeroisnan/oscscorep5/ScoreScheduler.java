@@ -0,0 +1,117 @@
+/**
+ * ##library.name##
+ * ##library.sentence##
+ * ##library.url##
+ *
+ * Copyright ##copyright## ##author##
+ * SPDX-License-Identifier: LGPL-3.0-or-later
+ *
+ * @author      ##author##
+ * @version     ##library.prettyVersion## (##library.version##)
+ *              Last modified: ##date##
+ */
+
+package net.zeroisnan.oscscorep5;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Dispatch the events of a {@link ScorePlayer} at their recorded time rather
+ * than at their recorded frame.
+ *
+ * <p>
+ * The scheduler runs on a dedicated thread, so the playback timing does not
+ * depend on how fast the sketch manages to draw. It parks until shortly before
+ * the next event is due, then spins for the last stretch to get sub
+ * millisecond accuracy. Events recorded without timestamps are scheduled at
+ * their frame number times the frame period.
+ */
+class ScoreScheduler extends Thread {
+  /** below this threshold the scheduler spins instead of parking */
+  final static long SPIN_NANOS = 2000000L;
+
+  /** player owning the event queue */
+  protected final ScorePlayer player;
+  /** nanoseconds per frame, used for events without timestamps */
+  protected final long framePeriod;
+  /** cleared to stop the thread */
+  protected volatile boolean running;
+  /** clock origin of the score, in System.nanoTime() units */
+  protected final long start;
+
+  /**
+   * constructor
+   *
+   * @param player player owning the event queue
+   * @param framePeriod nanoseconds per frame, used for events without
+   *          timestamps
+   * @param start clock origin of the score, in System.nanoTime() units
+   */
+  ScoreScheduler(ScorePlayer player, long framePeriod, long start) {
+    super("OscScoreP5-scheduler");
+    this.player = player;
+    this.framePeriod = framePeriod;
+    this.start = start;
+    this.running = true;
+    this.setDaemon(true);
+    this.setPriority(Thread.MAX_PRIORITY);
+  }
+
+  @Override
+  public void run() {
+    // events sent since the last flush
+    boolean pending = false;
+    while (this.running) {
+      ScoreEvent ev = this.player.events.peek();
+      if (ev == null) {
+        if (this.player.fetch(1) == 0) {
+          ScoreReadAhead ra = this.player.readahead;
+          if (ra != null && !(ra.isFinished() && ra.level() == 0)) {
+            // the background decoder is lagging behind
+            if (pending) {
+              this.player.sca.flush();
+              pending = false;
+            }
+            LockSupport.parkNanos(ScoreReadAhead.PARK_NANOS);
+            continue;
+          }
+          // end of score
+          break;
+        }
+        continue;
+      }
+
+      long offset = ev.hasTime() ? ev.getTime() : ev.getFrame() * framePeriod;
+      long wait = this.start + offset - System.nanoTime();
+      if (wait > 0 && pending) {
+        // nothing else is due right now: flush once, not on every spin
+        this.player.sca.flush();
+        pending = false;
+      }
+      if (wait > SPIN_NANOS) {
+        LockSupport.parkNanos(wait - SPIN_NANOS);
+      } else if (wait > 0) {
+        Thread.yield();
+      } else {
+        this.player.events.remove();
+        this.player.send(ev);
+        pending = true;
+      }
+    }
+    this.player.sca.flush();
+  }
+
+  /**
+   * stop the scheduler and wait for the thread to terminate
+   */
+  void shutdown() {
+    this.running = false;
+    // unpark rather than interrupt, an interrupt would close the score channel
+    LockSupport.unpark(this);
+    try {
+      this.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
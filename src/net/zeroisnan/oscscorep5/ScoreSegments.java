@@ -0,0 +1,77 @@
+/**
+ * ##library.name##
+ * ##library.sentence##
+ * ##library.url##
+ *
+ * Copyright ##copyright## ##author##
+ * SPDX-License-Identifier: LGPL-3.0-or-later
+ *
+ * @author      ##author##
+ * @version     ##library.prettyVersion## (##library.version##)
+ *              Last modified: ##date##
+ */
+
+package net.zeroisnan.oscscorep5;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Naming of the segments of a segmented score.
+ *
+ * <p>
+ * The segments of the score <code>show.xml</code> are named
+ * <code>show.000.xml</code>, <code>show.001.xml</code>, ... The segment number
+ * goes right before the format extension, so each segment is a standalone
+ * score of the same format (e.g. <code>show.000.xml.gz</code> for
+ * <code>show.xml.gz</code>).
+ */
+final class ScoreSegments {
+  /** extensions made of several parts, checked first */
+  final static String[] COMPOUND_EXTENSIONS = { ".xml.gz" };
+
+  private ScoreSegments() {
+  }
+
+  /**
+   * @param base path to the segmented score
+   * @param n segment number
+   * @return path to the segment
+   */
+  static String segmentPath(String base, int n) {
+    int dot = extensionStart(base);
+    return String.format("%s.%03d%s", base.substring(0, dot), n,
+        base.substring(dot));
+  }
+
+  /**
+   * @param base path to the segmented score
+   * @return paths to the existing segments, in order (empty if the score is
+   *         not segmented)
+   */
+  static List<String> list(String base) {
+    List<String> segments = new ArrayList<String>();
+    String path;
+    while (new File(path = segmentPath(base, segments.size())).isFile()) {
+      segments.add(path);
+    }
+    return segments;
+  }
+
+  /**
+   * @param path path to a score
+   * @return index where the format extension starts (length of the path if
+   *         there is none)
+   */
+  static int extensionStart(String path) {
+    int sep = path.lastIndexOf(File.separatorChar) + 1;
+    for (String ext : COMPOUND_EXTENSIONS) {
+      if (path.endsWith(ext) && path.length() - ext.length() > sep) {
+        return path.length() - ext.length();
+      }
+    }
+    int dot = path.lastIndexOf('.');
+    return (dot > sep) ? dot : path.length();
+  }
+}
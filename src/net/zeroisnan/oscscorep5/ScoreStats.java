@@ -0,0 +1,679 @@
+/**
+ * ##library.name##
+ * ##library.sentence##
+ * ##library.url##
+ *
+ * Copyright ##copyright## ##author##
+ * SPDX-License-Identifier: LGPL-3.0-or-later
+ *
+ * @author      ##author##
+ * @version     ##library.prettyVersion## (##library.version##)
+ *              Last modified: ##date##
+ */
+
+package net.zeroisnan.oscscorep5;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import oscP5.OscBundle;
+import oscP5.OscMessage;
+import oscP5.OscPacket;
+
+/**
+ * Statistics about the density of a score, to find out before a show whether
+ * playing it back may overload the sketch:
+ * <ul>
+ * <li>packets and messages per frame, with their peaks
+ * <li>frames holding more messages than a budget, and the longest run of
+ * consecutive frames over the budget
+ * <li>bursts, i.e. runs of consecutive frames each holding packets
+ * <li>messages per address, and their rate
+ * <li>argument payload size of the messages
+ * </ul>
+ *
+ * The score is streamed once, one packet at a time, so scores of any size can
+ * be analyzed. Distributions are kept in {@link Histogram}s with power of two
+ * buckets. Usage from a sketch:
+ *
+ * <pre>
+ * ScoreStats stats = ScoreStats.of(&quot;mydump.oscb&quot;, 64);
+ * println(stats);
+ * if (stats.getFramesOverBudget() &gt; 0) {
+ *   println(&quot;frames over budget: &quot; + stats.getOverBudgetFrames());
+ * }
+ * </pre>
+ *
+ * The same report is printed by the stats command of {@link ScoreTool}.
+ */
+public class ScoreStats {
+  /** maximum number of frames over budget listed */
+  public final static int MAX_LISTED_FRAMES = 100;
+  /** number of addresses listed in the report */
+  final static int REPORT_ADDRESSES = 20;
+
+  /**
+   * distribution of non negative values, counted in power of two buckets: 0,
+   * 1, 2-3, 4-7, 8-15...
+   */
+  public static class Histogram {
+    /** count of each bucket */
+    protected final long[] buckets = new long[64];
+    /** number of values */
+    protected long count;
+    /** sum of the values */
+    protected long sum;
+    /** largest value */
+    protected long max;
+
+    /**
+     * @param value value to count
+     */
+    void add(long value) {
+      this.buckets[bucket(value)]++;
+      this.count++;
+      this.sum += value;
+      this.max = Math.max(this.max, value);
+    }
+
+    /**
+     * @param value a non negative value
+     * @return its bucket
+     */
+    static int bucket(long value) {
+      return 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    /**
+     * @return number of values
+     */
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * @return largest value
+     */
+    public long getMax() {
+      return max;
+    }
+
+    /**
+     * @return mean value (0 when empty)
+     */
+    public double getMean() {
+      return (this.count == 0) ? 0 : (double) this.sum / this.count;
+    }
+
+    /**
+     * @param bucket bucket number, see {@link #getBucketMin(int)}
+     * @return number of values in the bucket
+     */
+    public long getBucketCount(int bucket) {
+      return this.buckets[bucket];
+    }
+
+    /**
+     * @param bucket bucket number
+     * @return smallest value of the bucket (0, 1, 2, 4, 8...)
+     */
+    public static long getBucketMin(int bucket) {
+      return (bucket == 0) ? 0 : 1L << (bucket - 1);
+    }
+
+    /**
+     * @return number of buckets up to the one of the largest value
+     */
+    public int getBuckets() {
+      return bucket(this.max) + 1;
+    }
+
+    /**
+     * @return one line per bucket, up to the largest value
+     */
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      for (int b = 0; b < this.getBuckets(); b++) {
+        long min = getBucketMin(b);
+        long top = (b == 0) ? 0 : 2 * min - 1;
+        sb.append(String.format("  %10s : %d%n",
+            (min == top) ? Long.toString(min) : min + "-" + top,
+            this.buckets[b]));
+      }
+      return sb.toString();
+    }
+  }
+
+  /** path to the score */
+  protected final String path;
+  /** maximum number of messages per frame (0 for no budget) */
+  protected final int budget;
+
+  /** number of packets */
+  protected long packets;
+  /** number of messages */
+  protected long messages;
+  /** frame of the first packet */
+  protected int firstFrame;
+  /** frame of the last packet */
+  protected int lastFrame;
+  /** timestamp of the first packet (NO_TIME if not recorded) */
+  protected long firstTime;
+  /** timestamp of the last packet (NO_TIME if not recorded) */
+  protected long lastTime;
+
+  /** packets per frame holding packets */
+  protected final Histogram packetsPerFrame;
+  /** messages per frame holding packets */
+  protected final Histogram messagesPerFrame;
+  /** argument payload size of each message, in bytes */
+  protected final Histogram argumentBytes;
+  /** frames of consecutive busy frames */
+  protected final Histogram burstFrames;
+  /** messages per address */
+  protected final Map<String, Long> addresses;
+
+  /** frame with the most packets */
+  protected int peakPacketsFrame;
+  /** most packets in a frame */
+  protected int peakPackets;
+  /** frame with the most messages */
+  protected int peakMessagesFrame;
+  /** most messages in a frame */
+  protected int peakMessages;
+
+  /** number of frames over budget */
+  protected long framesOverBudget;
+  /** first frames over budget */
+  protected final List<Integer> overBudgetFrames;
+  /** longest run of consecutive frames over budget */
+  protected int longestOverBudget;
+  /** first frame of the longest run of frames over budget */
+  protected int longestOverBudgetFrame;
+  /** longest burst, in frames */
+  protected int longestBurst;
+  /** first frame of the longest burst */
+  protected int longestBurstFrame;
+
+  /** frame being counted */
+  protected int frame;
+  /** packets of the frame being counted */
+  protected int framePackets;
+  /** messages of the frame being counted */
+  protected int frameMessages;
+  /** first frame of the current burst */
+  protected int burstStart;
+  /** first frame of the current run over budget, -1 when not over budget */
+  protected int overStart;
+  /** last frame counted, -1 before the first one */
+  protected int previousFrame;
+
+  /**
+   * constructor, counts are then fed one event at a time
+   *
+   * @param path path to the score
+   * @param budget maximum number of messages per frame (0 for no budget)
+   */
+  ScoreStats(String path, int budget) {
+    if (budget < 0) {
+      throw new IllegalArgumentException(
+          String.format("invalid budget %d", budget));
+    }
+    this.path = path;
+    this.budget = budget;
+    this.firstTime = ScoreEvent.NO_TIME;
+    this.lastTime = ScoreEvent.NO_TIME;
+    this.packetsPerFrame = new Histogram();
+    this.messagesPerFrame = new Histogram();
+    this.argumentBytes = new Histogram();
+    this.burstFrames = new Histogram();
+    this.addresses = new HashMap<String, Long>();
+    this.overBudgetFrames = new ArrayList<Integer>();
+    this.overStart = -1;
+    this.previousFrame = -1;
+  }
+
+  /**
+   * analyze a score, without message budget
+   *
+   * @param path path to the score
+   * @return statistics about the score
+   * @throws IOException if the score can not be read
+   */
+  public static ScoreStats of(String path) throws IOException {
+    return of(path, 0);
+  }
+
+  /**
+   * analyze a score
+   *
+   * @param path path to the score
+   * @param budget maximum number of messages per frame the sketch can take,
+   *          frames above it are flagged (0 for no budget)
+   * @return statistics about the score
+   * @throws IOException if the score can not be read
+   */
+  public static ScoreStats of(String path, int budget) throws IOException {
+    ScoreStats stats = new ScoreStats(path, budget);
+    try (ScoreReader reader = ScoreReader.openParallel(path)) {
+      ScoreEvent ev;
+      while ((ev = reader.next()) != null) {
+        stats.add(ev);
+      }
+    }
+    stats.finish();
+    return stats;
+  }
+
+  /**
+   * count an event (events come in score order)
+   *
+   * @param ev the event
+   */
+  void add(ScoreEvent ev) {
+    if (this.packets == 0) {
+      this.firstFrame = ev.getFrame();
+      this.frame = ev.getFrame();
+      this.burstStart = ev.getFrame();
+    } else if (ev.getFrame() != this.frame) {
+      this.endFrame();
+      this.frame = ev.getFrame();
+    }
+    if (ev.hasTime()) {
+      if (this.firstTime == ScoreEvent.NO_TIME) {
+        this.firstTime = ev.getTime();
+      }
+      this.lastTime = ev.getTime();
+    }
+    this.packets++;
+    this.lastFrame = ev.getFrame();
+    this.framePackets++;
+
+    OscPacket pkt = ev.getPkt();
+    if (pkt instanceof OscBundle) {
+      OscBundle bundle = (OscBundle) pkt;
+      for (int i = 0; i < bundle.size(); i++) {
+        this.add(bundle.getMessage(i));
+      }
+    } else {
+      this.add((OscMessage) pkt);
+    }
+  }
+
+  /**
+   * count a message
+   *
+   * @param msg the message
+   */
+  protected void add(OscMessage msg) {
+    this.messages++;
+    this.frameMessages++;
+    this.addresses.merge(msg.addrPattern(), 1L, Long::sum);
+    this.argumentBytes.add(payload(msg));
+  }
+
+  /**
+   * count the last frame, once the whole score has been fed
+   */
+  void finish() {
+    if (this.packets > 0) {
+      this.endFrame();
+      this.endBurst(this.previousFrame);
+      this.endOverBudget(this.previousFrame);
+    }
+  }
+
+  /**
+   * count the frame being counted
+   */
+  protected void endFrame() {
+    int f = this.frame;
+    this.packetsPerFrame.add(this.framePackets);
+    this.messagesPerFrame.add(this.frameMessages);
+    if (this.framePackets > this.peakPackets) {
+      this.peakPackets = this.framePackets;
+      this.peakPacketsFrame = f;
+    }
+    if (this.frameMessages > this.peakMessages) {
+      this.peakMessages = this.frameMessages;
+      this.peakMessagesFrame = f;
+    }
+
+    if (this.previousFrame >= 0 && f != this.previousFrame + 1) {
+      // a gap ends the burst
+      this.endBurst(this.previousFrame);
+      this.burstStart = f;
+    }
+
+    boolean over = this.budget > 0 && this.frameMessages > this.budget;
+    if (over) {
+      this.framesOverBudget++;
+      if (this.overBudgetFrames.size() < MAX_LISTED_FRAMES) {
+        this.overBudgetFrames.add(f);
+      }
+      if (this.overStart >= 0 && f != this.previousFrame + 1) {
+        this.endOverBudget(this.previousFrame);
+      }
+      if (this.overStart < 0) {
+        this.overStart = f;
+      }
+    } else {
+      this.endOverBudget(this.previousFrame);
+    }
+
+    this.previousFrame = f;
+    this.framePackets = 0;
+    this.frameMessages = 0;
+  }
+
+  /**
+   * @param last last frame of the burst
+   */
+  protected void endBurst(int last) {
+    int length = last - this.burstStart + 1;
+    this.burstFrames.add(length);
+    if (length > this.longestBurst) {
+      this.longestBurst = length;
+      this.longestBurstFrame = this.burstStart;
+    }
+  }
+
+  /**
+   * @param last last frame of the run over budget, if any
+   */
+  protected void endOverBudget(int last) {
+    if (this.overStart >= 0) {
+      int length = last - this.overStart + 1;
+      if (length > this.longestOverBudget) {
+        this.longestOverBudget = length;
+        this.longestOverBudgetFrame = this.overStart;
+      }
+      this.overStart = -1;
+    }
+  }
+
+  /**
+   * @param msg a message
+   * @return size of its arguments in bytes, as stored in binary scores
+   *         (strings in UTF-8, without length prefixes)
+   */
+  static long payload(OscMessage msg) {
+    byte[] types = msg.getTypetagAsBytes();
+    Object[] args = msg.arguments();
+    long size = 0;
+    for (int i = 0; i < types.length; i++) {
+      switch (types[i]) {
+        case 'i':
+        case 'f':
+          size += 4;
+          break;
+        case 'd':
+        case 'h':
+          size += 8;
+          break;
+        case 'c':
+          size += 2;
+          break;
+        case 's':
+          size += ((String) args[i]).getBytes(StandardCharsets.UTF_8).length;
+          break;
+        case 'b':
+          size += ((byte[]) args[i]).length;
+          break;
+        default:
+          // T and F have no payload
+          break;
+      }
+    }
+    return size;
+  }
+
+  /**
+   * @return path to the score
+   */
+  public String getPath() {
+    return path;
+  }
+
+  /**
+   * @return maximum number of messages per frame (0 for no budget)
+   */
+  public int getBudget() {
+    return budget;
+  }
+
+  /**
+   * @return number of packets
+   */
+  public long getPackets() {
+    return packets;
+  }
+
+  /**
+   * @return number of messages
+   */
+  public long getMessages() {
+    return messages;
+  }
+
+  /**
+   * @return frame of the first packet
+   */
+  public int getFirstFrame() {
+    return firstFrame;
+  }
+
+  /**
+   * @return frame of the last packet
+   */
+  public int getLastFrame() {
+    return lastFrame;
+  }
+
+  /**
+   * @return number of frames from the first packet to the last one
+   */
+  public int getFrameSpan() {
+    return (this.packets == 0) ? 0 : this.lastFrame - this.firstFrame + 1;
+  }
+
+  /**
+   * @return number of frames holding packets
+   */
+  public long getBusyFrames() {
+    return this.messagesPerFrame.getCount();
+  }
+
+  /**
+   * @return nanoseconds from the first packet to the last one (0 when the
+   *         score has no timestamps)
+   */
+  public long getDuration() {
+    return (this.firstTime == ScoreEvent.NO_TIME) ? 0
+        : this.lastTime - this.firstTime;
+  }
+
+  /**
+   * @return packets per frame, for the frames holding packets
+   */
+  public Histogram getPacketsPerFrame() {
+    return packetsPerFrame;
+  }
+
+  /**
+   * @return messages per frame, for the frames holding packets
+   */
+  public Histogram getMessagesPerFrame() {
+    return messagesPerFrame;
+  }
+
+  /**
+   * @return argument payload size of the messages, in bytes
+   */
+  public Histogram getArgumentBytes() {
+    return argumentBytes;
+  }
+
+  /**
+   * @return length in frames of the bursts (runs of consecutive frames each
+   *         holding packets)
+   */
+  public Histogram getBursts() {
+    return burstFrames;
+  }
+
+  /**
+   * @return most packets in a frame
+   */
+  public int getPeakPackets() {
+    return peakPackets;
+  }
+
+  /**
+   * @return first frame holding the most packets
+   */
+  public int getPeakPacketsFrame() {
+    return peakPacketsFrame;
+  }
+
+  /**
+   * @return most messages in a frame
+   */
+  public int getPeakMessages() {
+    return peakMessages;
+  }
+
+  /**
+   * @return first frame holding the most messages
+   */
+  public int getPeakMessagesFrame() {
+    return peakMessagesFrame;
+  }
+
+  /**
+   * @return number of frames holding more messages than the budget
+   */
+  public long getFramesOverBudget() {
+    return framesOverBudget;
+  }
+
+  /**
+   * @return first frames holding more messages than the budget (up to
+   *         {@link #MAX_LISTED_FRAMES})
+   */
+  public List<Integer> getOverBudgetFrames() {
+    return Collections.unmodifiableList(overBudgetFrames);
+  }
+
+  /**
+   * @return longest run of consecutive frames over budget
+   */
+  public int getLongestOverBudget() {
+    return longestOverBudget;
+  }
+
+  /**
+   * @return first frame of the longest run of frames over budget
+   */
+  public int getLongestOverBudgetFrame() {
+    return longestOverBudgetFrame;
+  }
+
+  /**
+   * @return longest burst, in frames
+   */
+  public int getLongestBurst() {
+    return longestBurst;
+  }
+
+  /**
+   * @return first frame of the longest burst
+   */
+  public int getLongestBurstFrame() {
+    return longestBurstFrame;
+  }
+
+  /**
+   * @return number of messages per address
+   */
+  public Map<String, Long> getAddressCounts() {
+    return Collections.unmodifiableMap(addresses);
+  }
+
+  /**
+   * @param address an address
+   * @return average number of messages per frame sent to the address, over
+   *         the frame span of the score
+   */
+  public double getAddressRate(String address) {
+    Long count = this.addresses.get(address);
+    return (count == null) ? 0 : (double) count / this.getFrameSpan();
+  }
+
+  /**
+   * @return human readable report
+   */
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("%s%n", this.path));
+    sb.append(String.format("  %d packets, %d messages, frames %d to %d"
+        + " (%d holding packets)%n", this.packets, this.messages,
+        this.firstFrame, this.lastFrame, this.getBusyFrames()));
+    if (this.getDuration() > 0) {
+      sb.append(String.format("  duration %.3fs%n",
+          this.getDuration() / 1e9));
+    }
+    sb.append(String.format("  peak %d packets per frame (frame %d),"
+        + " %d messages per frame (frame %d)%n", this.peakPackets,
+        this.peakPacketsFrame, this.peakMessages, this.peakMessagesFrame));
+    sb.append(String.format("  longest burst %d frames (from frame %d)%n",
+        this.longestBurst, this.longestBurstFrame));
+    if (this.budget > 0) {
+      sb.append(String.format("  %d frames over the budget of %d messages,"
+          + " at most %d in a row (from frame %d)%n", this.framesOverBudget,
+          this.budget, this.longestOverBudget, this.longestOverBudgetFrame));
+      if (this.framesOverBudget > 0) {
+        sb.append(String.format("  frames over budget: %s%s%n",
+            this.overBudgetFrames,
+            (this.framesOverBudget > this.overBudgetFrames.size()) ? "..."
+                : ""));
+      }
+    }
+    sb.append(String.format("messages per frame:%n"))
+        .append(this.messagesPerFrame);
+    sb.append(String.format("packets per frame:%n"))
+        .append(this.packetsPerFrame);
+    sb.append(String.format("burst length (frames):%n"))
+        .append(this.burstFrames);
+    sb.append(String.format("argument bytes per message:%n"))
+        .append(this.argumentBytes);
+
+    List<Map.Entry<String, Long>> top = new ArrayList<Map.Entry<String, Long>>(
+        this.addresses.entrySet());
+    top.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+    sb.append(String.format("messages per address (per frame%s):%n",
+        (this.getDuration() > 0) ? ", per second" : ""));
+    for (int i = 0; i < Math.min(top.size(), REPORT_ADDRESSES); i++) {
+      Map.Entry<String, Long> e = top.get(i);
+      sb.append(String.format("  %s : %d (%.3f", e.getKey(), e.getValue(),
+          this.getAddressRate(e.getKey())));
+      if (this.getDuration() > 0) {
+        sb.append(String.format(", %.1f", e.getValue() * 1e9
+            / this.getDuration()));
+      }
+      sb.append(String.format(")%n"));
+    }
+    if (top.size() > REPORT_ADDRESSES) {
+      sb.append(String.format("  ... %d more addresses%n",
+          top.size() - REPORT_ADDRESSES));
+    }
+    return sb.toString();
+  }
+}
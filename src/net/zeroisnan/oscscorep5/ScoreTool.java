@@ -0,0 +1,401 @@
+/**
+ * ##library.name##
+ * ##library.sentence##
+ * ##library.url##
+ *
+ * Copyright ##copyright## ##author##
+ * SPDX-License-Identifier: LGPL-3.0-or-later
+ *
+ * @author      ##author##
+ * @version     ##library.prettyVersion## (##library.version##)
+ *              Last modified: ##date##
+ */
+
+package net.zeroisnan.oscscorep5;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Command line tool to convert and maintain scores, without any sketch:
+ *
+ * <pre>
+ * java -jar oscScoreP5.jar convert show.xml show.oscb
+ * java -jar oscScoreP5.jar trim show.oscb act1.oscb 0 3600 --rebase
+ * java -jar oscScoreP5.jar cat show.xml.gz act1.oscb act2.xml
+ * java -jar oscScoreP5.jar split show.oscb part.oscb --frames 1800
+ * java -jar oscScoreP5.jar validate show.xml act1.oscb
+ * java -jar oscScoreP5.jar stats show.oscb --budget 64
+ * </pre>
+ *
+ * The format of each score is picked from its extension, as in
+ * {@link ScoreRecorder} and {@link ScorePlayer}. The scores are streamed one
+ * packet at a time through the score readers and writers, so memory usage
+ * does not depend on their size. Datagrams captured in raw mode are kept as
+ * such in binary scores, and written as decoded packets in XML scores.
+ */
+public class ScoreTool {
+  /** generator attribute of the scores written by the tool */
+  final static String GENERATOR = "ScoreTool";
+  /** usage message */
+  final static String USAGE = String.join(System.lineSeparator(),
+      "usage: ScoreTool <command> <arguments>",
+      "  convert <in> <out>                      convert a score",
+      "  trim <in> <out> <from> <to> [--rebase]  keep frames from to to - 1,",
+      "                                          optionally moved to frame 0",
+      "  cat <out> <in> <in>...                  append scores one after the"
+          + " other",
+      "  split <in> <out> --frames N|--bytes N   split a score into segments",
+      "                                          out.000.ext, out.001.ext...",
+      "  validate <in>...                        check scores",
+      "  stats <in> [--budget N]                 density statistics, frames",
+      "                                          over N messages are flagged",
+      "the format of each score is picked from its extension: .xml, .xml.gz"
+          + " or " + BinScoreFormat.EXTENSION);
+
+  /** standard output */
+  protected final PrintStream out;
+  /** error output */
+  protected final PrintStream err;
+  /** record reused to write raw datagrams */
+  protected final ScoreRecord[] raw;
+
+  /**
+   * constructor
+   *
+   * @param out receives the reports
+   * @param err receives the usage and error messages
+   */
+  public ScoreTool(PrintStream out, PrintStream err) {
+    this.out = out;
+    this.err = err;
+    this.raw = new ScoreRecord[] { new ScoreRecord() };
+  }
+
+  /**
+   * entry point of the command line tool
+   *
+   * @param args command and its arguments
+   */
+  public static void main(String[] args) {
+    System.exit(new ScoreTool(System.out, System.err).run(args));
+  }
+
+  /**
+   * run a command
+   *
+   * @param args command and its arguments
+   * @return exit status: 0 on success, 1 on errors, invalid scores or frames
+   *         over budget, 2 on usage errors
+   */
+  public int run(String... args) {
+    try {
+      String[] params = Arrays.copyOfRange(args, Math.min(args.length, 1),
+          args.length);
+      switch ((args.length == 0) ? "" : args[0]) {
+        case "convert":
+          this.expect(params, 2, 2);
+          this.convert(params[0], params[1]);
+          return 0;
+        case "trim":
+          this.expect(params, 4, 5);
+          boolean rebase = params.length == 5;
+          if (rebase && !params[4].equals("--rebase")) {
+            throw new IllegalArgumentException("unknown option " + params[4]);
+          }
+          this.trim(params[0], params[1], Integer.parseInt(params[2]),
+              Integer.parseInt(params[3]), rebase);
+          return 0;
+        case "cat":
+          this.expect(params, 2, Integer.MAX_VALUE);
+          this.cat(params[0], Arrays.copyOfRange(params, 1, params.length));
+          return 0;
+        case "split":
+          this.expect(params, 4, 4);
+          long limit = Long.parseLong(params[3]);
+          if (params[2].equals("--frames")) {
+            this.split(params[0], params[1], 0, (int) limit);
+          } else if (params[2].equals("--bytes")) {
+            this.split(params[0], params[1], limit, 0);
+          } else {
+            throw new IllegalArgumentException("unknown option " + params[2]);
+          }
+          return 0;
+        case "validate":
+          this.expect(params, 1, Integer.MAX_VALUE);
+          boolean valid = true;
+          for (String path : params) {
+            valid &= this.validate(path);
+          }
+          return valid ? 0 : 1;
+        case "stats":
+          this.expect(params, 1, 3);
+          int budget = 0;
+          if (params.length > 1) {
+            this.expect(params, 3, 3);
+            if (!params[1].equals("--budget")) {
+              throw new IllegalArgumentException("unknown option " + params[1]);
+            }
+            budget = Integer.parseInt(params[2]);
+          }
+          ScoreStats stats = ScoreStats.of(params[0], budget);
+          this.out.print(stats);
+          return (stats.getFramesOverBudget() > 0) ? 1 : 0;
+        default:
+          throw new IllegalArgumentException((args.length == 0)
+              ? "missing command" : "unknown command " + args[0]);
+      }
+    } catch (IllegalArgumentException e) {
+      // NumberFormatException too
+      this.err.println(String.format("ERROR: %s", e.getMessage()));
+      this.err.println(USAGE);
+      return 2;
+    } catch (IOException e) {
+      this.err.println(String.format("ERROR: %s", e.getMessage()));
+      return 1;
+    }
+  }
+
+  /**
+   * convert a score to the format of another
+   *
+   * @param in path to the input score
+   * @param out path to the output score
+   * @throws IOException on read or write errors
+   */
+  public void convert(String in, String out) throws IOException {
+    this.checkDistinct(in, out);
+    try (ScoreReader reader = ScoreReader.openParallel(in);
+        ScoreWriter writer = ScoreWriter.create(out)) {
+      writer.open(GENERATOR);
+      ScoreEvent ev;
+      while ((ev = reader.next()) != null) {
+        this.write(writer, ev);
+      }
+    }
+  }
+
+  /**
+   * copy a range of frames of a score
+   *
+   * @param in path to the input score
+   * @param out path to the output score
+   * @param from first frame to keep
+   * @param to first frame after the range
+   * @param rebase move the range to frame 0 (and its first timestamp to 0)
+   * @throws IOException on read or write errors
+   */
+  public void trim(String in, String out, int from, int to, boolean rebase)
+      throws IOException {
+    if (from < 0 || to <= from) {
+      throw new IllegalArgumentException(
+          String.format("invalid frame range: from %d to %d", from, to));
+    }
+    this.checkDistinct(in, out);
+    try (ScoreReader reader = ScoreReader.openParallel(in);
+        ScoreWriter writer = ScoreWriter.create(out)) {
+      writer.open(GENERATOR);
+      reader.seek(from);
+      long timeOffset = -1;
+      ScoreEvent ev;
+      while ((ev = reader.next()) != null && ev.getFrame() < to) {
+        if (rebase) {
+          if (timeOffset < 0) {
+            timeOffset = ev.hasTime() ? ev.getTime() : 0;
+          }
+          ev = shift(ev, -from, -timeOffset);
+        }
+        this.write(writer, ev);
+      }
+    }
+  }
+
+  /**
+   * append scores one after the other: each score is shifted to start right
+   * after the last frame (and timestamp) of the previous one, keeping the gap
+   * before its first packet
+   *
+   * @param out path to the output score
+   * @param ins paths to the input scores
+   * @throws IOException on read or write errors
+   */
+  public void cat(String out, String... ins) throws IOException {
+    for (String in : ins) {
+      this.checkDistinct(in, out);
+    }
+    try (ScoreWriter writer = ScoreWriter.create(out)) {
+      writer.open(GENERATOR);
+      int frameOffset = 0;
+      long timeOffset = 0;
+      for (String in : ins) {
+        int lastFrame = -1;
+        long lastTime = ScoreEvent.NO_TIME;
+        try (ScoreReader reader = ScoreReader.openParallel(in)) {
+          ScoreEvent ev;
+          while ((ev = reader.next()) != null) {
+            ev = shift(ev, frameOffset, timeOffset);
+            lastFrame = ev.getFrame();
+            lastTime = ev.hasTime() ? ev.getTime() : lastTime;
+            this.write(writer, ev);
+          }
+        }
+        if (lastFrame >= 0) {
+          frameOffset = lastFrame + 1;
+        }
+        if (lastTime != ScoreEvent.NO_TIME) {
+          timeOffset = lastTime;
+        }
+      }
+    }
+  }
+
+  /**
+   * split a score into segments, which can be played back as a whole through
+   * the output path (see {@link ScoreSegments})
+   *
+   * @param in path to the input score
+   * @param out path to the segmented score
+   * @param maxBytes maximum segment size in bytes (0 for no limit)
+   * @param maxFrames maximum number of frames in a segment (0 for no limit)
+   * @throws IOException on read or write errors
+   */
+  public void split(String in, String out, long maxBytes, int maxFrames)
+      throws IOException {
+    if (maxBytes <= 0 && maxFrames <= 0) {
+      throw new IllegalArgumentException(
+          "segments need a size or a number of frames");
+    }
+    this.checkDistinct(in, out);
+    try (ScoreReader reader = ScoreReader.openParallel(in);
+        ScoreWriter writer = new SegmentedScoreWriter(out, maxBytes,
+            maxFrames, 0)) {
+      writer.open(GENERATOR);
+      ScoreEvent ev;
+      while ((ev = reader.next()) != null) {
+        this.write(writer, ev);
+      }
+    }
+  }
+
+  /**
+   * Check a score: every packet must be readable and fit the score schema
+   * (see {@link ScoreDataPacket}), frames and timestamps must not go
+   * backwards, and the score must not be truncated. The outcome is reported
+   * on the standard output, along with the size of the score.
+   *
+   * @param path path to the score
+   * @return the score is valid
+   */
+  public boolean validate(String path) {
+    long packets = 0;
+    long messages = 0;
+    int firstFrame = 0;
+    int lastFrame = 0;
+    long lastTime = ScoreEvent.NO_TIME;
+    String error = null;
+
+    try (ScoreReader reader = ScoreReader.openParallel(path)) {
+      ScoreEvent ev;
+      while (error == null && (ev = reader.next()) != null) {
+        if (ev.getFrame() < lastFrame || ev.getFrame() < 0) {
+          error = String.format("frame %d after frame %d", ev.getFrame(),
+              lastFrame);
+        } else if (ev.hasTime() && lastTime != ScoreEvent.NO_TIME
+            && ev.getTime() < lastTime) {
+          error = String.format("timestamp %d after timestamp %d",
+              ev.getTime(), lastTime);
+        } else {
+          try {
+            // the packet must map to the schema, and back
+            ScoreDataPacket data = ScoreDataPacket.fromScoreEvent(ev);
+            data.toScoreEvent();
+            messages += data.getMessages().size();
+          } catch (RuntimeException e) {
+            error = e.getMessage();
+          }
+        }
+        if (packets++ == 0) {
+          firstFrame = ev.getFrame();
+        }
+        lastFrame = ev.getFrame();
+        lastTime = ev.hasTime() ? ev.getTime() : lastTime;
+      }
+      if (error == null && reader.isTruncated()) {
+        error = "truncated score";
+      } else if (error != null) {
+        error = String.format("packet %d: %s", packets, error);
+      }
+    } catch (IOException e) {
+      error = (packets == 0) ? e.getMessage()
+          : String.format("packet %d: %s", packets + 1, e.getMessage());
+    }
+
+    if (error != null) {
+      this.out.println(String.format("%s: INVALID - %s", path, error));
+      return false;
+    }
+    this.out.println(String.format(
+        "%s: OK - %d packets, %d messages, frames %d to %d", path, packets,
+        messages, firstFrame, lastFrame));
+    return true;
+  }
+
+  /**
+   * append an event to a score, keeping raw datagrams in binary scores
+   *
+   * @param writer the score
+   * @param ev the event
+   * @throws IOException on write errors
+   */
+  protected void write(ScoreWriter writer, ScoreEvent ev) throws IOException {
+    if (ev.hasRaw() && writer.getPath().endsWith(BinScoreFormat.EXTENSION)) {
+      byte[] bytes = ev.getRaw();
+      this.raw[0].setRaw(ev.getFrame(), ev.getTime(), bytes, 0, bytes.length);
+      writer.write(this.raw, 1);
+    } else {
+      writer.write(ev);
+    }
+  }
+
+  /**
+   * @param ev an event
+   * @param frames frames to add
+   * @param nanos nanoseconds to add to its timestamp (if any)
+   * @return the shifted event
+   */
+  protected static ScoreEvent shift(ScoreEvent ev, int frames, long nanos) {
+    if (frames == 0 && (nanos == 0 || !ev.hasTime())) {
+      return ev;
+    }
+    return new ScoreEvent(ev.getFrame() + frames,
+        ev.hasTime() ? ev.getTime() + nanos : ScoreEvent.NO_TIME, ev.getPkt(),
+        ev.getRaw());
+  }
+
+  /**
+   * @param params command arguments
+   * @param min minimum number of arguments
+   * @param max maximum number of arguments
+   * @throws IllegalArgumentException for a wrong number of arguments
+   */
+  protected void expect(String[] params, int min, int max) {
+    if (params.length < min || params.length > max) {
+      throw new IllegalArgumentException("wrong number of arguments");
+    }
+  }
+
+  /**
+   * @param in path to an input score
+   * @param out path to the output score
+   * @throws IllegalArgumentException if both are the same file
+   */
+  protected void checkDistinct(String in, String out) {
+    if (Paths.get(in).toAbsolutePath().normalize()
+        .equals(Paths.get(out).toAbsolutePath().normalize())) {
+      throw new IllegalArgumentException(
+          "the output would overwrite the input score " + in);
+    }
+  }
+}
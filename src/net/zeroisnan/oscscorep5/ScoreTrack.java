@@ -0,0 +1,134 @@
+/**
+ * ##library.name##
+ * ##library.sentence##
+ * ##library.url##
+ *
+ * Copyright ##copyright## ##author##
+ * SPDX-License-Identifier: LGPL-3.0-or-later
+ *
+ * @author      ##author##
+ * @version     ##library.prettyVersion## (##library.version##)
+ *              Last modified: ##date##
+ */
+
+package net.zeroisnan.oscscorep5;
+
+import java.io.IOException;
+
+/**
+ * One of the scores played at once by a multi-track {@link ScorePlayer}.
+ *
+ * <p>
+ * Each track can be muted, soloed (when at least one track is soloed, only
+ * soloed tracks are heard) and shifted in time by a number of frames. Mute and
+ * solo take effect immediately, offsets at the next rewind or seek.
+ */
+public class ScoreTrack {
+  /** reader of the score */
+  protected final ScoreReader reader;
+  /** position of the track in the player, breaks ties between tracks */
+  protected final int index;
+  /** frames added to the events of the track */
+  protected int offset;
+  /** muted flag */
+  protected volatile boolean muted;
+  /** solo flag */
+  protected volatile boolean solo;
+
+  /** next event of the track, null at the end of the track */
+  protected ScoreEvent head;
+  /** offset in use since the last rewind or seek */
+  protected int activeOffset;
+
+  /**
+   * constructor
+   *
+   * @param reader reader of the score
+   * @param index position of the track in the player
+   */
+  ScoreTrack(ScoreReader reader, int index) {
+    this.reader = reader;
+    this.index = index;
+  }
+
+  /**
+   * @return path to the score of the track
+   */
+  public String getScorePath() {
+    return this.reader.getPath();
+  }
+
+  /**
+   * @return frames added to the events of the track
+   */
+  public int getOffset() {
+    return offset;
+  }
+
+  /**
+   * @param offset frames added to the events of the track (effective from the
+   *          next rewind or seek)
+   */
+  public void setOffset(int offset) {
+    this.offset = offset;
+  }
+
+  /**
+   * @return the track is muted
+   */
+  public boolean isMuted() {
+    return muted;
+  }
+
+  /**
+   * @param muted mute/unmute the track
+   */
+  public void setMuted(boolean muted) {
+    this.muted = muted;
+  }
+
+  /**
+   * @return the track is soloed
+   */
+  public boolean isSolo() {
+    return solo;
+  }
+
+  /**
+   * @param solo solo/unsolo the track
+   */
+  public void setSolo(boolean solo) {
+    this.solo = solo;
+  }
+
+  /**
+   * @return frame of the next event of the track, offset included
+   */
+  int headFrame() {
+    return this.head.getFrame() + this.activeOffset;
+  }
+
+  /**
+   * decode the next event of the track
+   *
+   * @throws IOException on invalid score content
+   */
+  void advance() throws IOException {
+    this.head = this.reader.next();
+  }
+
+  /**
+   * @return the track is currently heard
+   * @param anySolo at least one track is soloed
+   */
+  boolean isAudible(boolean anySolo) {
+    return !this.muted && (this.solo || !anySolo);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("ScoreTrack %d: %s offset %d%s%s", this.index,
+        this.getScorePath(), this.offset, this.muted ? " muted" : "",
+        this.solo ? " solo" : "");
+  }
+}
@@ -13,7 +13,6 @@
 
 package net.zeroisnan.oscscorep5;
 
-import javax.xml.bind.JAXBException;
 import javax.xml.stream.XMLStreamException;
 
 /**
@@ -39,17 +38,6 @@ public final class ScoreUtils {
     e.printStackTrace();
   }
 
-  protected static void handleException(JAXBException e, String msgText) {
-    String msg;
-    if (e.getLinkedException() == null) {
-      msg = e.getMessage();
-    } else {
-      msg = e.getLinkedException().getMessage();
-    }
-    System.err.println(String.format("ERROR: %s: %s", msgText, msg));
-    e.printStackTrace();
-  }
-
   protected static void handleException(Exception e, String msgText) {
     String msg = e.getMessage();
     System.err.println(String.format("ERROR: %s: %s", msgText, msg));
@@ -0,0 +1,116 @@
+/**
+ * ##library.name##
+ * ##library.sentence##
+ * ##library.url##
+ *
+ * Copyright ##copyright## ##author##
+ * SPDX-License-Identifier: LGPL-3.0-or-later
+ *
+ * @author      ##author##
+ * @version     ##library.prettyVersion## (##library.version##)
+ *              Last modified: ##date##
+ */
+
+package net.zeroisnan.oscscorep5;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import oscP5.OscBundle;
+import oscP5.OscMessage;
+import oscP5.OscPacket;
+
+/**
+ * Objects implementing this interface stream events into a score. The on-disk
+ * format is chosen by {@link #create(String)} according to the extension of
+ * the score.
+ */
+interface ScoreWriter extends Closeable {
+  /**
+   * create a score for writing, picking the format from its extension
+   *
+   * @param path path to the score
+   * @return a writer, to be started with {@link #open(String)}
+   * @throws IOException if the score can not be created
+   */
+  static ScoreWriter create(String path) throws IOException {
+    if (path.endsWith(BinScoreFormat.EXTENSION)) {
+      return new BinScoreWriter(path);
+    }
+    return new XmlScoreWriter(path);
+  }
+
+  /**
+   * @return path to the score
+   */
+  String getPath();
+
+  /**
+   * write the beginning of the score
+   *
+   * @param generator name of the application generating the score
+   * @throws IOException on write errors
+   */
+  void open(String generator) throws IOException;
+
+  /**
+   * set the frame rate of the recording sketch, stored in the header of the
+   * score (see {@link ScoreHeader}); may be called from any thread
+   *
+   * @param frameRate frame rate, 0 if unknown
+   */
+  default void setFrameRate(float frameRate) {
+  }
+
+  /**
+   * append an event to the score
+   *
+   * @param ev event (message or bundle) to write
+   * @throws IOException on write errors
+   */
+  default void write(ScoreEvent ev) throws IOException {
+    OscPacket pkt = ev.getPkt();
+    OscBundle bundle = (pkt instanceof OscBundle) ? (OscBundle) pkt : null;
+    ScoreRecord[] msgs = new ScoreRecord[(bundle != null) ? bundle.size() : 1];
+    for (int i = 0; i < msgs.length; i++) {
+      msgs[i] = new ScoreRecord();
+      msgs[i].set(ev.getFrame(), ev.getTime(),
+          (bundle != null) ? bundle.getMessage(i) : (OscMessage) pkt);
+    }
+    this.write(msgs, msgs.length);
+  }
+
+  /**
+   * append a packet to the score, straight from the recorded messages
+   *
+   * @param msgs messages of the packet, all of the same frame; the frame and
+   *          time of the packet are the ones of the first message
+   * @param count number of messages (more than one makes a bundle)
+   * @throws IOException on write errors
+   */
+  void write(ScoreRecord[] msgs, int count) throws IOException;
+
+  /**
+   * push the events written so far to the operating system, so that they
+   * survive a crash of the application; the score is left unterminated until
+   * {@link #close()}, readers recover it up to its last complete packet
+   *
+   * @param sync also wait for the data to reach the storage device (fsync)
+   * @throws IOException on write errors
+   */
+  void commit(boolean sync) throws IOException;
+
+  /**
+   * @return number of bytes written to the score file so far (data still
+   *         buffered by the writer may be missing)
+   */
+  long size();
+
+  /**
+   * write the end of the score and release the file
+   *
+   * @throws IOException on write errors
+   */
+  @Override
+  void close() throws IOException;
+}
@@ -0,0 +1,372 @@
+/**
+ * ##library.name##
+ * ##library.sentence##
+ * ##library.url##
+ *
+ * Copyright ##copyright## ##author##
+ * SPDX-License-Identifier: LGPL-3.0-or-later
+ *
+ * @author      ##author##
+ * @version     ##library.prettyVersion## (##library.version##)
+ *              Last modified: ##date##
+ */
+
+package net.zeroisnan.oscscorep5;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Serialize the messages captured by {@link ScoreRecorder} on a dedicated
+ * thread.
+ *
+ * <p>
+ * The recorder copies each message, stamped with its frame and time, in a
+ * slot of a {@link ScoreRecordRing}. This thread drains the ring, groups the
+ * messages of the same frame in a packet and hands the packets to the score
+ * writer, so that neither serialization nor disk I/O ever run on the thread
+ * receiving the OSC messages. The writer is opened and closed on this thread
+ * too. Records taken out of the ring are swapped with the ones of packets
+ * already written, so the recording does not allocate any object per message
+ * once the pool of records has grown to the size of the largest packet.
+ *
+ * <p>
+ * Written packets are committed in groups, every N packets or every N
+ * milliseconds, whichever comes first, so that a crash loses a bounded amount
+ * of data while the disk still sees few, large writes. A packet whose frame
+ * is still going on is written at the next commit if it has been waiting for
+ * longer than the commit interval (the rest of the frame then goes in a second
+ * packet with the same frame, which plays back the same).
+ *
+ * <p>
+ * Messages whose address matches one of the coalescing patterns are kept only
+ * once per packet: a new message for the same address takes the place of the
+ * previous one (last value wins), before anything is serialized.
+ */
+class ScoreWriterThread extends Thread {
+  /** how long the thread sleeps when there is nothing to write */
+  final static long PARK_NANOS = 1000000L;
+
+  /** score writer, owned by this thread while running */
+  protected final ScoreWriter writer;
+  /** generator attribute of the score */
+  protected final String generator;
+  /** captured messages */
+  protected final ScoreRecordRing ring;
+  /**
+   * messages of the next packet to write (the first pktsize records), followed
+   * by spare records
+   */
+  protected ScoreRecord[] pkt2write;
+  /** number of messages of the next packet to write */
+  protected int pktsize;
+  /** spare record handed to the ring in exchange for the next message */
+  protected ScoreRecord spare;
+  /** System.nanoTime() when the first message of pkt2write was received */
+  protected long pktsince;
+  /** cleared to stop the thread, once the ring is drained */
+  protected volatile boolean running;
+
+  /** commit after this many packets */
+  protected volatile int commitPackets;
+  /** commit after this many nanoseconds */
+  protected volatile long commitNanos;
+  /** fsync on commit */
+  protected volatile boolean sync;
+  /** packets written since the last commit */
+  protected int uncommitted;
+  /** System.nanoTime() of the last commit */
+  protected long lastcommit;
+
+  /** addresses of the coalesced messages (null to coalesce nothing) */
+  protected volatile ScoreFilter coalesce;
+  /** index in pkt2write of the coalesced addresses of the next packet */
+  protected final AddressIndex pktindex;
+  /** number of messages replaced by a later one of the same frame */
+  protected volatile long coalescedMessages;
+
+  /**
+   * constructor
+   *
+   * @param writer score writer, not opened yet
+   * @param generator generator attribute of the score
+   * @param ring captured messages
+   * @param commitPackets commit after this many packets
+   * @param commitMillis commit after this many milliseconds
+   * @param sync fsync on commit
+   */
+  ScoreWriterThread(ScoreWriter writer, String generator, ScoreRecordRing ring,
+      int commitPackets, int commitMillis, boolean sync) {
+    super("OscScoreP5-writer");
+    this.setCommitPolicy(commitPackets, commitMillis, sync);
+    this.writer = writer;
+    this.generator = generator;
+    this.ring = ring;
+    this.pkt2write = new ScoreRecord[16];
+    this.spare = new ScoreRecord();
+    this.pktindex = new AddressIndex();
+    this.running = true;
+    this.setDaemon(true);
+  }
+
+  @Override
+  public void run() {
+    try {
+      // write initial score content
+      this.writer.open(this.generator);
+    } catch (IOException e) {
+      System.err.println(
+          String.format("ERROR: while creating OSC score at %s - %s",
+              this.writer.getPath(), e.getMessage()));
+      return;
+    }
+    this.lastcommit = System.nanoTime();
+
+    while (true) {
+      // sampled before draining, so that nothing captured before shutdown()
+      // is left behind
+      boolean stop = !this.running;
+      boolean idle = true;
+      ScoreRecord rec;
+      while ((rec = this.ring.poll(this.spare)) != null) {
+        this.spare = this.add(rec);
+        idle = false;
+      }
+      if (stop) {
+        break;
+      }
+      this.commitIfDue();
+      if (idle) {
+        LockSupport.parkNanos(this, PARK_NANOS);
+      }
+    }
+
+    try {
+      // write out anything still pending
+      this.writePending();
+      this.writer.close();
+    } catch (IOException e) {
+      System.err
+          .println(String.format("ERROR: while closing OSC score at %s - %s",
+              this.writer.getPath(), e.getMessage()));
+    }
+  }
+
+  /**
+   * add a captured message to the packet of its frame
+   *
+   * @param rec the message, with its frame and time
+   * @return a record no longer in use
+   */
+  protected ScoreRecord add(ScoreRecord rec) {
+    if (this.pktsize > 0 && this.pkt2write[0].getFrame() < rec.getFrame()) {
+      // this message does not belong to the last created bundle
+      // so write out the bundle and start a new one
+      this.writePending();
+    }
+
+    if (this.pktsize == 0) {
+      this.pktsince = System.nanoTime();
+    }
+    if (!rec.isRaw() && this.isCoalesced(rec.getAddress())) {
+      int i = this.pktindex.get(rec.getAddress());
+      if (i >= 0) {
+        // last value wins
+        ScoreRecord old = this.pkt2write[i];
+        this.pkt2write[i] = rec;
+        this.coalescedMessages++;
+        return old;
+      }
+      this.pktindex.put(rec.getAddress(), this.pktsize);
+    }
+    if (this.pktsize == this.pkt2write.length) {
+      this.pkt2write = Arrays.copyOf(this.pkt2write, this.pktsize * 2);
+    }
+
+    ScoreRecord free = this.pkt2write[this.pktsize];
+    this.pkt2write[this.pktsize++] = rec;
+    return (free != null) ? free : new ScoreRecord();
+  }
+
+  /**
+   * write the content of pkt2write into the score
+   */
+  protected void writePending() {
+    if (this.pktsize == 0) {
+      return;
+    }
+
+    try {
+      this.writer.write(this.pkt2write, this.pktsize);
+      if (++this.uncommitted >= this.commitPackets) {
+        this.commit();
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+      System.err.println("ERROR: While writing XML event: " + e.getMessage());
+    } finally {
+      // the records stay in pkt2write as spares
+      this.pktsize = 0;
+      this.pktindex.clear();
+    }
+  }
+
+  /**
+   * commit when the commit interval has elapsed, writing the packet of the
+   * current frame first if it has been waiting for that long
+   */
+  protected void commitIfDue() {
+    long now = System.nanoTime();
+    if (this.pktsize > 0 && now - this.pktsince >= this.commitNanos) {
+      this.writePending();
+    }
+    if (this.uncommitted > 0 && now - this.lastcommit >= this.commitNanos) {
+      try {
+        this.commit();
+      } catch (IOException e) {
+        System.err.println(
+            String.format("ERROR: while committing OSC score at %s - %s",
+                this.writer.getPath(), e.getMessage()));
+      }
+    }
+  }
+
+  /**
+   * push the written packets to the operating system (and to the disk when
+   * sync is enabled)
+   *
+   * @throws IOException on write errors
+   */
+  protected void commit() throws IOException {
+    this.uncommitted = 0;
+    this.lastcommit = System.nanoTime();
+    this.writer.commit(this.sync);
+  }
+
+  /**
+   * @param commitPackets commit after this many packets
+   * @param commitMillis commit after this many milliseconds
+   * @param sync fsync on commit
+   */
+  void setCommitPolicy(int commitPackets, int commitMillis, boolean sync) {
+    this.commitPackets = commitPackets;
+    this.commitNanos = commitMillis * 1000000L;
+    this.sync = sync;
+  }
+
+  /**
+   * @param coalesce filter accepting the addresses of the messages to
+   *          coalesce, null to coalesce nothing
+   */
+  void setCoalesce(ScoreFilter coalesce) {
+    this.coalesce = coalesce;
+  }
+
+  /**
+   * @param address address of a message
+   * @return the message shall be coalesced
+   */
+  protected boolean isCoalesced(String address) {
+    ScoreFilter f = this.coalesce;
+    return f != null && f.accepts(address);
+  }
+
+  /**
+   * stop the thread once every captured message is written, then wait for the
+   * score to be closed
+   */
+  void shutdown() {
+    this.running = false;
+    LockSupport.unpark(this);
+    try {
+      this.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * open addressing map from address to index, cleared in constant time and
+   * allocation free once grown to the size of the largest packet
+   */
+  static class AddressIndex {
+    /** addresses */
+    protected String[] keys = new String[64];
+    /** index of each address */
+    protected int[] values = new int[64];
+    /** generation each entry belongs to */
+    protected int[] stamps = new int[64];
+    /** current generation, entries of older generations are empty */
+    protected int generation = 1;
+    /** number of entries of the current generation */
+    protected int size;
+
+    /**
+     * @param key an address
+     * @return index of the address, -1 if missing
+     */
+    int get(String key) {
+      int mask = this.keys.length - 1;
+      for (int i = key.hashCode() & mask;; i = (i + 1) & mask) {
+        if (this.stamps[i] != this.generation) {
+          return -1;
+        }
+        if (this.keys[i].equals(key)) {
+          return this.values[i];
+        }
+      }
+    }
+
+    /**
+     * @param key an address, not in the map
+     * @param value index of the address
+     */
+    void put(String key, int value) {
+      if (2 * (this.size + 1) > this.keys.length) {
+        this.grow();
+      }
+      int mask = this.keys.length - 1;
+      int i = key.hashCode() & mask;
+      while (this.stamps[i] == this.generation) {
+        i = (i + 1) & mask;
+      }
+      this.keys[i] = key;
+      this.values[i] = value;
+      this.stamps[i] = this.generation;
+      this.size++;
+    }
+
+    /**
+     * remove all the entries
+     */
+    void clear() {
+      if (++this.generation == 0) {
+        // wrapped around: really empty the entries
+        Arrays.fill(this.stamps, 0);
+        this.generation = 1;
+      }
+      this.size = 0;
+    }
+
+    /**
+     * double the capacity, keeping the entries
+     */
+    protected void grow() {
+      String[] k = this.keys;
+      int[] v = this.values;
+      int[] st = this.stamps;
+      int gen = this.generation;
+      this.keys = new String[2 * k.length];
+      this.values = new int[2 * k.length];
+      this.stamps = new int[2 * k.length];
+      this.generation = 1;
+      this.size = 0;
+      for (int i = 0; i < k.length; i++) {
+        if (st[i] == gen) {
+          this.put(k[i], v[i]);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,244 @@
+/**
+ * ##library.name##
+ * ##library.sentence##
+ * ##library.url##
+ *
+ * Copyright ##copyright## ##author##
+ * SPDX-License-Identifier: LGPL-3.0-or-later
+ *
+ * @author      ##author##
+ * @version     ##library.prettyVersion## (##library.version##)
+ *              Last modified: ##date##
+ */
+
+package net.zeroisnan.oscscorep5;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Read the segments of a segmented score (see {@link ScoreSegments}) as one
+ * continuous score.
+ *
+ * <p>
+ * Only the current segment and the next one are open at any time. The next
+ * segment is opened, and its first packet decoded, on a background thread as
+ * soon as the current one starts playing, so that crossing a segment boundary
+ * does not stall playback.
+ */
+class SegmentedScoreReader implements ScoreReader {
+  /**
+   * open a segment and decode its first event in background
+   */
+  static class Prefetch extends Thread {
+    /** path to the segment */
+    final String path;
+    /** address filter of the segment */
+    final ScoreFilter filter;
+    /** reader of the segment */
+    ScoreReader reader;
+    /** first event of the segment */
+    ScoreEvent first;
+    /** error while opening the segment */
+    IOException error;
+
+    Prefetch(String path, ScoreFilter filter) {
+      super("OscScoreP5-prefetch");
+      this.path = path;
+      this.filter = filter;
+      this.setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      try {
+        this.reader = ScoreReader.open(this.path);
+        this.reader.setFilter(this.filter);
+        this.first = this.reader.next();
+      } catch (IOException e) {
+        this.error = e;
+      }
+    }
+
+    /**
+     * wait for the segment to be open
+     *
+     * @throws IOException if the segment can not be opened
+     */
+    void await() throws IOException {
+      boolean interrupted = false;
+      while (this.isAlive()) {
+        try {
+          this.join();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      if (this.error != null) {
+        throw this.error;
+      }
+    }
+
+    /**
+     * release the segment
+     */
+    void discard() {
+      try {
+        this.await();
+        this.reader.close();
+      } catch (IOException e) {
+        // not needed anyway
+      }
+    }
+  }
+
+  /** path to the segmented score */
+  protected final String base;
+  /** paths to the segments */
+  protected final List<String> segments;
+  /** frame of the first packet of each segment, learnt on the first seek */
+  protected int[] firstFrames;
+
+  /** number of the current segment */
+  protected int current;
+  /** reader of the current segment */
+  protected ScoreReader reader;
+  /** next segment, being opened in background (null after the last one) */
+  protected Prefetch prefetch;
+  /** address filter (null to read every message) */
+  protected ScoreFilter filter;
+
+  /**
+   * constructor
+   *
+   * @param base path to the segmented score
+   * @param segments paths to the segments, at least one
+   * @throws IOException if the first segment can not be opened
+   */
+  SegmentedScoreReader(String base, List<String> segments)
+      throws IOException {
+    this.base = base;
+    this.segments = segments;
+    this.open(0);
+  }
+
+  @Override
+  public String getPath() {
+    return this.base;
+  }
+
+  @Override
+  public ScoreEvent next() throws IOException {
+    ScoreEvent ev;
+    while ((ev = this.reader.next()) == null && this.prefetch != null) {
+      // segment boundary: switch to the prefetched segment
+      Prefetch p = this.prefetch;
+      this.prefetch = null;
+      p.await();
+      this.reader.close();
+      this.reader = p.reader;
+      this.current++;
+      this.startPrefetch();
+      if (p.first != null) {
+        return p.first;
+      }
+    }
+    return ev;
+  }
+
+  @Override
+  public void rewind() throws IOException {
+    if (this.current == 0) {
+      this.reader.rewind();
+    } else {
+      this.open(0);
+    }
+  }
+
+  @Override
+  public void seek(int frame) throws IOException {
+    if (this.firstFrames == null) {
+      this.firstFrames = new int[this.segments.size()];
+      for (int i = 0; i < this.firstFrames.length; i++) {
+        try (ScoreReader r = ScoreReader.open(this.segments.get(i))) {
+          ScoreEvent ev = r.next();
+          this.firstFrames[i] = (ev == null) ? Integer.MAX_VALUE
+              : ev.getFrame();
+        }
+      }
+    }
+
+    // last segment starting at or before the frame
+    int n = 0;
+    while (n + 1 < this.firstFrames.length
+        && this.firstFrames[n + 1] <= frame) {
+      n++;
+    }
+    if (n != this.current) {
+      this.open(n);
+    }
+    this.reader.seek(frame);
+  }
+
+  @Override
+  public boolean isTruncated() {
+    return this.reader.isTruncated();
+  }
+
+  @Override
+  public void setFilter(ScoreFilter filter) {
+    this.filter = filter;
+    this.reader.setFilter(filter);
+    // the next segment may have been decoded with the former filter
+    this.stopPrefetch();
+    this.startPrefetch();
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.stopPrefetch();
+    this.reader.close();
+  }
+
+  /**
+   * make a segment the current one
+   *
+   * @param n segment number
+   * @throws IOException if the segment can not be opened
+   */
+  protected void open(int n) throws IOException {
+    this.stopPrefetch();
+    if (this.reader != null) {
+      this.reader.close();
+      this.reader = null;
+    }
+    this.reader = ScoreReader.open(this.segments.get(n));
+    this.reader.setFilter(this.filter);
+    this.current = n;
+    this.startPrefetch();
+  }
+
+  /**
+   * start opening the segment after the current one
+   */
+  protected void startPrefetch() {
+    if (this.current + 1 < this.segments.size()) {
+      this.prefetch = new Prefetch(this.segments.get(this.current + 1),
+          this.filter);
+      this.prefetch.start();
+    }
+  }
+
+  /**
+   * release the segment being prefetched, if any
+   */
+  protected void stopPrefetch() {
+    if (this.prefetch != null) {
+      this.prefetch.discard();
+      this.prefetch = null;
+    }
+  }
+}
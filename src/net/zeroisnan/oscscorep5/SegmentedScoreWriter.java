@@ -0,0 +1,145 @@
+/**
+ * ##library.name##
+ * ##library.sentence##
+ * ##library.url##
+ *
+ * Copyright ##copyright## ##author##
+ * SPDX-License-Identifier: LGPL-3.0-or-later
+ *
+ * @author      ##author##
+ * @version     ##library.prettyVersion## (##library.version##)
+ *              Last modified: ##date##
+ */
+
+package net.zeroisnan.oscscorep5;
+
+import java.io.IOException;
+
+/**
+ * Write a score as a sequence of segments (see {@link ScoreSegments}).
+ *
+ * <p>
+ * A new segment is started when the current one reaches a maximum size, spans
+ * a maximum number of frames or has been open for a maximum time, whichever
+ * comes first. Rotation happens between packets and each segment is closed
+ * like a regular score, so every segment is a valid standalone score. Frames
+ * and timestamps are not rebased: playing the segments in order gives back the
+ * whole recording.
+ */
+class SegmentedScoreWriter implements ScoreWriter {
+  /** path to the segmented score */
+  protected final String base;
+  /** maximum segment size in bytes (0 for no limit) */
+  protected final long maxBytes;
+  /** maximum number of frames in a segment (0 for no limit) */
+  protected final int maxFrames;
+  /** maximum segment duration in nanoseconds (0 for no limit) */
+  protected final long maxNanos;
+
+  /** generator attribute of the segments */
+  protected String generator;
+  /** writer of the current segment */
+  protected ScoreWriter segment;
+  /** number of the current segment */
+  protected int number;
+  /** the current segment holds at least one packet */
+  protected boolean started;
+  /** frame of the first packet of the current segment */
+  protected int firstFrame;
+  /** System.nanoTime() when the current segment was opened */
+  protected long openTime;
+  /** frame rate of the recording sketch */
+  protected volatile float frameRate;
+
+  /**
+   * constructor, creates the first segment
+   *
+   * @param base path to the segmented score
+   * @param maxBytes maximum segment size in bytes (0 for no limit)
+   * @param maxFrames maximum number of frames in a segment (0 for no limit)
+   * @param maxMillis maximum segment duration in milliseconds (0 for no limit)
+   * @throws IOException if the first segment can not be created
+   */
+  SegmentedScoreWriter(String base, long maxBytes, int maxFrames,
+      int maxMillis) throws IOException {
+    this.base = base;
+    this.maxBytes = maxBytes;
+    this.maxFrames = maxFrames;
+    this.maxNanos = maxMillis * 1000000L;
+    this.segment = ScoreWriter.create(ScoreSegments.segmentPath(base, 0));
+  }
+
+  @Override
+  public String getPath() {
+    return this.base;
+  }
+
+  @Override
+  public void open(String generator) throws IOException {
+    this.generator = generator;
+    this.segment.open(generator);
+    this.openTime = System.nanoTime();
+  }
+
+  @Override
+  public void setFrameRate(float frameRate) {
+    // handed over to the segments when they are closed
+    this.frameRate = frameRate;
+  }
+
+  @Override
+  public void write(ScoreRecord[] msgs, int count) throws IOException {
+    int frame = msgs[0].getFrame();
+    if (this.started && this.isRotationDue(frame)) {
+      this.rotate();
+    }
+    if (!this.started) {
+      this.started = true;
+      this.firstFrame = frame;
+    }
+    this.segment.write(msgs, count);
+  }
+
+  @Override
+  public void commit(boolean sync) throws IOException {
+    this.segment.commit(sync);
+  }
+
+  @Override
+  public long size() {
+    return this.segment.size();
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.segment.setFrameRate(this.frameRate);
+    this.segment.close();
+  }
+
+  /**
+   * @param frame frame of the next packet to write
+   * @return the packet shall go in a new segment
+   */
+  protected boolean isRotationDue(int frame) {
+    return (this.maxBytes > 0 && this.segment.size() >= this.maxBytes)
+        || (this.maxFrames > 0 && frame - this.firstFrame >= this.maxFrames)
+        || (this.maxNanos > 0
+            && System.nanoTime() - this.openTime >= this.maxNanos);
+  }
+
+  /**
+   * close the current segment and open the next one
+   *
+   * @throws IOException if a segment can not be closed or created
+   */
+  protected void rotate() throws IOException {
+    this.segment.setFrameRate(this.frameRate);
+    this.segment.close();
+    this.number++;
+    this.segment = ScoreWriter
+        .create(ScoreSegments.segmentPath(this.base, this.number));
+    this.segment.open(this.generator);
+    this.openTime = System.nanoTime();
+    this.started = false;
+  }
+}
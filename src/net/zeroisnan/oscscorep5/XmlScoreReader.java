@@ -0,0 +1,758 @@
+/**
+ * ##library.name##
+ * ##library.sentence##
+ * ##library.url##
+ *
+ * Copyright ##copyright## ##author##
+ * SPDX-License-Identifier: LGPL-3.0-or-later
+ *
+ * @author      ##author##
+ * @version     ##library.prettyVersion## (##library.version##)
+ *              Last modified: ##date##
+ */
+
+package net.zeroisnan.oscscorep5;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import oscP5.OscBundle;
+import oscP5.OscMessage;
+import oscP5.OscPacket;
+
+/**
+ * Read XML scores generated with {@link ScoreRecorder}, one packet at a time.
+ *
+ * <p>
+ * The score is parsed with a StAX cursor and OSC messages are built straight
+ * from the element attributes, without any intermediate bean.
+ *
+ * <p>
+ * Seeking relies on the frame index stored next to the score (see
+ * {@link ScoreIndex}), which is loaded or built on the first seek.
+ *
+ * <p>
+ * The header of the score (see {@link ScoreHeader}), when present, is read on
+ * open along with the address dictionary it points to: every address is then
+ * decoded into a single shared string, whose hash is computed once for all the
+ * lookups of the address filter. Scores without header are read the same way,
+ * the addresses being shared as they are met.
+ *
+ * <p>
+ * Scores left unterminated by a crash of the recording sketch are recovered:
+ * they are played up to their last complete packet.
+ *
+ * <p>
+ * Scores whose name ends with .gz are decompressed on the fly, still one
+ * packet at a time. They have no frame index, so seeking decompresses them from
+ * the beginning.
+ */
+class XmlScoreReader implements ScoreReader {
+  /** extension of compressed (gzip) scores */
+  final static String COMPRESSED_EXTENSION = ".gz";
+  /** size of the decompressor input buffer */
+  final static int BUFFER_SIZE = 64 << 10;
+  /** maximum number of addresses shared */
+  final static int MAX_ADDRESSES = 4096;
+  /** base64 characters of a blob decoded at once (multiple of 4) */
+  final static int BLOB_CHUNK = 4 << 10;
+
+  /** path to the XML score */
+  protected final String xmlfilepath;
+  /** XML file stream object (used by the reader) */
+  protected final FileInputStream xmlfilestream;
+  /** the score is compressed */
+  protected final boolean compressed;
+  /** decompressor stream (compressed scores only) */
+  protected InputStream gzstream;
+  /** used to create the XML stream readers */
+  protected final XMLInputFactory xif;
+  /** XML stream reader */
+  protected XMLStreamReader xsr;
+  /** frame to byte offset index (loaded or built on the first seek) */
+  protected ScoreIndex index;
+  /** next event, already decoded by seek() */
+  protected ScoreEvent pending;
+  /** messages of the packet being decoded */
+  protected final ArrayList<OscMessage> msgs;
+  /**
+   * the score lacks its closing tag (unterminated recording), compressed
+   * scores are found truncated while decompressing them
+   */
+  protected final boolean truncated;
+  /** set when the end of a truncated score has been reached */
+  protected boolean recovered;
+  /** address filter (null to read every message) */
+  protected ScoreFilter filter;
+  /** header of the score, null if it has none */
+  protected ScoreHeader header;
+  /** shared address strings */
+  protected final Map<String, String> addresses;
+  /** base64 characters of the blob chunk being decoded */
+  protected final byte[] b64 = new byte[BLOB_CHUNK];
+  /** bytes of the last decoded blob chunk */
+  protected final byte[] blobchunk = new byte[BLOB_CHUNK / 4 * 3];
+
+  /**
+   * constructor
+   *
+   * @param path path to the XML score
+   * @throws IOException if the score can not be opened or is invalid
+   */
+  XmlScoreReader(String path) throws IOException {
+    this.xmlfilepath = path;
+    this.xmlfilestream = new FileInputStream(path);
+    this.compressed = path.endsWith(COMPRESSED_EXTENSION);
+    this.xif = XMLInputFactory.newInstance();
+    this.msgs = new ArrayList<OscMessage>();
+    this.addresses = new HashMap<String, String>();
+    try {
+      this.truncated = !this.compressed && !isTerminated(this.xmlfilestream);
+      this.rewind();
+      if (this.header != null && this.header.isComplete()
+          && !this.compressed) {
+        this.loadDictionary();
+        this.msgs.ensureCapacity(this.header.getMaxMessages());
+      }
+    } catch (IOException e) {
+      this.xmlfilestream.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public String getPath() {
+    return this.xmlfilepath;
+  }
+
+  @Override
+  public ScoreEvent next() throws IOException {
+    if (this.pending != null) {
+      ScoreEvent ev = this.pending;
+      this.pending = null;
+      return ev;
+    }
+    if (this.recovered) {
+      return null;
+    }
+
+    try {
+      ScoreEvent ev;
+      do {
+        // skip blanks between packets
+        while (xsr.getEventType() != XMLStreamConstants.START_ELEMENT) {
+          if (xsr.getEventType() == XMLStreamConstants.END_ELEMENT
+              || !xsr.hasNext()) {
+            // nothing left to fetch
+            return null;
+          }
+          xsr.next();
+        }
+        if (!xsr.getLocalName().equals("oscpacket")) {
+          // the address dictionary follows the last packet
+          return null;
+        }
+        // null when the filter rejects all the messages of the packet
+        ev = this.readPacket();
+      } while (ev == null);
+      return ev;
+    } catch (XMLStreamException e) {
+      if (this.isTruncation()) {
+        // the last packet is incomplete
+        this.recover();
+        return null;
+      }
+      throw new IOException((e.getNestedException() == null) ? e.getMessage()
+          : e.getNestedException().getMessage(), e);
+    } catch (NumberFormatException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+  @Override
+  public void rewind() throws IOException {
+    this.pending = null;
+    this.recovered = false;
+    // rewind the filestream
+    this.xmlfilestream.getChannel().position(0);
+    if (this.compressed) {
+      this.gzstream = new GZIPInputStream(noClose(this.xmlfilestream),
+          BUFFER_SIZE);
+      this.openReader(this.gzstream);
+    } else {
+      this.openReader(this.xmlfilestream);
+    }
+  }
+
+  @Override
+  public void seek(int frame) throws IOException {
+    this.pending = null;
+    this.recovered = false;
+    if (this.index == null && !this.compressed) {
+      this.index = ScoreIndex.open(this.xmlfilepath, true);
+    }
+    long offset = this.compressed ? 0 : this.index.lookup(frame);
+    if (offset <= 0) {
+      this.rewind();
+    } else {
+      // restart parsing from the packet pointed by the index, behind a fake
+      // root element; the score must stay open when the reader is done
+      this.xmlfilestream.getChannel().position(offset);
+      this.openReader(new SequenceInputStream(new ByteArrayInputStream(
+          "<oscscore>".getBytes(StandardCharsets.UTF_8)),
+          noClose(this.xmlfilestream)));
+    }
+
+    // skip the events before the requested frame
+    ScoreEvent ev;
+    while ((ev = this.next()) != null) {
+      if (ev.getFrame() >= frame) {
+        this.pending = ev;
+        break;
+      }
+    }
+  }
+
+  @Override
+  public boolean isTruncated() {
+    return this.recovered;
+  }
+
+  @Override
+  public void setFilter(ScoreFilter filter) {
+    this.filter = filter;
+    if (filter != null && this.header != null) {
+      // take the decisions for the known addresses up front
+      for (String address : this.header.getAddresses()) {
+        filter.accepts(address);
+      }
+    }
+  }
+
+  @Override
+  public ScoreHeader getHeader() {
+    return this.header;
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.xmlfilestream.close();
+  }
+
+  /**
+   * decode all the packets of a byte range of the score, see
+   * {@link ParallelScoreReader}
+   *
+   * @param start offset of the start tag of the first packet
+   * @param end offset of the start tag following the last packet, or the size
+   *          of the score for the last range
+   * @return the events of the range
+   * @throws IOException on invalid score content
+   */
+  List<ScoreEvent> readChunk(long start, long end) throws IOException {
+    this.pending = null;
+    this.recovered = false;
+    // the packets are parsed behind a fake root element, closed after the
+    // range unless the score end tag does it
+    FileChannel channel = this.xmlfilestream.getChannel();
+    channel.position(start);
+    List<InputStream> parts = new ArrayList<InputStream>();
+    parts.add(new ByteArrayInputStream(
+        "<oscscore>".getBytes(StandardCharsets.UTF_8)));
+    parts.add(limit(noClose(this.xmlfilestream), end - start));
+    if (end < channel.size()) {
+      parts.add(new ByteArrayInputStream(
+          "</oscscore>".getBytes(StandardCharsets.UTF_8)));
+    }
+    this.openReader(new SequenceInputStream(Collections.enumeration(parts)));
+
+    List<ScoreEvent> events = new ArrayList<ScoreEvent>();
+    ScoreEvent ev;
+    while ((ev = this.next()) != null) {
+      events.add(ev);
+    }
+    return events;
+  }
+
+  /**
+   * create the XML reader, then advance it right before the first packet
+   *
+   * @param is input stream positioned at the beginning of the score, or at the
+   *          beginning of a packet behind a fake root element
+   * @throws IOException on invalid XML content
+   */
+  protected void openReader(InputStream is) throws IOException {
+    boolean root = false;
+    try {
+      this.xsr = this.xif.createXMLStreamReader(is);
+      // advance the reader, pointer right on the first packet (or on the end
+      // of the root element for empty scores)
+      while (xsr.hasNext()) {
+        xsr.next();
+        if (xsr.isStartElement() && xsr.getLocalName().equals("header")) {
+          if (this.header == null) {
+            this.header = this.readHeader();
+          }
+          this.skipElement();
+          continue;
+        }
+        if ((xsr.isStartElement() && xsr.getLocalName().equals("oscpacket"))
+            || xsr.isEndElement()) {
+          return;
+        }
+        root |= xsr.isStartElement();
+      }
+      if (!root || !this.truncated) {
+        throw new IOException("Premature end of file.");
+      }
+    } catch (XMLStreamException e) {
+      if (!root || !this.isTruncation()) {
+        throw new IOException((e.getNestedException() == null) ? e.getMessage()
+            : e.getNestedException().getMessage(), e);
+      }
+    }
+    // truncated before the end of the first packet
+    this.recover();
+  }
+
+  /**
+   * decode the header element, the reader is on its start tag
+   *
+   * @return the header
+   * @throws IOException on invalid or unsupported headers
+   */
+  protected ScoreHeader readHeader() throws IOException {
+    ScoreHeader h = new ScoreHeader();
+    try {
+      h.version = Integer.parseInt(this.headerField("version", "0"));
+      if (h.version > ScoreHeader.VERSION) {
+        throw new IOException(
+            String.format("unsupported OSC score version %d", h.version));
+      }
+      h.frameRate = Float.parseFloat(this.headerField("framerate", "0"));
+      h.packets = Long.parseLong(this.headerField("packets", "-1"));
+      h.messages = Long.parseLong(this.headerField("messages", "0"));
+      h.firstFrame = Integer.parseInt(this.headerField("firstframe", "-1"));
+      h.lastFrame = Integer.parseInt(this.headerField("lastframe", "-1"));
+      h.maxMessages = Integer.parseInt(this.headerField("maxmessages", "0"));
+      h.dictionary = Long.parseLong(this.headerField("dictionary", "-1"));
+      h.index = xsr.getAttributeValue(null, "index");
+    } catch (NumberFormatException e) {
+      throw new IOException("invalid OSC score header: " + e.getMessage(), e);
+    }
+    return h;
+  }
+
+  /**
+   * @param name attribute of the header element
+   * @param missing value of missing attributes
+   * @return the attribute value, without its padding
+   */
+  protected String headerField(String name, String missing) {
+    String value = xsr.getAttributeValue(null, name);
+    return (value == null) ? missing : value.trim();
+  }
+
+  /**
+   * load the address dictionary pointed to by the header; being just a
+   * shortcut, a dictionary that can not be read is ignored
+   *
+   * @throws IOException on read errors
+   */
+  protected void loadDictionary() throws IOException {
+    FileChannel channel = this.xmlfilestream.getChannel();
+    long start = this.header.dictionary;
+    long len = channel.size() - start;
+    if (start <= 0 || len <= 0 || len > Integer.MAX_VALUE) {
+      return;
+    }
+    ByteBuffer tail = ByteBuffer.allocate((int) len);
+    while (tail.hasRemaining()
+        && channel.read(tail, start + tail.position()) > 0) {
+      // keep reading
+    }
+
+    List<String> dictionary = new ArrayList<String>();
+    try {
+      // behind a fake root element, the end tag of the score closes it
+      XMLStreamReader r = this.xif.createXMLStreamReader(
+          new SequenceInputStream(
+              new ByteArrayInputStream(
+                  "<oscscore>".getBytes(StandardCharsets.UTF_8)),
+              new ByteArrayInputStream(tail.array(), 0, tail.position())));
+      r.nextTag();
+      if (r.nextTag() != XMLStreamConstants.START_ELEMENT
+          || !r.getLocalName().equals("dictionary")) {
+        return;
+      }
+      while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+        dictionary.add(r.getElementText());
+      }
+    } catch (XMLStreamException e) {
+      return;
+    }
+    for (String address : dictionary) {
+      this.header.addresses.add(this.intern(address));
+    }
+  }
+
+  /**
+   * @param address an address
+   * @return the shared string holding the same address
+   */
+  protected String intern(String address) {
+    String shared = this.addresses.get(address);
+    if (shared != null) {
+      return shared;
+    }
+    if (this.addresses.size() < MAX_ADDRESSES) {
+      this.addresses.put(address, address);
+    }
+    return address;
+  }
+
+  /**
+   * @return the last parsing error is caused by the end of a truncated score
+   *         (compressed scores are decompressed up to their end to find out)
+   */
+  protected boolean isTruncation() {
+    if (this.truncated || !this.compressed) {
+      return this.truncated;
+    }
+    // the decompressor hits the end of the file before the gzip trailer
+    byte[] skip = new byte[BUFFER_SIZE];
+    try {
+      while (this.gzstream.read(skip) >= 0) {
+        // drain the stream
+      }
+    } catch (EOFException eof) {
+      return true;
+    } catch (IOException ioe) {
+      // corrupted compressed data
+    }
+    return false;
+  }
+
+  /**
+   * @param is an input stream
+   * @return the same stream, left open when closed by the XML reader
+   */
+  protected static InputStream noClose(InputStream is) {
+    return new FilterInputStream(is) {
+      @Override
+      public void close() {
+      }
+    };
+  }
+
+  /**
+   * @param is an input stream
+   * @param n number of bytes to read
+   * @return the same stream, ending after n bytes
+   */
+  protected static InputStream limit(InputStream is, long n) {
+    return new FilterInputStream(is) {
+      /** bytes left */
+      long left = n;
+
+      @Override
+      public int read() throws IOException {
+        if (this.left <= 0) {
+          return -1;
+        }
+        int b = super.read();
+        if (b >= 0) {
+          this.left--;
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if (this.left <= 0) {
+          return -1;
+        }
+        int read = super.read(b, off, (int) Math.min(len, this.left));
+        if (read > 0) {
+          this.left -= read;
+        }
+        return read;
+      }
+    };
+  }
+
+  /**
+   * stop at the end of the last complete packet of a truncated score
+   */
+  protected void recover() {
+    if (!this.recovered) {
+      this.recovered = true;
+      System.err.println(String.format("WARNING: OSC score at %s is truncated,"
+          + " playing it up to its last complete packet", this.xmlfilepath));
+    }
+  }
+
+  /**
+   * @param fis the score
+   * @return true if the score ends with the closing tag of the root element
+   * @throws IOException on read errors
+   */
+  protected static boolean isTerminated(FileInputStream fis)
+      throws IOException {
+    FileChannel channel = fis.getChannel();
+    ByteBuffer tail = ByteBuffer.allocate(64);
+    long start = Math.max(channel.size() - tail.capacity(), 0);
+    while (tail.hasRemaining()
+        && channel.read(tail, start + tail.position()) > 0) {
+      // keep reading
+    }
+    String end = new String(tail.array(), 0, tail.position(),
+        StandardCharsets.UTF_8).trim();
+    return end.endsWith("</oscscore>");
+  }
+
+  /**
+   * decode a packet, the reader is on its start tag and is left right after
+   * its end tag
+   *
+   * @return the event, null if all its messages are filtered out
+   * @throws XMLStreamException on invalid XML content
+   * @throws IOException on invalid score content
+   */
+  protected ScoreEvent readPacket() throws XMLStreamException, IOException {
+    int frame = 0;
+    long time = ScoreEvent.NO_TIME;
+    int count = 0;
+    this.msgs.clear();
+
+    while (xsr.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      switch (xsr.getLocalName()) {
+        case "framecount":
+          frame = Integer.parseInt(xsr.getElementText().trim());
+          break;
+        case "timestamp":
+          time = Long.parseLong(xsr.getElementText().trim());
+          break;
+        case "message":
+          String address = this
+              .intern(xsr.getAttributeValue(null, "address"));
+          count++;
+          if (this.filter != null && !this.filter.accepts(address)) {
+            // not decoded at all
+            this.skipElement();
+          } else {
+            this.msgs.add(this.readMessage(address));
+          }
+          break;
+        default:
+          throw new IOException(String.format("unexpected element %s in packet",
+              xsr.getLocalName()));
+      }
+    }
+    // move past the packet end tag
+    xsr.next();
+
+    if (count == 0) {
+      // something went wrong
+      throw new IOException("No messages found in the OSC packet");
+    }
+    if (this.msgs.isEmpty()) {
+      return null;
+    }
+
+    OscPacket pkt;
+    if (count > 1) {
+      // this is a bundle
+      OscBundle bundle = new OscBundle();
+      for (OscMessage m : this.msgs) {
+        bundle.add(m);
+      }
+      pkt = bundle;
+    } else {
+      // this is a message
+      pkt = this.msgs.get(0);
+    }
+    return new ScoreEvent(frame, time, pkt);
+  }
+
+  /**
+   * decode a message, the reader is on its start tag and is left on its end
+   * tag
+   *
+   * @param address address attribute of the message
+   * @return the message
+   * @throws XMLStreamException on invalid XML content
+   * @throws IOException on invalid score content
+   */
+  protected OscMessage readMessage(String address)
+      throws XMLStreamException, IOException {
+    OscMessage msg = new OscMessage(address);
+
+    while (xsr.nextTag() == XMLStreamConstants.START_ELEMENT) {
+      String type = xsr.getAttributeValue(null, "type");
+      String value = xsr.getAttributeValue(null, "value");
+      switch ((type == null) ? "" : type) {
+        case "s":
+          // <arg type="s" value="this is a string"/>
+          msg.add(value);
+          break;
+        case "i":
+          // <arg type="i" value="11"/>
+          msg.add(Integer.parseInt(value));
+          break;
+        case "f":
+          // <arg type="f" value="3.457"/>
+          msg.add(Float.parseFloat(value));
+          break;
+        case "d":
+          // <arg type="d" value="3.198698469846981"/>
+          msg.add(Double.parseDouble(value));
+          break;
+        case "h":
+          // <arg type="h" value="-8589934592"/>
+          msg.add(Long.parseLong(value));
+          break;
+        case "c":
+          // <arg type="c" value="65"/>
+          msg.add((char) Integer.parseInt(value));
+          break;
+        case "T":
+          // <arg type="T"/>
+          msg.add(true);
+          break;
+        case "F":
+          // <arg type="F"/>
+          msg.add(false);
+          break;
+        case "b":
+          // <arg type="b" size="3">AQID</arg>
+          msg.add(this.readBlob(xsr.getAttributeValue(null, "size")));
+          // already on the arg end tag
+          continue;
+        default:
+          throw new IOException(String.format(
+              "OSC message argument %s is invalid or not supported", type));
+      }
+      // move to the arg end tag
+      xsr.nextTag();
+    }
+    return msg;
+  }
+
+  /**
+   * skip an element and its content, the reader is on its start tag and is
+   * left on its end tag
+   *
+   * @throws XMLStreamException on invalid XML content
+   */
+  protected void skipElement() throws XMLStreamException {
+    int depth = 1;
+    while (depth > 0) {
+      int event = xsr.next();
+      if (event == XMLStreamConstants.START_ELEMENT) {
+        depth++;
+      } else if (event == XMLStreamConstants.END_ELEMENT) {
+        depth--;
+      }
+    }
+  }
+
+  /**
+   * decode the base64 content of a blob argument in chunks, the reader is on
+   * the arg start tag and is left on its end tag. The size attribute is not
+   * trusted for allocations, only checked against the decoded content.
+   *
+   * @param size size attribute of the blob
+   * @return the blob
+   * @throws XMLStreamException on invalid XML content
+   * @throws IOException on invalid blob content, or content not matching its
+   *           size
+   */
+  protected byte[] readBlob(String size) throws XMLStreamException,
+      IOException {
+    try {
+      int len = Integer.parseInt(size);
+      if (len < 0) {
+        throw new IllegalArgumentException("negative size " + len);
+      }
+      ByteArrayOutputStream blob = new ByteArrayOutputStream(
+          Math.min(len, this.blobchunk.length));
+      int q = 0;
+      int event;
+      while ((event = xsr.next()) != XMLStreamConstants.END_ELEMENT) {
+        if (event != XMLStreamConstants.CHARACTERS
+            && event != XMLStreamConstants.CDATA
+            && event != XMLStreamConstants.SPACE) {
+          continue;
+        }
+        // the text is read in place, without building a string
+        char[] text = xsr.getTextCharacters();
+        int end = xsr.getTextStart() + xsr.getTextLength();
+        for (int i = xsr.getTextStart(); i < end; i++) {
+          char c = text[i];
+          if (Character.isWhitespace(c)) {
+            continue;
+          }
+          if (c > 0x7f) {
+            throw new IllegalArgumentException("illegal character " + c);
+          }
+          this.b64[q++] = (byte) c;
+          if (q == this.b64.length) {
+            this.decodeBlobChunk(this.b64, blob, len);
+            q = 0;
+          }
+        }
+      }
+      if (q != 0) {
+        this.decodeBlobChunk(Arrays.copyOf(this.b64, q), blob, len);
+      }
+      if (blob.size() != len) {
+        throw new IOException("truncated blob argument");
+      }
+      return blob.toByteArray();
+    } catch (IllegalArgumentException e) {
+      // NumberFormatException too
+      throw new IOException("invalid blob argument: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * decode a chunk of the base64 content of a blob
+   *
+   * @param chunk base64 characters, a multiple of 4 but for the last chunk
+   * @param blob receives the decoded bytes
+   * @param len size attribute of the blob
+   * @throws IOException if the blob gets larger than its size
+   * @throws IllegalArgumentException on invalid base64 content
+   */
+  protected void decodeBlobChunk(byte[] chunk, ByteArrayOutputStream blob,
+      int len) throws IOException {
+    int n = Base64.getDecoder().decode(chunk, this.blobchunk);
+    if (n > len - blob.size()) {
+      throw new IOException("blob argument larger than its size");
+    }
+    blob.write(this.blobchunk, 0, n);
+  }
+}
@@ -0,0 +1,421 @@
+/**
+ * ##library.name##
+ * ##library.sentence##
+ * ##library.url##
+ *
+ * Copyright ##copyright## ##author##
+ * SPDX-License-Identifier: LGPL-3.0-or-later
+ *
+ * @author      ##author##
+ * @version     ##library.prettyVersion## (##library.version##)
+ *              Last modified: ##date##
+ */
+
+package net.zeroisnan.oscscorep5;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Write XML scores, see {@link ScoreRecorder} for the schema.
+ *
+ * <p>
+ * OSC messages are streamed straight from the recorded {@link ScoreRecord}s to
+ * a StAX writer, without any intermediate bean. The frame index of the score
+ * (see {@link ScoreIndex}) is built while writing and stored next to the score
+ * on close.
+ *
+ * <p>
+ * The score starts with a header element (see {@link ScoreHeader}) whose
+ * numeric attributes are padded to a fixed width, so that the header can be
+ * patched in place on close, and ends with the address dictionary:
+ *
+ * <pre>
+ * &lt;header version="1" framerate="  60.0" packets="  1200" ...
+ *   dictionary="  81234" index="mydump.xml.idx"&gt;&lt;/header&gt;
+ * ...
+ * &lt;dictionary&gt;
+ *   &lt;address&gt;/zzz/yyy/xxx&lt;/address&gt;
+ *   ...
+ * &lt;/dictionary&gt;
+ * </pre>
+ *
+ * <p>
+ * Scores whose name ends with .gz are compressed on the fly (gzip). Commits
+ * flush the compressor too, so a compressed score left behind by a crash is
+ * still readable up to its last commit. Compressed scores have no frame index:
+ * seeking them means decompressing from the beginning. They have neither header
+ * nor address dictionary either, as the header could not be patched.
+ */
+class XmlScoreWriter implements ScoreWriter {
+  /** size of the compressor output buffer */
+  final static int BUFFER_SIZE = 64 << 10;
+  /** blob bytes encoded at once (multiple of 3) */
+  final static int BLOB_CHUNK = 3 << 10;
+  /** width of the header attributes patched on close */
+  final static int FIELD_WIDTH = 20;
+
+  /** path to the output XML file */
+  protected final String xmlfilepath;
+  /** XML file stream object */
+  protected final FileOutputStream xmlfilestream;
+  /** stream used by the writer (compressor or file stream) */
+  protected final OutputStream out;
+  /** XML writer */
+  protected XMLStreamWriter xtw;
+  /** frame index of the score (null for compressed scores) */
+  protected final ScoreIndex index;
+  /** typetag of the last written message */
+  protected String lasttypetag = "";
+  /** base64 encoding buffer for blobs */
+  protected final char[] b64 = new char[BLOB_CHUNK / 3 * 4];
+  /** header of the score, patched on close */
+  protected final ScoreHeader header;
+  /** byte offset of the header element */
+  protected long headerpos;
+  /** length of the header element in bytes */
+  protected long headerlen;
+  /** frame rate of the recording sketch */
+  protected volatile float frameRate;
+
+  /**
+   * constructor
+   *
+   * @param path path to the XML score
+   * @throws IOException if the score can not be created
+   */
+  XmlScoreWriter(String path) throws IOException {
+    this.xmlfilepath = path;
+    this.xmlfilestream = new FileOutputStream(path);
+    if (path.endsWith(XmlScoreReader.COMPRESSED_EXTENSION)) {
+      // sync flush, so that commits reach the file
+      this.out = new GZIPOutputStream(this.xmlfilestream, BUFFER_SIZE, true);
+      this.index = null;
+    } else {
+      this.out = this.xmlfilestream;
+      this.index = new ScoreIndex();
+    }
+    this.header = new ScoreHeader();
+    if (this.index != null) {
+      this.header.index = new File(ScoreIndex.pathFor(path)).getName();
+    }
+  }
+
+  @Override
+  public String getPath() {
+    return this.xmlfilepath;
+  }
+
+  @Override
+  public void open(String generator) throws IOException {
+    XMLOutputFactory xof = XMLOutputFactory.newInstance();
+
+    try {
+      // create the XML stream writer
+      xtw = xof.createXMLStreamWriter(this.out, "utf-8");
+      // write initial XML content
+      xtw.writeStartDocument("utf-8", "1.0");
+      xtw.writeStartElement("oscscore");
+      xtw.writeAttribute("generator", generator);
+      if (this.index != null) {
+        // close the root start tag, so that the header starts at the file
+        // position once flushed
+        xtw.writeCharacters("");
+        xtw.flush();
+        this.headerpos = this.xmlfilestream.getChannel().position();
+        this.writeHeader(xtw);
+        xtw.flush();
+        this.headerlen = this.xmlfilestream.getChannel().position()
+            - this.headerpos;
+      }
+    } catch (XMLStreamException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+  @Override
+  public void setFrameRate(float frameRate) {
+    this.frameRate = frameRate;
+  }
+
+  @Override
+  public void write(ScoreRecord[] msgs, int count) throws IOException {
+    ScoreRecord first = msgs[0];
+    this.header.count(msgs, count);
+    try {
+      if (this.index != null) {
+        if (this.index.isDue()) {
+          // flush so that the file position is the one of the next packet
+          this.xtw.flush();
+          this.index.add(first.getFrame(),
+              this.xmlfilestream.getChannel().position());
+        }
+        this.index.countPacket();
+      }
+
+      xtw.writeStartElement("oscpacket");
+      xtw.writeStartElement("framecount");
+      xtw.writeCharacters(Integer.toString(first.getFrame()));
+      xtw.writeEndElement();
+      if (first.getTime() != ScoreEvent.NO_TIME) {
+        xtw.writeStartElement("timestamp");
+        xtw.writeCharacters(Long.toString(first.getTime()));
+        xtw.writeEndElement();
+      }
+      for (int i = 0; i < count; i++) {
+        this.writeMessage(msgs[i]);
+      }
+      xtw.writeEndElement();
+    } catch (XMLStreamException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+  }
+
+  @Override
+  public void commit(boolean sync) throws IOException {
+    try {
+      this.xtw.flush();
+      this.out.flush();
+    } catch (XMLStreamException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+    if (sync) {
+      this.xmlfilestream.getChannel().force(false);
+    }
+  }
+
+  @Override
+  public long size() {
+    try {
+      return this.xmlfilestream.getChannel().position();
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (this.xtw == null) {
+      // never opened
+      this.out.close();
+      return;
+    }
+    try {
+      this.header.frameRate = this.frameRate;
+      this.header.complete();
+      if (this.index != null) {
+        this.writeDictionary();
+      }
+      xtw.writeEndElement();
+      xtw.writeEndDocument();
+      xtw.flush();
+      xtw.close();
+      if (this.index != null) {
+        this.patchHeader();
+      }
+    } catch (XMLStreamException e) {
+      throw new IOException(e.getMessage(), e);
+    } finally {
+      // also writes the compressed stream trailer
+      this.out.close();
+    }
+
+    if (this.index == null) {
+      return;
+    }
+    // store the frame index next to the score, used to seek during playback
+    this.index.setScoreSize(new File(this.xmlfilepath).length());
+    this.index.save(ScoreIndex.pathFor(this.xmlfilepath));
+  }
+
+  /**
+   * write the header element
+   *
+   * @param w XML writer
+   * @throws XMLStreamException on write errors
+   */
+  protected void writeHeader(XMLStreamWriter w) throws XMLStreamException {
+    ScoreHeader h = this.header;
+    w.writeStartElement("header");
+    w.writeAttribute("version", Integer.toString(h.version));
+    w.writeAttribute("framerate", field(Float.toString(h.frameRate)));
+    w.writeAttribute("packets", field(Long.toString(h.packets)));
+    w.writeAttribute("messages", field(Long.toString(h.messages)));
+    w.writeAttribute("firstframe", field(Integer.toString(h.firstFrame)));
+    w.writeAttribute("lastframe", field(Integer.toString(h.lastFrame)));
+    w.writeAttribute("maxmessages", field(Integer.toString(h.maxMessages)));
+    w.writeAttribute("dictionary", field(Long.toString(h.dictionary)));
+    if (h.index != null) {
+      w.writeAttribute("index", h.index);
+    }
+    w.writeEndElement();
+  }
+
+  /**
+   * @param value attribute value
+   * @return the value padded with leading spaces to a fixed width
+   */
+  protected static String field(String value) {
+    return String.format("%" + FIELD_WIDTH + "s", value);
+  }
+
+  /**
+   * write the address dictionary, pointed to by the header
+   *
+   * @throws XMLStreamException on write errors
+   * @throws IOException on write errors
+   */
+  protected void writeDictionary() throws XMLStreamException, IOException {
+    xtw.flush();
+    this.header.dictionary = this.xmlfilestream.getChannel().position();
+    xtw.writeStartElement("dictionary");
+    for (String address : this.header.getAddresses()) {
+      xtw.writeStartElement("address");
+      xtw.writeCharacters(address);
+      xtw.writeEndElement();
+    }
+    xtw.writeEndElement();
+  }
+
+  /**
+   * overwrite the header written on open with the final one, which has the
+   * same size
+   *
+   * @throws XMLStreamException on write errors
+   * @throws IOException on write errors
+   */
+  protected void patchHeader() throws XMLStreamException, IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    XMLStreamWriter w = XMLOutputFactory.newInstance()
+        .createXMLStreamWriter(bytes, "utf-8");
+    this.writeHeader(w);
+    w.flush();
+    if (bytes.size() != this.headerlen) {
+      System.err.println(String.format(
+          "WARNING: unable to update the header of OSC score at %s",
+          this.xmlfilepath));
+      return;
+    }
+    ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+    long pos = this.headerpos;
+    while (buf.hasRemaining()) {
+      pos += this.xmlfilestream.getChannel().write(buf, pos);
+    }
+  }
+
+  /**
+   * write a message element
+   *
+   * @param msg message to write
+   * @throws XMLStreamException on write errors
+   */
+  protected void writeMessage(ScoreRecord msg) throws XMLStreamException {
+    this.header.define(msg.getAddress());
+    xtw.writeStartElement("message");
+    xtw.writeAttribute("address", msg.getAddress());
+    xtw.writeAttribute("typetag", this.typetag(msg));
+
+    for (int i = 0; i < msg.size(); i++) {
+      char c = msg.type(i);
+      xtw.writeStartElement("arg");
+      switch (c) {
+        case 's':
+          xtw.writeAttribute("type", "s");
+          xtw.writeAttribute("value", msg.stringValue(i));
+          break;
+        case 'i':
+          xtw.writeAttribute("type", "i");
+          xtw.writeAttribute("value", Integer.toString(msg.intValue(i)));
+          break;
+        case 'f':
+          xtw.writeAttribute("type", "f");
+          xtw.writeAttribute("value", Float.toString(msg.floatValue(i)));
+          break;
+        case 'd':
+          xtw.writeAttribute("type", "d");
+          xtw.writeAttribute("value", Double.toString(msg.doubleValue(i)));
+          break;
+        case 'h':
+          xtw.writeAttribute("type", "h");
+          xtw.writeAttribute("value", Long.toString(msg.longValue(i)));
+          break;
+        case 'c':
+          // the char code, as not every char is valid in XML
+          xtw.writeAttribute("type", "c");
+          xtw.writeAttribute("value", Integer.toString(msg.charValue(i)));
+          break;
+        case 'T':
+          xtw.writeAttribute("type", "T");
+          break;
+        case 'F':
+          xtw.writeAttribute("type", "F");
+          break;
+        case 'b':
+          xtw.writeAttribute("type", "b");
+          this.writeBlob(msg.blobValue(i));
+          break;
+        default:
+          xtw.writeAttribute("type", String.valueOf(c));
+          System.err.println(String.format(
+              "OSC message argument %s is invalid or not supported", c));
+          break;
+      }
+      xtw.writeEndElement();
+    }
+
+    xtw.writeEndElement();
+  }
+
+  /**
+   * write the size and the base64 content of a blob argument, encoding it in
+   * chunks
+   *
+   * @param blob blob to write
+   * @throws XMLStreamException on write errors
+   */
+  protected void writeBlob(byte[] blob) throws XMLStreamException {
+    xtw.writeAttribute("size", Integer.toString(blob.length));
+    Base64.Encoder encoder = Base64.getEncoder();
+    for (int off = 0; off < blob.length; off += BLOB_CHUNK) {
+      ByteBuffer chunk = encoder.encode(ByteBuffer.wrap(blob, off,
+          Math.min(BLOB_CHUNK, blob.length - off)));
+      // base64 is plain ASCII, one character per byte
+      int n = chunk.remaining();
+      for (int i = 0; i < n; i++) {
+        this.b64[i] = (char) chunk.get(i);
+      }
+      xtw.writeCharacters(this.b64, 0, n);
+    }
+  }
+
+  /**
+   * @param msg a message
+   * @return typetag of the message, reusing the previous string when
+   *         unchanged (typetags repeat a lot)
+   */
+  protected String typetag(ScoreRecord msg) {
+    int n = msg.size();
+    boolean same = this.lasttypetag.length() == n;
+    for (int i = 0; same && i < n; i++) {
+      same = this.lasttypetag.charAt(i) == msg.type(i);
+    }
+    if (!same) {
+      char[] chars = new char[n];
+      for (int i = 0; i < n; i++) {
+        chars[i] = msg.type(i);
+      }
+      this.lasttypetag = new String(chars);
+    }
+    return this.lasttypetag;
+  }
+}
@@ -10,17 +10,35 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import net.zeroisnan.oscscorep5.OscDestination;
 import net.zeroisnan.oscscorep5.OscScoreP5;
 import net.zeroisnan.oscscorep5.ScorePlayer;
+import net.zeroisnan.oscscorep5.ScoreRecorder;
+import net.zeroisnan.oscscorep5.ScoreTrack;
+import oscP5.OscMessage;
+import oscP5.OscPacket;
 
 public class ScorePlayerTest extends ScoreBaseTest {
   OscScoreP5 sca;
@@ -125,6 +143,561 @@ public class ScorePlayerTest extends ScoreBaseTest {
     }
   }
 
+  /**
+   * LOCKSTEP mode: events are dispatched at their frame regardless of the
+   * sketch frame rate, and the end of the score is detected
+   */
+  @Test
+  public void testLockstep() {
+    // path to the input XML score
+    String xmlscore = Paths.get("test/data/testScorePlayer.xml")
+        .toAbsolutePath().toString();
+    ScorePlayer oscplay = new ScorePlayer(testapplet, xmlscore, sca);
+    oscplay.setScheduleMode(ScorePlayer.ScheduleMode.LOCKSTEP);
+
+    for (int i = 0; i < msgs.size(); i++) {
+      scb.oscExpect(msgs.get(i));
+    }
+    // 6 is the highest framecount in the reference file
+    for (int i = 0; i < 7; i++) {
+      assertFalse(oscplay.isFinished());
+      oscplay.pre();
+    }
+    oscplay.pre();
+    assertTrue(oscplay.isFinished());
+  }
+
+  /**
+   * two tracks merged into one timeline, the second one a frame late
+   */
+  @Test
+  public void testMultiTrack() {
+    // path to the input XML score
+    String xmlscore = Paths.get("test/data/testScorePlayer.xml")
+        .toAbsolutePath().toString();
+    ScorePlayer oscplay = new ScorePlayer(testapplet,
+        new String[] { xmlscore, xmlscore }, sca, false);
+    oscplay.setScheduleMode(ScorePlayer.ScheduleMode.LOCKSTEP);
+    List<ScoreTrack> tracks = oscplay.getTracks();
+    assertEquals(2, tracks.size());
+    tracks.get(1).setOffset(1);
+    oscplay.rewind();
+
+    // packets at frames 1 2 4 6 and 2 3 5 7, same frame in track order
+    int[] order = { 0, 1, 0, 1, 2, 2, 3, 4, 3, 4 };
+    for (int i : order) {
+      scb.oscExpect(msgs.get(i));
+    }
+    for (int i = 0; i < 9; i++) {
+      oscplay.pre();
+    }
+    scb.balanceScoreboard();
+    assertTrue(oscplay.isFinished());
+
+    // first track muted
+    tracks.get(0).setMuted(true);
+    oscplay.rewind();
+    for (int i = 0; i < msgs.size(); i++) {
+      scb.oscExpect(msgs.get(i));
+    }
+    for (int i = 0; i < 9; i++) {
+      oscplay.pre();
+    }
+    scb.balanceScoreboard();
+
+    // first track soloed
+    tracks.get(0).setMuted(false);
+    tracks.get(0).setSolo(true);
+    oscplay.rewind();
+    for (int i = 0; i < msgs.size(); i++) {
+      scb.oscExpect(msgs.get(i));
+    }
+    for (int i = 0; i < 9; i++) {
+      oscplay.pre();
+    }
+    scb.balanceScoreboard();
+
+    // seek on the merged timeline
+    tracks.get(0).setSolo(false);
+    oscplay.seek(5);
+    for (int i : new int[] { 2, 3, 4, 3, 4 }) {
+      scb.oscExpect(msgs.get(i));
+    }
+    for (int i = 0; i < 4; i++) {
+      oscplay.pre();
+    }
+    oscplay.dispose();
+  }
+
+  /**
+   * replay the whole score and a loop region from the decoded event cache
+   */
+  @Test
+  public void testCache() {
+    // path to the input XML score
+    String xmlscore = Paths.get("test/data/testScorePlayer.xml")
+        .toAbsolutePath().toString();
+    ScorePlayer oscplay = new ScorePlayer(testapplet, xmlscore, sca);
+    oscplay.setScheduleMode(ScorePlayer.ScheduleMode.LOCKSTEP);
+    oscplay.setCache(1 << 20);
+
+    // first pass fills the cache, second pass replays the 4 packets from it
+    for (int pass = 0; pass < 2; pass++) {
+      for (int i = 0; i < msgs.size(); i++) {
+        scb.oscExpect(msgs.get(i));
+      }
+      for (int i = 0; i < 8; i++) {
+        oscplay.pre();
+      }
+      scb.balanceScoreboard();
+      assertTrue(oscplay.isFinished());
+      oscplay.rewind();
+    }
+    assertEquals(4, oscplay.getCacheHits());
+    assertTrue(oscplay.getCacheUsage() > 0);
+
+    // loop over frames 2 to 4, cached after the first time through
+    oscplay.setLoop(2, 5);
+    scb.oscExpect(msgs.get(0));
+    for (int i = 0; i < 3; i++) {
+      scb.oscExpect(msgs.get(1));
+      scb.oscExpect(msgs.get(2));
+    }
+    for (int i = 0; i < 11; i++) {
+      oscplay.pre();
+    }
+    scb.balanceScoreboard();
+    assertEquals(4, oscplay.getCacheHits());
+
+    // nothing fits in the budget: everything is parsed every time
+    oscplay.noLoop();
+    oscplay.setCache(1);
+    oscplay.rewind();
+    for (int pass = 0; pass < 2; pass++) {
+      for (int i = 0; i < msgs.size(); i++) {
+        scb.oscExpect(msgs.get(i));
+      }
+      for (int i = 0; i < 8; i++) {
+        oscplay.pre();
+      }
+      scb.balanceScoreboard();
+      oscplay.rewind();
+    }
+    assertEquals(0, oscplay.getCacheHits());
+    assertEquals(0, oscplay.getCacheUsage());
+    oscplay.dispose();
+  }
+
+  /**
+   * play back with the background decoder enabled
+   */
+  @Test
+  public void testReadAhead() {
+    // path to the input XML score
+    String xmlscore = Paths.get("test/data/testScorePlayer.xml")
+        .toAbsolutePath().toString();
+    ScorePlayer oscplay = new ScorePlayer(testapplet, xmlscore, sca);
+    oscplay.setReadAhead(2, 4);
+    assertEquals(2, oscplay.getLowWatermark());
+    assertEquals(4, oscplay.getHighWatermark());
+    // the whole score fits in the prefilled buffer
+    assertEquals(4, oscplay.getReadAheadLevel());
+
+    for (int i = 0; i < msgs.size(); i++) {
+      scb.oscExpect(msgs.get(i));
+    }
+    for (int i = 0; i < 10; i++) {
+      oscplay.pre();
+    }
+    scb.balanceScoreboard();
+    assertEquals(0, oscplay.getUnderruns());
+
+    // rewind restarts the decoder from the beginning
+    oscplay.rewind();
+    for (int i = 0; i < msgs.size(); i++) {
+      scb.oscExpect(msgs.get(i));
+    }
+    for (int i = 0; i < 10; i++) {
+      oscplay.pre();
+    }
+    oscplay.dispose();
+  }
+
+  /**
+   * record a binary score and play it back
+   */
+  @Test
+  public void testBinaryRoundTrip() {
+    // record all messages, one frame apart
+    ScoreRecorder rec = new ScoreRecorder(testapplet, "testScorePlayer.oscb");
+    int frameCount = testapplet.frameCount;
+    try {
+      rec.pre();
+      for (int i = 0; i < msgs.size(); i++) {
+        testapplet.frameCount = i + 1;
+        rec.oscEvent(msgs.get(i));
+      }
+      rec.dispose();
+    } finally {
+      testapplet.frameCount = frameCount;
+    }
+
+    ScorePlayer oscplay = new ScorePlayer(testapplet, rec.getScorePath(), sca);
+    for (int i = 0; i < msgs.size(); i++) {
+      scb.oscExpect(msgs.get(i));
+    }
+    for (int i = 0; i < msgs.size() + 2; i++) {
+      oscplay.pre();
+    }
+    scb.balanceScoreboard();
+
+    // seek to the last two messages
+    oscplay.seek(msgs.size() - 1);
+    scb.oscExpect(msgs.get(msgs.size() - 2));
+    scb.oscExpect(msgs.get(msgs.size() - 1));
+    for (int i = 0; i < 3; i++) {
+      oscplay.pre();
+    }
+  }
+
+  /**
+   * record scores with a header, check what the player learns from it, then
+   * seek in them through their frame index
+   */
+  @Test
+  public void testScoreHeader() {
+    float fps = testapplet.frameRate;
+    int frameCount = testapplet.frameCount;
+    testapplet.frameRate = 30;
+    try {
+      for (String score : new String[] { "testScorePlayer_header.xml",
+          "testScorePlayer_header.oscb" }) {
+        // enough packets for several frame index entries
+        ScoreRecorder rec = new ScoreRecorder(testapplet, score);
+        rec.pre();
+        for (int i = 0; i < 200; i++) {
+          testapplet.frameCount = i + 1;
+          rec.oscEvent(msgs.get(i % msgs.size()));
+        }
+        rec.dispose();
+
+        ScorePlayer oscplay = new ScorePlayer(testapplet, rec.getScorePath(),
+            sca);
+        assertEquals(30, oscplay.getScoreFrameRate(), 0);
+        assertEquals(200, oscplay.getScorePackets());
+        assertEquals(200, oscplay.getScoreLastFrame());
+
+        oscplay.seek(150);
+        scb.oscExpect(msgs.get(149 % msgs.size()));
+        scb.oscExpect(msgs.get(150 % msgs.size()));
+        for (int i = 0; i < 2; i++) {
+          oscplay.pre();
+        }
+        scb.balanceScoreboard();
+        oscplay.dispose();
+      }
+    } finally {
+      testapplet.frameRate = fps;
+      testapplet.frameCount = frameCount;
+    }
+
+    // scores recorded without header play as before
+    String xmlscore = Paths.get("test/data/testScorePlayer.xml")
+        .toAbsolutePath().toString();
+    ScorePlayer oscplay = new ScorePlayer(testapplet, xmlscore, sca);
+    assertEquals(0, oscplay.getScoreFrameRate(), 0);
+    assertEquals(-1, oscplay.getScorePackets());
+    assertEquals(-1, oscplay.getScoreLastFrame());
+    oscplay.dispose();
+  }
+
+  /**
+   * seek back and forth in the score
+   */
+  @Test
+  public void testSeek() {
+    // path to the input XML score
+    String xmlscore = Paths.get("test/data/testScorePlayer.xml")
+        .toAbsolutePath().toString();
+    ScorePlayer oscplay = new ScorePlayer(testapplet, xmlscore, sca);
+
+    // frame 4 onward: the first two packets are skipped
+    oscplay.seek(4);
+    for (int i = 2; i < msgs.size(); i++) {
+      scb.oscExpect(msgs.get(i));
+    }
+    for (int i = 0; i < 5; i++) {
+      oscplay.pre();
+    }
+    scb.balanceScoreboard();
+
+    // back to frame 3, in between two packets
+    oscplay.seek(3);
+    for (int i = 2; i < msgs.size(); i++) {
+      scb.oscExpect(msgs.get(i));
+    }
+    for (int i = 0; i < 5; i++) {
+      oscplay.pre();
+    }
+    scb.balanceScoreboard();
+
+    // past the end of the score: nothing happens
+    oscplay.seek(100);
+    for (int i = 0; i < 5; i++) {
+      oscplay.pre();
+    }
+  }
+
+  /**
+   * same as testScorePlayback, but with packets going through UDP rather than
+   * being dispatched in-process
+   */
+  @Test
+  public void testScorePlaybackUdp() {
+    sca.setLoopbackMode(OscScoreP5.LoopbackMode.UDP);
+    assertEquals(OscScoreP5.LoopbackMode.UDP, sca.getLoopbackMode());
+
+    // path to the input XML score
+    String xmlscore = Paths.get("test/data/testScorePlayer.xml")
+        .toAbsolutePath().toString();
+    ScorePlayer oscplay = new ScorePlayer(testapplet, xmlscore, sca);
+    for (int i = 0; i < msgs.size(); i++) {
+      scb.oscExpect(msgs.get(i));
+    }
+    for (int i = 0; i < 10; i++) {
+      oscplay.pre();
+    }
+  }
+
+  /**
+   * packets due on the same frame are looped back as a single datagram when
+   * batching, unless they do not fit together
+   */
+  @Test
+  public void testLoopbackBatching() {
+    // only the datagram count is checked here, see testScorePlaybackUdp
+    sca.removeListener(scb);
+    sca.setLoopbackMode(OscScoreP5.LoopbackMode.UDP);
+    assertEquals(0, sca.getBatching());
+
+    // dense score: 3 packets on frame 1, 3 more on frame 3 (2 of them late)
+    String xmlscore = Paths.get("test/data/testScorePlayer_dense.xml")
+        .toAbsolutePath().toString();
+    ScorePlayer oscplay = new ScorePlayer(testapplet, xmlscore, sca);
+    for (int i = 0; i < 5; i++) {
+      oscplay.pre();
+    }
+    assertEquals(6, sca.getLoopbackDatagrams());
+
+    // one datagram per frame
+    sca.setBatching(OscScoreP5.MTU_BATCH_BYTES);
+    assertEquals(OscScoreP5.MTU_BATCH_BYTES, sca.getBatching());
+    oscplay.rewind();
+    for (int i = 0; i < 5; i++) {
+      oscplay.pre();
+    }
+    assertEquals(6 + 2, sca.getLoopbackDatagrams());
+
+    // no room for two messages: one datagram per packet again
+    sca.setBatching(32);
+    oscplay.rewind();
+    for (int i = 0; i < 5; i++) {
+      oscplay.pre();
+    }
+    assertEquals(6 + 2 + 6, sca.getLoopbackDatagrams());
+
+    sca.setBatching(0);
+    assertEquals(0, sca.getBatching());
+  }
+
+  /**
+   * COLLAPSE: a late value and an on time value of the same address on the
+   * same frame, the on time value must be the last one delivered
+   */
+  @Test
+  public void testCollapseOnTime() {
+    // frame 1: /x 1; frame 3: /x 3, /y 30 then the late /x 2, /z 20, /y 21
+    String xmlscore = Paths.get("test/data/testScorePlayer_collapse.xml")
+        .toAbsolutePath().toString();
+    List<OscPacket> played = new ArrayList<OscPacket>();
+    ScorePlayer oscplay = new ScorePlayer(testapplet, xmlscore, played::add);
+    oscplay.setLatePolicy(ScorePlayer.LatePolicy.COLLAPSE);
+    for (int i = 0; i < 5; i++) {
+      oscplay.pre();
+    }
+    oscplay.dispose();
+
+    String[] addresses = { "/x", "/x", "/y", "/z" };
+    int[] values = { 1, 3, 30, 20 };
+    assertEquals(addresses.length, played.size());
+    for (int i = 0; i < played.size(); i++) {
+      OscMessage msg = (OscMessage) played.get(i);
+      assertEquals(addresses[i], msg.addrPattern());
+      assertEquals(values[i], msg.get(0).intValue());
+    }
+    assertEquals(3, oscplay.getLateEvents());
+    // the late /x and /y are superseded by their on time values
+    assertEquals(2, oscplay.getDroppedEvents());
+  }
+
+  /**
+   * fan-out to several local receivers, each with its own filter, next to an
+   * unreachable destination
+   */
+  @Test
+  public void testDestinations() throws IOException {
+    try (DatagramSocket all = new DatagramSocket(0,
+        InetAddress.getLoopbackAddress());
+        DatagramSocket base = new DatagramSocket(0,
+            InetAddress.getLoopbackAddress());
+        DatagramSocket others = new DatagramSocket(0,
+            InetAddress.getLoopbackAddress())) {
+      int unreachable;
+      try (DatagramSocket closed = new DatagramSocket(0,
+          InetAddress.getLoopbackAddress())) {
+        unreachable = closed.getLocalPort();
+      }
+      OscDestination dall = sca.addDestination("127.0.0.1",
+          all.getLocalPort());
+      sca.addDestination("127.0.0.1", unreachable);
+      OscDestination dbase = sca.addDestination("127.0.0.1",
+          base.getLocalPort());
+      dbase.include("/base/*");
+      OscDestination dothers = sca.addDestination("127.0.0.1",
+          others.getLocalPort());
+      dothers.exclude("/base/*");
+      assertEquals(4, sca.getDestinations().size());
+      assertEquals(all.getLocalPort(), dall.getPort());
+
+      // the sketch still gets everything, late packets on frame 3
+      String xmlscore = Paths.get("test/data/testScorePlayer_dense.xml")
+          .toAbsolutePath().toString();
+      ScorePlayer oscplay = new ScorePlayer(testapplet, xmlscore, sca);
+      for (int i = 0; i < msgs.size(); i++) {
+        scb.oscExpect(msgs.get(i));
+      }
+      scb.oscExpect(msgs.get(4));
+      for (int i = 0; i < 5; i++) {
+        oscplay.pre();
+      }
+      scb.balanceScoreboard();
+
+      // one bundle per frame: frames 1 and 3
+      assertEquals(2, dall.getSentDatagrams());
+      assertTrue(receive(all).startsWith("#bundle"));
+      assertTrue(receive(all).startsWith("#bundle"));
+      // the two late /base/addr1 packets, on frame 3
+      assertEquals(1, dbase.getSentDatagrams());
+      assertTrue(receive(base).startsWith("#bundle"));
+      // 3 packets on frame 1, a lone message on frame 3
+      assertEquals(2, dothers.getSentDatagrams());
+      assertTrue(receive(others).startsWith("#bundle"));
+      assertThat(receive(others), containsString("/a_long_address"));
+      for (DatagramSocket s : new DatagramSocket[] { all, base, others }) {
+        s.setSoTimeout(200);
+        try {
+          receive(s);
+          fail("unexpected datagram");
+        } catch (SocketTimeoutException e) {
+          // nothing more
+        }
+      }
+
+      sca.removeDestination(dbase);
+      assertEquals(3, sca.getDestinations().size());
+    }
+  }
+
+  /**
+   * @param s receiving socket
+   * @return content of the next datagram
+   * @throws IOException if nothing is received in time
+   */
+  static String receive(DatagramSocket s) throws IOException {
+    if (s.getSoTimeout() == 0) {
+      s.setSoTimeout(2000);
+    }
+    byte[] buf = new byte[OscScoreP5.MTU_BATCH_BYTES];
+    DatagramPacket p = new DatagramPacket(buf, buf.length);
+    s.receive(p);
+    return new String(buf, 0, p.getLength(), StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * dense score: several packets on the same frame and late (out of order)
+   * packets, checked against all the late event policies
+   */
+  @Test
+  public void testLatePolicies() {
+    // path to the input XML score
+    String xmlscore = Paths.get("test/data/testScorePlayer_dense.xml")
+        .toAbsolutePath().toString();
+
+    // SEND: every packet is delivered, late ones on the first frame they can
+    ScorePlayer oscplay = new ScorePlayer(testapplet, xmlscore, sca);
+    for (int i = 0; i < msgs.size(); i++) {
+      scb.oscExpect(msgs.get(i));
+    }
+    scb.oscExpect(msgs.get(4));
+    for (int i = 0; i < 5; i++) {
+      oscplay.pre();
+    }
+    scb.balanceScoreboard();
+    assertEquals(2, oscplay.getLateEvents());
+    assertEquals(2, oscplay.getTotalLateness());
+    assertEquals(1, oscplay.getMaxLateness());
+    assertEquals(0, oscplay.getDroppedEvents());
+
+    // DROP: late packets are discarded
+    oscplay.rewind();
+    oscplay.resetLateStats();
+    oscplay.setLatePolicy(ScorePlayer.LatePolicy.DROP);
+    for (int i = 0; i < 4; i++) {
+      scb.oscExpect(msgs.get(i));
+    }
+    for (int i = 0; i < 5; i++) {
+      oscplay.pre();
+    }
+    scb.balanceScoreboard();
+    assertEquals(2, oscplay.getLateEvents());
+    assertEquals(2, oscplay.getDroppedEvents());
+
+    // COLLAPSE: only the last value of /base/addr1 is delivered
+    oscplay.rewind();
+    oscplay.resetLateStats();
+    oscplay.setLatePolicy(ScorePlayer.LatePolicy.COLLAPSE);
+    for (int i = 0; i < msgs.size(); i++) {
+      scb.oscExpect(msgs.get(i));
+    }
+    for (int i = 0; i < 5; i++) {
+      oscplay.pre();
+    }
+    assertEquals(2, oscplay.getLateEvents());
+    assertEquals(1, oscplay.getDroppedEvents());
+  }
+
+  /**
+   * TIME schedule mode: events are sent by the scheduler thread at their
+   * timestamp, regardless of the (huge) frame numbers and of pre() calls
+   */
+  @Test
+  public void testTimeSchedule() {
+    // path to the input XML score
+    String xmlscore = Paths.get("test/data/testScorePlayer_timed.xml")
+        .toAbsolutePath().toString();
+
+    ScorePlayer oscplay = new ScorePlayer(testapplet, xmlscore, sca);
+    oscplay.setScheduleMode(ScorePlayer.ScheduleMode.TIME);
+    assertEquals(ScorePlayer.ScheduleMode.TIME, oscplay.getScheduleMode());
+
+    // a single pre() starts the clock, everything else happens in background
+    scb.oscExpect(msgs.get(0));
+    scb.oscExpect(msgs.get(1));
+    oscplay.pre();
+    scb.balanceScoreboard();
+    oscplay.dispose();
+  }
+
   /**
    * read an empty score
    */
@@ -146,6 +719,85 @@ public class ScorePlayerTest extends ScoreBaseTest {
     System.setErr(null);
   }
 
+  /**
+   * read binary scores too short for their magic number, holding a corrupt
+   * string length, or a packet with more messages than its record holds
+   */
+  @Test
+  public void invalidBinaryInput() throws IOException {
+    ByteBuffer magic = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+    // magic number, version 1, generator name longer than the file
+    magic.putInt(0x4243534f).putInt(1).putInt(Integer.MAX_VALUE);
+    ByteBuffer packet = ByteBuffer.allocate(33).order(ByteOrder.LITTLE_ENDIAN);
+    // magic number, version 2, no generator name, then a packet record of
+    // frame 1 announcing 5 messages but holding none
+    packet.putInt(0x4243534f).putInt(2).putInt(0);
+    packet.putInt(17).put((byte) 'P').putInt(1).putLong(-1).putInt(5);
+    byte[][] contents = { { 'O', 'S' }, magic.array(), packet.array() };
+    String[] errors = { "truncated binary OSC score",
+        "invalid string length", "corrupt binary OSC score" };
+    PrintStream err = System.err;
+    try {
+      for (int i = 0; i < contents.length; i++) {
+        Path path = Paths.get("testScorePlayer_corrupt.oscb");
+        Files.write(path, contents[i]);
+        ByteArrayOutputStream errContent = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(errContent));
+        ScorePlayer oscplay = new ScorePlayer(testapplet,
+            path.toAbsolutePath().toString(), sca);
+        // packets are only decoded during playback
+        for (int f = 0; f < 3 && !oscplay.isFinished(); f++) {
+          oscplay.pre();
+        }
+        assertThat(errContent.toString(),
+            containsString("ERROR: Invalid OSC score content"));
+        assertThat(errContent.toString(), containsString(errors[i]));
+        assertTrue(oscplay.isFinished());
+        Files.delete(path);
+      }
+    } finally {
+      System.setErr(err);
+    }
+  }
+
+  /**
+   * read XML scores whose blob size does not match the blob content: the size
+   * must not be trusted to allocate the blob
+   */
+  @Test
+  public void invalidBlobSize() throws IOException {
+    String[] sizes = { "2147483647", "-1", "many", "1" };
+    String[] errors = { "truncated blob argument", "negative size",
+        "invalid blob argument", "blob argument larger than its size" };
+    PrintStream err = System.err;
+    try {
+      for (int i = 0; i < sizes.length; i++) {
+        Path path = Paths.get("testScorePlayer_blob.xml");
+        Files.write(path, ("<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+            + "<oscscore generator=\"PApplet\"><oscpacket>"
+            + "<framecount>0</framecount>"
+            + "<message address=\"/blob\" typetag=\"b\">"
+            + "<arg type=\"b\" size=\"" + sizes[i] + "\">AAAA</arg>"
+            + "</message></oscpacket></oscscore>")
+                .getBytes(StandardCharsets.UTF_8));
+        ByteArrayOutputStream errContent = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(errContent));
+        ScorePlayer oscplay = new ScorePlayer(testapplet,
+            path.toAbsolutePath().toString(), sca);
+        for (int f = 0; f < 3 && !oscplay.isFinished(); f++) {
+          oscplay.pre();
+        }
+        assertThat(errContent.toString(),
+            containsString("ERROR: Invalid OSC score content"));
+        assertThat(errContent.toString(), containsString(errors[i]));
+        assertTrue(oscplay.isFinished());
+        Files.delete(path);
+      }
+    } finally {
+      System.setErr(err);
+    }
+  }
+
   /**
    * read a truncated XML file
    */
@@ -172,6 +824,41 @@ public class ScorePlayerTest extends ScoreBaseTest {
     }
   }
 
+  /**
+   * play a score truncated in the middle of its last packet (crashed
+   * recording): everything up to the last complete packet is played
+   */
+  @Test
+  public void recoverTruncatedPacket() {
+    // path to a XML file truncated in the middle of a packet
+    String xmltrunc = Paths
+        .get("test/data/testScorePlayer_truncatedpacket.xml").toAbsolutePath()
+        .toString();
+
+    // hijack stderr
+    ByteArrayOutputStream errContent = new ByteArrayOutputStream();
+    PrintStream stderr = System.err;
+    System.setErr(new PrintStream(errContent));
+    try {
+      ScorePlayer oscplay = new ScorePlayer(testapplet, xmltrunc, sca);
+      oscplay.setScheduleMode(ScorePlayer.ScheduleMode.LOCKSTEP);
+      for (int i = 0; i < 3; i++) {
+        scb.oscExpect(msgs.get(i));
+      }
+      for (int i = 0; i < 8; i++) {
+        oscplay.pre();
+      }
+      scb.balanceScoreboard();
+      assertTrue(oscplay.isFinished());
+      assertThat(errContent.toString(),
+          containsString("WARNING: OSC score at " + xmltrunc + " is truncated"));
+      assertFalse(errContent.toString().contains("ERROR"));
+    } finally {
+      // release stderr
+      System.setErr(stderr);
+    }
+  }
+
   /**
    * read a malformed XML file (wrong arg specifier)
    */
@@ -5,16 +5,50 @@
 
 package net.zeroisnan.oscscorep5.unitlevel;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
 
+import org.junit.Before;
 import org.junit.Test;
 
+import net.zeroisnan.oscscorep5.OscLoopback;
+import net.zeroisnan.oscscorep5.ScorePlayer;
 import net.zeroisnan.oscscorep5.ScoreRecorder;
+import net.zeroisnan.oscscorep5.ScoreStats;
+import net.zeroisnan.oscscorep5.ScoreTool;
+import oscP5.OscBundle;
+import oscP5.OscMessage;
+import oscP5.OscPacket;
 
 public class ScoreRecorderTest extends ScoreBaseTest {
+  @Before
+  public void resetFrameCount() {
+    // the reference files start at frame 0, whatever test ran before
+    testapplet.frameCount = 0;
+  }
 
   /**
    * send few OSC messages and check the generated XML against a reference file
@@ -69,4 +103,820 @@ public class ScoreRecorderTest extends ScoreBaseTest {
     // check against the reference
     checkFileDiffs(xmltestfile, "testScoreRecorder.ref.xml");
   }
+
+  /**
+   * record a compressed score, check it against the XML reference once
+   * decompressed, then seek in it
+   */
+  @Test
+  public void testCompressedDump() throws IOException {
+    ScoreRecorder ut = new ScoreRecorder(testapplet, "testScoreRecorder.xml.gz");
+    ut.pre();
+    int[] frames = { 0, 0, 13, 15, 16 };
+    for (int i = 0; i < msgs.size(); i++) {
+      testapplet.frameCount = frames[i];
+      ut.oscEvent(msgs.get(i));
+    }
+    ut.dispose();
+
+    // same content as the uncompressed reference, without header and
+    // dictionary
+    String gunzipped = Paths.get("testScoreRecorder_gunzip.xml")
+        .toAbsolutePath().toString();
+    try (InputStream is = new GZIPInputStream(
+        new FileInputStream(ut.getScorePath()))) {
+      Files.copy(is, Paths.get(gunzipped),
+          StandardCopyOption.REPLACE_EXISTING);
+    }
+    checkFileDiffs(gunzipped, "testScoreRecorder_compressed.ref.xml");
+
+    // no index: seeking decompresses from the beginning
+    List<OscPacket> played = new ArrayList<OscPacket>();
+    ScorePlayer oscplay = new ScorePlayer(testapplet, ut.getScorePath(),
+        played::add);
+    oscplay.setScheduleMode(ScorePlayer.ScheduleMode.LOCKSTEP);
+    oscplay.seek(15);
+    while (!oscplay.isFinished()) {
+      oscplay.pre();
+    }
+    oscplay.dispose();
+    assertEquals(2, played.size());
+  }
+
+  /**
+   * overflow the queue feeding the writer thread with both backpressure
+   * policies, before and after the writer thread starts
+   */
+  @Test
+  public void testBackpressure() throws IOException {
+    // DROP: the writer thread is not running yet, so the queue overflows
+    ScoreRecorder ut = new ScoreRecorder(testapplet,
+        "testScoreRecorder_drop.xml", 2);
+    assertEquals(ScoreRecorder.Backpressure.DROP, ut.getBackpressure());
+    assertEquals(2, ut.getQueueCapacity());
+    for (int i = 0; i < msgs.size(); i++) {
+      ut.oscEvent(msgs.get(i));
+    }
+    assertEquals(2, ut.getQueueLevel());
+    assertEquals(msgs.size() - 2, ut.getDroppedMessages());
+    ut.pre();
+    ut.dispose();
+    assertEquals(2, countMessages(ut.getScorePath()));
+
+    // BLOCK: oscEvent() waits for the writer thread, nothing is lost
+    ut = new ScoreRecorder(testapplet, "testScoreRecorder_block.xml", 2);
+    ut.setBackpressure(ScoreRecorder.Backpressure.BLOCK);
+    ut.pre();
+    for (int n = 0; n < 100; n++) {
+      for (int i = 0; i < msgs.size(); i++) {
+        ut.oscEvent(msgs.get(i));
+      }
+    }
+    ut.dispose();
+    assertEquals(0, ut.getDroppedMessages());
+    assertEquals(100 * msgs.size(), countMessages(ut.getScorePath()));
+
+    // BLOCK before pre(): nobody drains the queue yet, so the overflow is
+    // dropped instead of blocking, and the queued messages are stamped at the
+    // start of the recording
+    ut = new ScoreRecorder(testapplet, "testScoreRecorder_early.xml", 2);
+    ut.setBackpressure(ScoreRecorder.Backpressure.BLOCK);
+    ut.setTimestamps(true);
+    for (int i = 0; i < msgs.size(); i++) {
+      ut.oscEvent(msgs.get(i));
+    }
+    assertEquals(msgs.size() - 2, ut.getDroppedMessages());
+    assertEquals(0, ut.getStalls());
+    ut.pre();
+    ut.dispose();
+    assertEquals(2, countMessages(ut.getScorePath()));
+    String xml = new String(Files.readAllBytes(Paths.get(ut.getScorePath())),
+        StandardCharsets.UTF_8);
+    assertTrue(xml.contains("<timestamp>0</timestamp>"));
+  }
+
+  /**
+   * commit every packet, then play back a copy of the score taken while the
+   * recording is still going on, as left behind by a crash
+   */
+  @Test
+  public void testGroupCommit() throws Exception {
+    for (String ext : new String[] { ".xml", ".oscb", ".xml.gz" }) {
+      ScoreRecorder ut = new ScoreRecorder(testapplet,
+          "testScoreRecorder_commit" + ext);
+      ut.setCommitPolicy(1, 1000, true);
+      ut.pre();
+      for (int i = 0; i < msgs.size(); i++) {
+        testapplet.frameCount = i + 1;
+        ut.oscEvent(msgs.get(i));
+      }
+
+      // the packets of frames 1 to 4 are committed, frame 5 is going on
+      String crashed = "testScoreRecorder_crashed" + ext;
+      int played = 0;
+      for (int retry = 0; retry < 100 && played < 4; retry++) {
+        Thread.sleep(10);
+        Files.copy(Paths.get(ut.getScorePath()), Paths.get(crashed),
+            StandardCopyOption.REPLACE_EXISTING);
+        played = playAll(crashed).size();
+      }
+      assertEquals(4, played);
+
+      // a clean dispose writes the last packet too
+      ut.dispose();
+      assertEquals(msgs.size(), playAll(ut.getScorePath()).size());
+    }
+  }
+
+  /**
+   * rotate the recording every 5 frames and play the segments back, one by one
+   * and as a whole
+   */
+  @Test
+  public void testSegmentation() throws IOException {
+    for (String ext : new String[] { ".xml", ".oscb", ".xml.gz" }) {
+      ScoreRecorder ut = new ScoreRecorder(testapplet,
+          "testScoreRecorder_seg" + ext);
+      ut.setSegmentation(0, 5, 0);
+      assertTrue(ut.isSegmented());
+      ut.pre();
+      for (int i = 0; i < 20; i++) {
+        testapplet.frameCount = i + 1;
+        ut.oscEvent(msgs.get(i % msgs.size()));
+      }
+      ut.dispose();
+
+      // no single score, 4 standalone segments
+      assertFalse(new File(ut.getScorePath()).exists());
+      String base = ut.getScorePath().substring(0,
+          ut.getScorePath().length() - ext.length());
+      for (int n = 0; n < 4; n++) {
+        assertEquals(5,
+            playAll(String.format("%s.%03d%s", base, n, ext)).size());
+      }
+      assertFalse(new File(base + ".004" + ext).exists());
+
+      // the base path plays the segments as one score
+      assertEquals(20, playAll(ut.getScorePath()).size());
+
+      // seek across segments, back and forth
+      List<OscPacket> played = new ArrayList<OscPacket>();
+      ScorePlayer oscplay = new ScorePlayer(testapplet, ut.getScorePath(),
+          played::add);
+      oscplay.setScheduleMode(ScorePlayer.ScheduleMode.LOCKSTEP);
+      oscplay.seek(17);
+      oscplay.seek(8);
+      while (!oscplay.isFinished()) {
+        oscplay.pre();
+      }
+      oscplay.dispose();
+      assertEquals(13, played.size());
+    }
+
+    // the segmentation can not change once recording
+    ScoreRecorder ut = new ScoreRecorder(testapplet, "testScoreRecorder_seg.xml");
+    ut.pre();
+    try {
+      ut.setSegmentation(0, 5, 0);
+      fail("segmentation changed while recording");
+    } catch (IllegalStateException e) {
+      // expected
+    } finally {
+      ut.dispose();
+    }
+  }
+
+  /**
+   * record a burst of messages into a binary score and check that neither the
+   * receiving thread nor the writer thread allocate memory per message
+   */
+  @Test
+  public void testAllocationFree() throws Exception {
+    com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory
+        .getThreadMXBean();
+    ScoreRecorder ut = new ScoreRecorder(testapplet,
+        "testScoreRecorder_alloc.oscb", 1 << 14);
+    ut.setBackpressure(ScoreRecorder.Backpressure.BLOCK);
+    ut.pre();
+    Thread writer = null;
+    for (Thread t : Thread.getAllStackTraces().keySet()) {
+      if (t.getName().equals("OscScoreP5-writer") && t.isAlive()) {
+        writer = t;
+      }
+    }
+
+    final int n = 200000;
+    long[] receiver = new long[2];
+    long[] written = new long[2];
+    for (int pass = 0; pass < 2; pass++) {
+      // the first pass warms up the code and the pools of records
+      receiver[0] = mx.getThreadAllocatedBytes(Thread.currentThread().getId());
+      written[0] = mx.getThreadAllocatedBytes(writer.getId());
+      for (int i = 0; i < n; i++) {
+        testapplet.frameCount = pass * n + i / 4;
+        ut.oscEvent(msgs.get(i % msgs.size()));
+      }
+      receiver[1] = mx.getThreadAllocatedBytes(Thread.currentThread().getId());
+      while (ut.getQueueLevel() > 0) {
+        Thread.sleep(1);
+      }
+      written[1] = mx.getThreadAllocatedBytes(writer.getId());
+    }
+    ut.dispose();
+
+    assertEquals(0, ut.getDroppedMessages());
+    assertTrue("receiver allocated " + (receiver[1] - receiver[0]) + " bytes",
+        receiver[1] - receiver[0] < n);
+    assertTrue("writer allocated " + (written[1] - written[0]) + " bytes",
+        written[1] - written[0] < n);
+    assertEquals(2 * n, playAll(ut.getScorePath()).stream()
+        .mapToInt(p -> p instanceof OscBundle ? ((OscBundle) p).size() : 1)
+        .sum());
+  }
+
+  /**
+   * capture datagrams in raw mode and check that playback re-injects the very
+   * same bytes, bundle and timetag included
+   */
+  @Test
+  public void testRawCapture() throws IOException {
+    byte[] msg = oscMessage("/raw/a", 42, 0.5f, "abc");
+    byte[] bundle = oscBundle(0x0123456789abcdefL, oscMessage("/raw/b", 1,
+        1.5f, "de"), oscMessage("/raw/c", -7, -2.5f, "fghij"));
+    List<byte[]> sent = new ArrayList<byte[]>();
+    sent.add(msg);
+    sent.add(bundle);
+    sent.add(msg);
+
+    ScoreRecorder ut = new ScoreRecorder(testapplet,
+        "testScoreRecorder_raw.oscb");
+    ut.setTimestamps(true);
+    ut.setRawCapture(true);
+    assertTrue(ut.isRawCapture());
+    ut.pre();
+    int[] frames = { 1, 1, 3 };
+    for (int i = 0; i < sent.size(); i++) {
+      testapplet.frameCount = frames[i];
+      // the datagram sits in the middle of a larger receive buffer
+      byte[] buf = new byte[sent.get(i).length + 16];
+      System.arraycopy(sent.get(i), 0, buf, 8, sent.get(i).length);
+      ut.capture(new DatagramPacket(buf, 8, sent.get(i).length));
+      // decoded messages are not recorded in raw mode
+      ut.oscEvent(msgs.get(0));
+    }
+    ut.dispose();
+
+    List<byte[]> raws = new ArrayList<byte[]>();
+    List<OscPacket> decoded = new ArrayList<OscPacket>();
+    ScorePlayer oscplay = new ScorePlayer(testapplet, ut.getScorePath(),
+        new OscLoopback() {
+          @Override
+          public void loopback(OscPacket pkt) {
+            fail("raw datagram looped back without its bytes");
+          }
+
+          @Override
+          public void loopback(OscPacket pkt, byte[] raw) {
+            decoded.add(pkt);
+            raws.add(raw);
+          }
+        });
+    oscplay.setScheduleMode(ScorePlayer.ScheduleMode.LOCKSTEP);
+    while (!oscplay.isFinished()) {
+      oscplay.pre();
+    }
+    oscplay.dispose();
+
+    assertEquals(sent.size(), raws.size());
+    for (int i = 0; i < sent.size(); i++) {
+      assertArrayEquals(sent.get(i), raws.get(i));
+    }
+    assertEquals("/raw/a", ((OscMessage) decoded.get(0)).addrPattern());
+    OscBundle b = (OscBundle) decoded.get(1);
+    assertEquals(0x0123456789abcdefL, b.timetag());
+    assertEquals(2, b.size());
+    assertEquals("/raw/c", b.getMessage(1).addrPattern());
+    assertEquals("fghij", b.getMessage(1).get(2).stringValue());
+
+    // raw capture needs a binary score
+    ut = new ScoreRecorder(testapplet, "testScoreRecorder_raw.xml");
+    try {
+      ut.setRawCapture(true);
+      fail("raw capture into a XML score");
+    } catch (IllegalArgumentException e) {
+      // expected
+    } finally {
+      ut.dispose();
+    }
+  }
+
+  /**
+   * @param address address pattern
+   * @param i int argument
+   * @param f float argument
+   * @param str string argument
+   * @return the message in OSC wire format
+   */
+  protected static byte[] oscMessage(String address, int i, float f,
+      String str) {
+    ByteBuffer buf = ByteBuffer.allocate(256);
+    putOscString(buf, address);
+    putOscString(buf, ",ifs");
+    buf.putInt(i);
+    buf.putFloat(f);
+    putOscString(buf, str);
+    return Arrays.copyOf(buf.array(), buf.position());
+  }
+
+  /**
+   * @param timetag bundle timetag
+   * @param elements messages in OSC wire format
+   * @return the bundle in OSC wire format
+   */
+  protected static byte[] oscBundle(long timetag, byte[]... elements) {
+    ByteBuffer buf = ByteBuffer.allocate(1024);
+    putOscString(buf, "#bundle");
+    buf.putLong(timetag);
+    for (byte[] e : elements) {
+      buf.putInt(e.length);
+      buf.put(e);
+    }
+    return Arrays.copyOf(buf.array(), buf.position());
+  }
+
+  /**
+   * @param buf buffer receiving the string
+   * @param str string to append, null terminated and padded to 4 bytes
+   */
+  protected static void putOscString(ByteBuffer buf, String str) {
+    buf.put(str.getBytes(StandardCharsets.UTF_8));
+    do {
+      buf.put((byte) 0);
+    } while (buf.position() % 4 != 0);
+  }
+
+  /**
+   * flood a few addresses every frame and check that only the last value per
+   * frame is recorded for the coalesced ones
+   */
+  @Test
+  public void testCoalescing() throws IOException {
+    ScoreRecorder ut = new ScoreRecorder(testapplet,
+        "testScoreRecorder_coalesce.xml");
+    ut.coalesce("/fader/[0-9]");
+    ut.coalesce("/acc/{x,y}");
+    ut.setBackpressure(ScoreRecorder.Backpressure.BLOCK);
+    ut.pre();
+    for (int frame = 1; frame <= 10; frame++) {
+      testapplet.frameCount = frame;
+      for (int v = 0; v < 100; v++) {
+        ut.oscEvent(new OscMessage("/fader/1").add(frame * 1000 + v));
+        ut.oscEvent(new OscMessage("/acc/x").add(v));
+        ut.oscEvent(new OscMessage("/acc/z").add(v));
+      }
+      ut.oscEvent(new OscMessage("/fader/10").add(frame));
+      ut.oscEvent(new OscMessage("/fader/10").add(frame));
+    }
+    ut.dispose();
+
+    List<OscPacket> played = playAll(ut.getScorePath());
+    assertEquals(10, played.size());
+    for (int frame = 1; frame <= 10; frame++) {
+      OscBundle bundle = (OscBundle) played.get(frame - 1);
+      // /fader/1, /acc/x, 100 x /acc/z, 2 x /fader/10
+      assertEquals(104, bundle.size());
+      assertEquals("/fader/1", bundle.getMessage(0).addrPattern());
+      assertEquals(frame * 1000 + 99, bundle.getMessage(0).get(0).intValue());
+      assertEquals("/acc/x", bundle.getMessage(1).addrPattern());
+      assertEquals(99, bundle.getMessage(1).get(0).intValue());
+    }
+    assertEquals(10 * 2 * 99, ut.getCoalescedMessages());
+  }
+
+  /**
+   * record every supported argument type, blobs of several KB included, and
+   * check that it plays back unchanged in every score format
+   */
+  @Test
+  public void testAllTypes() throws IOException {
+    byte[] big = new byte[20000];
+    new Random(42).nextBytes(big);
+    OscMessage msg = new OscMessage("/all/types");
+    msg.add("s");
+    msg.add(-7);
+    msg.add(1.25f);
+    msg.add(-2.5e300);
+    msg.add(-8589934592L);
+    msg.add('<');
+    msg.add(true);
+    msg.add(false);
+    msg.add(big);
+    msg.add(new byte[] { 1 });
+    msg.add(new byte[0]);
+
+    for (String ext : new String[] { ".xml", ".oscb", ".xml.gz" }) {
+      ScoreRecorder ut = new ScoreRecorder(testapplet,
+          "testScoreRecorder_types" + ext);
+      ut.pre();
+      testapplet.frameCount = 1;
+      ut.oscEvent(msg);
+      ut.dispose();
+
+      List<OscPacket> played = playAll(ut.getScorePath());
+      assertEquals(1, played.size());
+      OscMessage back = (OscMessage) played.get(0);
+      assertEquals(msg.typetag(), back.typetag());
+      assertArrayEquals(msg.arguments(), back.arguments());
+    }
+  }
+
+  /**
+   * filter and coalesce multi-level addresses with the path traversing
+   * wildcards (// and **)
+   */
+  @Test
+  public void testFilteringTraversal() throws IOException {
+    ScoreRecorder ut = new ScoreRecorder(testapplet,
+        "testScoreRecorder_traversal.xml");
+    ut.include("/synth/**");
+    ut.include("/acc/**");
+    ut.exclude("//debug");
+    ut.coalesce("/acc/**");
+    ut.setBackpressure(ScoreRecorder.Backpressure.BLOCK);
+    ut.pre();
+    for (int frame = 1; frame <= 3; frame++) {
+      testapplet.frameCount = frame;
+      ut.oscEvent(new OscMessage("/synth/freq").add(frame));
+      ut.oscEvent(new OscMessage("/synth/voice/1").add(frame));
+      ut.oscEvent(new OscMessage("/synth/voice/1/debug").add(frame));
+      ut.oscEvent(new OscMessage("/synth/debug").add(frame));
+      ut.oscEvent(new OscMessage("/other/synth/freq").add(frame));
+      ut.oscEvent(new OscMessage("/acc/x/1").add(0));
+      ut.oscEvent(new OscMessage("/acc/x/1").add(frame));
+    }
+    ut.dispose();
+    assertEquals(3 * 3, ut.getFilteredMessages());
+    assertEquals(3, ut.getCoalescedMessages());
+
+    List<OscPacket> played = playAll(ut.getScorePath());
+    assertEquals(3, played.size());
+    for (int i = 0; i < played.size(); i++) {
+      OscBundle bundle = (OscBundle) played.get(i);
+      assertEquals(3, bundle.size());
+      assertEquals("/synth/freq", bundle.getMessage(0).addrPattern());
+      assertEquals("/synth/voice/1", bundle.getMessage(1).addrPattern());
+      assertEquals("/acc/x/1", bundle.getMessage(2).addrPattern());
+      assertEquals(i + 1, bundle.getMessage(2).get(0).intValue());
+    }
+
+    // any address ending with /1, whatever its depth
+    played.clear();
+    ScorePlayer oscplay = new ScorePlayer(testapplet, ut.getScorePath(),
+        played::add);
+    oscplay.setScheduleMode(ScorePlayer.ScheduleMode.LOCKSTEP);
+    oscplay.include("//1");
+    while (!oscplay.isFinished()) {
+      oscplay.pre();
+    }
+    oscplay.dispose();
+    assertEquals(3, played.size());
+    for (OscPacket pkt : played) {
+      OscBundle bundle = (OscBundle) pkt;
+      assertEquals(2, bundle.size());
+      assertEquals("/synth/voice/1", bundle.getMessage(0).addrPattern());
+      assertEquals("/acc/x/1", bundle.getMessage(1).addrPattern());
+    }
+  }
+
+  /**
+   * record and play back with include/exclude address filters, in every score
+   * format and in raw capture mode
+   */
+  @Test
+  public void testFiltering() throws IOException {
+    for (String ext : new String[] { ".xml", ".oscb", ".xml.gz" }) {
+      ScoreRecorder ut = new ScoreRecorder(testapplet,
+          "testScoreRecorder_filter" + ext);
+      ut.include("/synth/*");
+      ut.include("/fx/{delay,reverb}");
+      ut.exclude("/synth/debug");
+      ut.pre();
+      for (int frame = 1; frame <= 5; frame++) {
+        testapplet.frameCount = frame;
+        ut.oscEvent(new OscMessage("/synth/freq").add(frame));
+        ut.oscEvent(new OscMessage("/synth/debug").add(frame));
+        ut.oscEvent(new OscMessage("/synth/voice/1").add(frame));
+        ut.oscEvent(new OscMessage("/other").add(frame));
+        ut.oscEvent(new OscMessage("/fx/reverb").add("wet"));
+      }
+      ut.dispose();
+      assertEquals(5 * 3, ut.getFilteredMessages());
+
+      // recorded: /synth/freq and /fx/reverb on every frame
+      List<OscPacket> played = playAll(ut.getScorePath());
+      assertEquals(5, played.size());
+      for (OscPacket pkt : played) {
+        OscBundle bundle = (OscBundle) pkt;
+        assertEquals(2, bundle.size());
+        assertEquals("/synth/freq", bundle.getMessage(0).addrPattern());
+        assertEquals("/fx/reverb", bundle.getMessage(1).addrPattern());
+      }
+
+      // played: /fx/reverb is filtered out, before decoding its argument
+      played.clear();
+      ScorePlayer oscplay = new ScorePlayer(testapplet, ut.getScorePath(),
+          played::add);
+      oscplay.setScheduleMode(ScorePlayer.ScheduleMode.LOCKSTEP);
+      oscplay.exclude("/fx/*");
+      // frames 0 to 2
+      for (int i = 0; i < 3; i++) {
+        oscplay.pre();
+      }
+      // frames 1 and 2 only hold /synth/freq, the other frames nothing
+      oscplay.include("/nothing");
+      while (!oscplay.isFinished()) {
+        oscplay.pre();
+      }
+      oscplay.dispose();
+      assertEquals(2, played.size());
+      for (int i = 0; i < played.size(); i++) {
+        OscBundle bundle = (OscBundle) played.get(i);
+        assertEquals(1, bundle.size());
+        assertEquals("/synth/freq", bundle.getMessage(0).addrPattern());
+        assertEquals(i + 1, bundle.getMessage(0).get(0).intValue());
+      }
+    }
+
+    // raw capture: datagrams are recorded whole, unless nothing is accepted
+    ScoreRecorder ut = new ScoreRecorder(testapplet,
+        "testScoreRecorder_filter_raw.oscb");
+    ut.setRawCapture(true);
+    ut.exclude("/raw/c");
+    ut.pre();
+    testapplet.frameCount = 1;
+    byte[] bundle = oscBundle(7, oscMessage("/raw/b", 1, 1.5f, "de"),
+        oscMessage("/raw/c", -7, -2.5f, "fghij"));
+    byte[] msg = oscMessage("/raw/a", 42, 0.5f, "abc");
+    for (byte[] datagram : new byte[][] { bundle,
+        oscMessage("/raw/c", 0, 0, ""), msg }) {
+      ut.capture(new DatagramPacket(datagram, datagram.length));
+    }
+    ut.dispose();
+    assertEquals(1, ut.getFilteredMessages());
+
+    // bundles partly filtered out are played as decoded packets
+    List<OscPacket> decoded = new ArrayList<OscPacket>();
+    List<byte[]> raws = new ArrayList<byte[]>();
+    ScorePlayer oscplay = new ScorePlayer(testapplet, ut.getScorePath(),
+        new OscLoopback() {
+          @Override
+          public void loopback(OscPacket pkt) {
+            decoded.add(pkt);
+            raws.add(null);
+          }
+
+          @Override
+          public void loopback(OscPacket pkt, byte[] raw) {
+            decoded.add(pkt);
+            raws.add(raw);
+          }
+        });
+    oscplay.setScheduleMode(ScorePlayer.ScheduleMode.LOCKSTEP);
+    oscplay.exclude("/raw/b");
+    while (!oscplay.isFinished()) {
+      oscplay.pre();
+    }
+    oscplay.dispose();
+    assertEquals(2, decoded.size());
+    OscBundle b = (OscBundle) decoded.get(0);
+    assertEquals(1, b.size());
+    assertEquals("/raw/c", b.getMessage(0).addrPattern());
+    assertEquals(7, b.timetag());
+    assertNull(raws.get(0));
+    assertArrayEquals(msg, raws.get(1));
+
+    try {
+      ut.include("synth");
+      fail("pattern without leading slash");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  /**
+   * convert, trim, concatenate, split and validate scores with the command
+   * line tool
+   */
+  @Test
+  public void testScoreTool() throws IOException {
+    ScoreRecorder rec = new ScoreRecorder(testapplet,
+        "testScoreRecorder_tool.xml");
+    rec.setTimestamps(true);
+    rec.pre();
+    for (int frame = 1; frame <= 10; frame++) {
+      testapplet.frameCount = frame;
+      rec.oscEvent(msgs.get(frame % msgs.size()));
+    }
+    rec.dispose();
+    String xml = rec.getScorePath();
+    List<OscPacket> original = playAll(xml);
+
+    ByteArrayOutputStream report = new ByteArrayOutputStream();
+    ScoreTool ut = new ScoreTool(new PrintStream(report, true),
+        new PrintStream(new ByteArrayOutputStream(), true));
+    assertEquals(0, ut.run("convert", xml, "testScoreTool.oscb"));
+    assertEquals(0, ut.run("convert", "testScoreTool.oscb",
+        "testScoreTool.xml.gz"));
+    for (String path : new String[] { "testScoreTool.oscb",
+        "testScoreTool.xml.gz" }) {
+      assertEquals(original.size(), playAll(path).size());
+      for (int i = 0; i < original.size(); i++) {
+        assertArrayEquals(((OscMessage) original.get(i)).arguments(),
+            ((OscMessage) playAll(path).get(i)).arguments());
+      }
+    }
+    assertEquals(0, ut.run("validate", xml, "testScoreTool.oscb",
+        "testScoreTool.xml.gz"));
+    assertTrue(report.toString().contains("OK - 10 packets, 10 messages,"
+        + " frames 1 to 10"));
+
+    // frames 3 to 5, moved to frame 0
+    assertEquals(0, ut.run("trim", "testScoreTool.oscb",
+        "testScoreTool_trim.xml", "3", "6", "--rebase"));
+    List<OscPacket> trimmed = playAll("testScoreTool_trim.xml");
+    assertEquals(3, trimmed.size());
+    for (int i = 0; i < trimmed.size(); i++) {
+      assertArrayEquals(((OscMessage) original.get(i + 2)).arguments(),
+          ((OscMessage) trimmed.get(i)).arguments());
+    }
+    assertEquals(0, ut.run("validate", "testScoreTool_trim.xml"));
+    assertTrue(report.toString().contains("frames 0 to 2"));
+
+    // frames 0 to 2 appended right after frame 10
+    assertEquals(0, ut.run("cat", "testScoreTool_cat.oscb", xml,
+        "testScoreTool_trim.xml"));
+    assertEquals(0, ut.run("validate", "testScoreTool_cat.oscb"));
+    assertTrue(report.toString().contains("OK - 13 packets, 13 messages,"
+        + " frames 1 to 13"));
+
+    // 3 segments of 4 frames, played back as a whole
+    assertEquals(0, ut.run("split", xml, "testScoreTool_split.xml",
+        "--frames", "4"));
+    assertTrue(new File("testScoreTool_split.002.xml").isFile());
+    assertFalse(new File("testScoreTool_split.003.xml").exists());
+    assertEquals(original.size(), playAll("testScoreTool_split.xml").size());
+
+    // truncated scores are invalid
+    byte[] bytes = Files.readAllBytes(Paths.get("testScoreTool.oscb"));
+    Files.write(Paths.get("testScoreTool_cut.oscb"),
+        Arrays.copyOf(bytes, bytes.length - 3));
+    assertEquals(1, ut.run("validate", "testScoreTool_cut.oscb"));
+    assertTrue(report.toString().contains("INVALID - truncated score"));
+
+    // usage errors
+    assertEquals(2, ut.run());
+    assertEquals(2, ut.run("trim", xml, "testScoreTool_trim.xml", "3"));
+    assertEquals(2, ut.run("convert", xml, xml));
+    assertEquals(1, ut.run("convert", "missing.xml", "testScoreTool.xml"));
+  }
+
+  /**
+   * analyze the density of a score, programmatically and from the command line
+   */
+  @Test
+  public void testScoreStats() throws IOException {
+    ScoreRecorder rec = new ScoreRecorder(testapplet,
+        "testScoreRecorder_stats.oscb");
+    rec.pre();
+    for (int frame : new int[] { 1, 2, 3, 10, 11, 12 }) {
+      testapplet.frameCount = frame;
+      rec.oscEvent(new OscMessage("/a").add(frame));
+      for (int i = 0; frame < 12 && frame >= 10 && i < 4; i++) {
+        rec.oscEvent(new OscMessage("/b").add("xyz"));
+      }
+    }
+    testapplet.frameCount = 20;
+    for (int i = 0; i < 6; i++) {
+      rec.oscEvent(new OscMessage("/c").add(0.5f));
+    }
+    rec.dispose();
+
+    ScoreStats stats = ScoreStats.of(rec.getScorePath(), 4);
+    assertEquals(7, stats.getPackets());
+    assertEquals(20, stats.getMessages());
+    assertEquals(1, stats.getFirstFrame());
+    assertEquals(20, stats.getLastFrame());
+    assertEquals(7, stats.getBusyFrames());
+    assertEquals(6, stats.getPeakMessages());
+    assertEquals(20, stats.getPeakMessagesFrame());
+    assertEquals(1, stats.getPeakPackets());
+    // bursts: frames 1 to 3, 10 to 12 and 20
+    assertEquals(3, stats.getBursts().getCount());
+    assertEquals(3, stats.getLongestBurst());
+    assertEquals(1, stats.getLongestBurstFrame());
+    assertEquals(3, stats.getFramesOverBudget());
+    assertEquals(Arrays.asList(10, 11, 20), stats.getOverBudgetFrames());
+    assertEquals(2, stats.getLongestOverBudget());
+    assertEquals(10, stats.getLongestOverBudgetFrame());
+    assertEquals(6L, (long) stats.getAddressCounts().get("/a"));
+    assertEquals(0.3, stats.getAddressRate("/a"), 1e-9);
+    // 1 message: frames 1, 2, 3 and 12; 5 messages: 10 and 11; 6: 20
+    assertEquals(4, stats.getMessagesPerFrame().getBucketCount(1));
+    assertEquals(3, stats.getMessagesPerFrame().getBucketCount(3));
+    assertEquals(8, stats.getArgumentBytes().getBucketCount(2));
+    assertEquals(12, stats.getArgumentBytes().getBucketCount(3));
+    assertEquals(0, ScoreStats.of(rec.getScorePath()).getFramesOverBudget());
+
+    ByteArrayOutputStream report = new ByteArrayOutputStream();
+    ScoreTool tool = new ScoreTool(new PrintStream(report, true),
+        new PrintStream(new ByteArrayOutputStream(), true));
+    assertEquals(1, tool.run("stats", rec.getScorePath(), "--budget", "4"));
+    assertTrue(report.toString().contains("3 frames over the budget of 4"));
+    assertEquals(0, tool.run("stats", rec.getScorePath()));
+    assertEquals(2, tool.run("stats", rec.getScorePath(), "--budget"));
+  }
+
+  /**
+   * convert, trim and analyze a XML score large enough to be decoded in
+   * parallel chunks, complete then truncated
+   */
+  @Test
+  public void testParallelRead() throws IOException {
+    ScoreRecorder rec = new ScoreRecorder(testapplet,
+        "testScoreRecorder_large.xml");
+    rec.setBackpressure(ScoreRecorder.Backpressure.BLOCK);
+    rec.pre();
+    int n = 6000;
+    for (int i = 0; i < n; i++) {
+      testapplet.frameCount = i + 1;
+      rec.oscEvent(msgs.get(i % msgs.size()));
+    }
+    rec.dispose();
+    String xml = rec.getScorePath();
+    assertTrue(new File(xml).length() > 1 << 20);
+
+    ScoreStats stats = ScoreStats.of(xml);
+    assertEquals(n, stats.getPackets());
+    assertEquals(1, stats.getFirstFrame());
+    assertEquals(n, stats.getLastFrame());
+
+    ScoreTool ut = new ScoreTool(
+        new PrintStream(new ByteArrayOutputStream(), true),
+        new PrintStream(new ByteArrayOutputStream(), true));
+    assertEquals(0, ut.run("convert", xml, "testScoreRecorder_large.oscb"));
+    List<OscPacket> original = playAll(xml);
+    List<OscPacket> converted = playAll("testScoreRecorder_large.oscb");
+    assertEquals(n, converted.size());
+    for (int i = 0; i < n; i++) {
+      OscMessage msg = (OscMessage) original.get(i);
+      assertEquals(msg.addrPattern(),
+          ((OscMessage) converted.get(i)).addrPattern());
+      assertArrayEquals(msg.arguments(),
+          ((OscMessage) converted.get(i)).arguments());
+    }
+
+    // seek in the middle of the score
+    assertEquals(0, ut.run("trim", xml, "testScoreRecorder_trim.xml", "3000",
+        "3100"));
+    assertEquals(100, ScoreStats.of("testScoreRecorder_trim.xml").getPackets());
+    assertEquals(3000,
+        ScoreStats.of("testScoreRecorder_trim.xml").getFirstFrame());
+
+    // cut in the middle of the last packet
+    byte[] bytes = Files.readAllBytes(Paths.get(xml));
+    int cut = new String(bytes, StandardCharsets.UTF_8)
+        .lastIndexOf("</oscpacket>");
+    Files.write(Paths.get("testScoreRecorder_largecut.xml"),
+        Arrays.copyOf(bytes, cut - 10));
+    assertEquals(n - 1,
+        ScoreStats.of("testScoreRecorder_largecut.xml").getPackets());
+    assertEquals(1, ut.run("validate", "testScoreRecorder_largecut.xml"));
+    // read only passes do not leave a frame index behind
+    assertFalse(new File("testScoreRecorder_largecut.xml.idx").exists());
+  }
+
+  /**
+   * @param path path to a score
+   * @return the packets of the score
+   */
+  protected List<OscPacket> playAll(String path) {
+    List<OscPacket> played = new ArrayList<OscPacket>();
+    ScorePlayer oscplay = new ScorePlayer(testapplet, path, played::add);
+    oscplay.setScheduleMode(ScorePlayer.ScheduleMode.LOCKSTEP);
+    while (!oscplay.isFinished()) {
+      oscplay.pre();
+    }
+    oscplay.dispose();
+    return played;
+  }
+
+  /**
+   * @param xmlfile path to a XML score
+   * @return number of messages in the score
+   */
+  protected int countMessages(String xmlfile) throws IOException {
+    String xml = new String(Files.readAllBytes(Paths.get(xmlfile)),
+        StandardCharsets.UTF_8);
+    return xml.split("<message ", -1).length - 1;
+  }
 }